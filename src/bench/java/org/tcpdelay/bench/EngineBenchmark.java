@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tcpdelay.ProxyConfig;
+import org.tcpdelay.TCPDataReader;
+
+/**
+ * Compares the engines of the proxy with many connections open: for one engine, opens the
+ * given numbers of connections through the proxy to an in-process echo server, then measures
+ * <ul>
+ * <li>the memory used per connection: heap after a GC and resident set size, compared to
+ * before the connections were opened, and the number of threads,</li>
+ * <li>the round trip times of small messages sent on all the connections at once, for a
+ * number of rounds, and the messages echoed per second.</li>
+ * </ul>
+ * Run once per engine, each in its own JVM so the memory figures don't mix. Prints one JSON
+ * line per number of connections.
+ * <p>
+ * Usage: EngineBenchmark [engine] [connections,...] [rounds] [ioThreads]
+ */
+public class EngineBenchmark {
+    private static final int PING_SIZE = 64;
+    private static final int CONNECT_BATCH = 50;
+
+    /**
+     * Connection sending one message per round and waiting for its echo.
+     */
+    private static class PingClient {
+        private SocketChannel channel;
+        private ByteBuffer out;
+        private ByteBuffer in;
+        private long sentNanos;
+
+        PingClient(SocketChannel channel) {
+            this.channel = channel;
+            out = ByteBuffer.allocate(PING_SIZE);
+            in = ByteBuffer.allocate(PING_SIZE);
+        }
+
+        void send() throws IOException {
+            out.clear();
+            in.clear();
+            sentNanos = System.nanoTime();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+
+        /**
+         * Returns the round trip time once the whole echo arrived, -1 before.
+         */
+        long receive() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("Connection closed by the proxy");
+            }
+            return in.hasRemaining() ? -1 : System.nanoTime() - sentNanos;
+        }
+    }
+
+    public static void main(String[] args) {
+        int status = 0;
+        try {
+            run(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = 1;
+        }
+        // the proxy doesn't stop on its own
+        System.exit(status);
+    }
+
+    private static void run(String[] args) throws Exception {
+        String engine = args.length > 0 ? args[0] : ProxyConfig.ENGINE_NIO;
+        int[] connections = ProxyBenchmark.parseInts(args.length > 1 ? args[1] : "10000,100000");
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int ioThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        Logger.getLogger("org.tcpdelay").setLevel(Level.WARNING);
+        Logger.getLogger("").getHandlers()[0].setLevel(Level.WARNING);
+
+        ProxyBenchmark.EchoServer echo = new ProxyBenchmark.EchoServer();
+        ProxyBenchmark.startDaemon(echo, "echo");
+        ProxyConfig config = new ProxyConfig(ProxyBenchmark.freePort(), "127.0.0.1", echo.getPort(), 0);
+        config.setIoThreads(ioThreads);
+        config.setEngine(engine);
+        TCPDataReader proxy = new TCPDataReader(config);
+        ProxyBenchmark.startDaemon(proxy, "proxy");
+        ProxyBenchmark.waitForPort(config.getLocalPort());
+
+        String common = "\"commit\":\"" + System.getProperty("bench.commit", "") + "\",\"engine\":\"" + engine
+                + "\",\"ioThreads\":" + ioThreads;
+        for (int count : connections) {
+            String params = common + ",\"connections\":" + count;
+            try {
+                System.out.println("{\"benchmark\":\"engine\"," + params + measure(proxy, config.getLocalPort(),
+                        count, rounds) + "}");
+            } catch (IOException e) {
+                System.out.println("{\"benchmark\":\"engine\"," + params + ",\"error\":\"" + e.getMessage() + "\"}");
+            }
+        }
+    }
+
+    /**
+     * Opens the connections, measures and closes them. Returns the measures as JSON fields.
+     */
+    private static String measure(TCPDataReader proxy, int port, int count, int rounds) throws Exception {
+        // client, proxy client side, proxy remote side and echo server
+        long needed = 4L * count + 100;
+        long limit = ProxyBenchmark.maxFileDescriptors();
+        if (needed > limit) {
+            throw new IOException("Needs " + needed + " file descriptors, the limit is " + limit);
+        }
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heapBefore = usedHeapAfterGc(memory);
+        long rssBefore = residentSetSize();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        Selector selector = Selector.open();
+        PingClient[] clients = new PingClient[count];
+        try {
+            for (int i = 0; i < count; i += CONNECT_BATCH) {
+                int batch = Math.min(CONNECT_BATCH, count - i);
+                SocketChannel[] channels = new SocketChannel[batch];
+                for (int j = 0; j < batch; j++) {
+                    channels[j] = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                }
+                for (int j = 0; j < batch; j++) {
+                    channels[j].setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channels[j].configureBlocking(false);
+                    clients[i + j] = new PingClient(channels[j]);
+                    channels[j].register(selector, SelectionKey.OP_READ, clients[i + j]);
+                }
+            }
+            // the first round waits for all the connections to the echo server
+            pingRound(selector, clients);
+            long heapPerConnection = (usedHeapAfterGc(memory) - heapBefore) / count;
+            long rssPerConnection = (residentSetSize() - rssBefore) / count;
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+            long[] rtts = new long[count * rounds];
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                long[] roundRtts = pingRound(selector, clients);
+                System.arraycopy(roundRtts, 0, rtts, round * count, count);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Arrays.sort(rtts);
+            return ",\"rounds\":" + rounds
+                    + ",\"messagesPerSec\":" + String.format("%.0f", rtts.length / seconds)
+                    + ",\"rttUsP50\":" + ProxyBenchmark.percentile(rtts, 0.5) / 1000
+                    + ",\"rttUsP99\":" + ProxyBenchmark.percentile(rtts, 0.99) / 1000
+                    + ",\"rttUsMax\":" + rtts[rtts.length - 1] / 1000
+                    + ",\"heapBytesPerConnection\":" + heapPerConnection
+                    + ",\"rssBytesPerConnection\":" + rssPerConnection
+                    + ",\"threadsPerConnection\":" + String.format("%.2f", (double) threads / count)
+                    + ",\"connectionsOpen\":" + proxy.getMetrics().getConnectionsOpen();
+        } finally {
+            for (PingClient client : clients) {
+                if (client != null) {
+                    client.channel.close();
+                }
+            }
+            selector.close();
+        }
+    }
+
+    /**
+     * Sends one message on each connection and waits for all the echoes. Returns the round
+     * trip times in nanoseconds.
+     */
+    private static long[] pingRound(Selector selector, PingClient[] clients) throws IOException {
+        long[] rtts = new long[clients.length];
+        for (PingClient client : clients) {
+            client.send();
+        }
+        int pending = clients.length;
+        long deadline = System.nanoTime() + 60000000000L;
+        while (pending > 0) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException(pending + " echoes missing after 60 s");
+            }
+            selector.select(100);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                long rtt = ((PingClient) key.attachment()).receive();
+                if (rtt >= 0) {
+                    rtts[--pending] = rtt;
+                }
+            }
+        }
+        return rtts;
+    }
+
+    private static long usedHeapAfterGc(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Resident set size of the JVM in bytes, from /proc. 0 where there's no /proc.
+     */
+    private static long residentSetSize() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // not Linux
+        }
+        return 0;
+    }
+}
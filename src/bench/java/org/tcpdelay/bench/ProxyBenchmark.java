@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import org.tcpdelay.Protocol;
+import org.tcpdelay.ProxyConfig;
+import org.tcpdelay.TCPDataReader;
+
+/**
+ * End to end benchmark of the proxy: starts an echo server and TCPDelay in this process,
+ * both on loopback ephemeral ports, and measures
+ * <ul>
+ * <li>the throughput of data echoed through the proxy for a number of connections and chunk sizes,
+ * and the reads and writes of the proxy per MB proxied,</li>
+ * <li>the round trip time added by the proxy without delay, compared to the echo server alone,</li>
+ * <li>how far the round trip time is from twice the delay, for a few delays,</li>
+ * <li>how many connections per second the proxy takes when clients keep opening a connection,
+ * sending one message and closing it, and how long they wait for the echo.</li>
+ * </ul>
+ * With messages true, the proxy runs with -protocol length:0,4 and each chunk the clients send is
+ * a message, to measure the cost of decoding the messages.
+ * Each result is printed as one JSON line, with the commit from the bench.commit property
+ * so results of different commits can be compared.
+ * <p>
+ * Usage: ProxyBenchmark [connections,...] [chunkSizes,...] [delaysMs,...] [seconds] [ioThreads] [engine]
+ * [throughputDelayMs] [churnThreads] [reusePort] [messages]
+ */
+public class ProxyBenchmark {
+    private static final int PING_SIZE = 64;
+    private static final int DELAY_CONNECTIONS = 10;
+    // connections opened at the same time, to stay under the accept backlog of the proxy
+    private static final int CONNECT_BATCH = 50;
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final String MESSAGE_PROTOCOL = "length:0,4";
+
+    /**
+     * Single threaded echo server.
+     */
+    static class EchoServer implements Runnable {
+        private ServerSocketChannel serverChannel;
+        private Selector selector;
+
+        EchoServer() throws IOException {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        int getPort() {
+            return serverChannel.socket().getLocalPort();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            handleKey(key);
+                        } catch (IOException e) {
+                            key.cancel();
+                            key.channel().close();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        private SocketChannel accept() {
+            try {
+                return serverChannel.accept();
+            } catch (IOException e) {
+                // out of file descriptors, the client sees the connection fail
+                return null;
+            }
+        }
+
+        private void handleKey(SelectionKey key) throws IOException {
+            if (key.isAcceptable()) {
+                SocketChannel sc;
+                while ((sc = accept()) != null) {
+                    sc.configureBlocking(false);
+                    sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    sc.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(65536));
+                }
+                return;
+            }
+            SocketChannel sc = (SocketChannel) key.channel();
+            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            if (key.isReadable()) {
+                if (sc.read(buffer) < 0) {
+                    key.cancel();
+                    sc.close();
+                    return;
+                }
+            }
+            // the buffer holds the bytes not echoed yet
+            buffer.flip();
+            sc.write(buffer);
+            if (buffer.hasRemaining()) {
+                buffer.compact();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                buffer.clear();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Client connection streaming data to the echo server, with a bounded number of bytes in flight.
+     */
+    private static class StreamingClient {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer out;
+        private ByteBuffer in;
+        private long sent;
+        private long received;
+        private long window;
+
+        /**
+         * With messages, each chunk starts with the length of the rest of it.
+         */
+        StreamingClient(SocketChannel channel, SelectionKey key, int chunkSize, boolean messages) {
+            this.channel = channel;
+            this.key = key;
+            out = ByteBuffer.allocateDirect(chunkSize);
+            if (messages) {
+                out.putInt(0, chunkSize - 4);
+            }
+            out.flip();
+            in = ByteBuffer.allocateDirect(65536);
+            window = Math.max(2L * chunkSize, 65536);
+        }
+
+        void handle() throws IOException {
+            if (key.isReadable()) {
+                int n = channel.read(in);
+                if (n < 0) {
+                    throw new IOException("Connection closed by the proxy");
+                }
+                received += n;
+                in.clear();
+            }
+            if (key.isWritable()) {
+                if (!out.hasRemaining()) {
+                    out.clear();
+                }
+                sent += channel.write(out);
+            }
+            int ops = SelectionKey.OP_READ;
+            if (out.hasRemaining() || sent - received < window) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int status = 0;
+        try {
+            run(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = 1;
+        }
+        // the event loops of the proxy don't stop on their own
+        System.exit(status);
+    }
+
+    private static void run(String[] args) throws Exception {
+        int[] connections = parseInts(args.length > 0 ? args[0] : "1,100,10000");
+        int[] chunkSizes = parseInts(args.length > 1 ? args[1] : "512,16384,65536");
+        int[] delaysMs = parseInts(args.length > 2 ? args[2] : "1,10,100");
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        int ioThreads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        String engine = args.length > 5 ? args[5] : ProxyConfig.ENGINE_NIO;
+        // with a delay, the chunks of a connection are queued and written together
+        int throughputDelayMs = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+        int churnThreads = args.length > 7 ? Integer.parseInt(args[7]) : 16;
+        boolean reusePort = args.length > 8 && Boolean.parseBoolean(args[8]);
+        boolean messages = args.length > 9 && Boolean.parseBoolean(args[9]);
+
+        Logger.getLogger("org.tcpdelay").setLevel(Level.WARNING);
+        Logger.getLogger("").getHandlers()[0].setLevel(Level.WARNING);
+
+        EchoServer echo = new EchoServer();
+        startDaemon(echo, "echo");
+        ProxyConfig config = new ProxyConfig(freePort(), "127.0.0.1", echo.getPort(), throughputDelayMs);
+        config.setIoThreads(ioThreads);
+        config.setEngine(engine);
+        config.setReusePort(reusePort);
+        config.setAcceptBacklog(ACCEPT_BACKLOG);
+        if (messages) {
+            config.setProtocol(Protocol.parse(MESSAGE_PROTOCOL));
+        }
+        TCPDataReader proxy = new TCPDataReader(config);
+        startDaemon(proxy, "proxy");
+        waitForPort(config.getLocalPort());
+
+        String common = "\"commit\":\"" + System.getProperty("bench.commit", "") + "\",\"engine\":\"" + engine
+                + "\",\"ioThreads\":" + ioThreads + ",\"reusePort\":" + reusePort + ",\"messages\":" + messages;
+
+        for (int count : connections) {
+            for (int chunkSize : chunkSizes) {
+                String params = common + ",\"connections\":" + count + ",\"chunkSize\":" + chunkSize
+                        + ",\"delayMs\":" + throughputDelayMs;
+                try {
+                    double[] result = throughput(proxy, config.getLocalPort(), count, chunkSize, messages,
+                            seconds * 1000L);
+                    System.out.println("{\"benchmark\":\"throughput\"," + params
+                            + ",\"mbPerSec\":" + String.format("%.1f", result[0])
+                            + ",\"syscallsPerMb\":" + String.format("%.1f", result[1]) + "}");
+                } catch (IOException e) {
+                    System.out.println("{\"benchmark\":\"throughput\"," + params
+                            + ",\"error\":\"" + e.getMessage() + "\"}");
+                }
+            }
+        }
+
+        proxy.setDelayMs(0);
+        int pings = Math.max(1000, seconds * 2000);
+        long[] direct = roundTrips(echo.getPort(), 1, pings);
+        long[] proxied = roundTrips(config.getLocalPort(), 1, pings);
+        System.out.println("{\"benchmark\":\"overhead\"," + common + ",\"pings\":" + pings
+                + ",\"directUsP50\":" + percentile(direct, 0.5) / 1000
+                + ",\"directUsP99\":" + percentile(direct, 0.99) / 1000
+                + ",\"proxyUsP50\":" + percentile(proxied, 0.5) / 1000
+                + ",\"proxyUsP99\":" + percentile(proxied, 0.99) / 1000
+                + ",\"proxyUsP999\":" + percentile(proxied, 0.999) / 1000
+                + ",\"overheadUsP50\":" + (percentile(proxied, 0.5) - percentile(direct, 0.5)) / 1000 + "}");
+
+        for (int delayMs : delaysMs) {
+            proxy.setDelayMs(delayMs);
+            // every round trip goes through the delay twice
+            long expectedNanos = 2L * delayMs * 1000000;
+            int perConnection = (int) Math.max(10, Math.min(500, seconds * 1000L / (2L * delayMs + 1)));
+            long[] rtts = roundTrips(config.getLocalPort(), DELAY_CONNECTIONS, perConnection);
+            for (int i = 0; i < rtts.length; i++) {
+                rtts[i] -= expectedNanos;
+            }
+            Arrays.sort(rtts);
+            System.out.println("{\"benchmark\":\"delay\"," + common + ",\"delayMs\":" + delayMs
+                    + ",\"samples\":" + rtts.length
+                    + ",\"errorUsMin\":" + rtts[0] / 1000
+                    + ",\"errorUsP50\":" + percentile(rtts, 0.5) / 1000
+                    + ",\"errorUsP99\":" + percentile(rtts, 0.99) / 1000
+                    + ",\"errorUsP999\":" + percentile(rtts, 0.999) / 1000
+                    + ",\"errorUsMax\":" + rtts[rtts.length - 1] / 1000 + "}");
+        }
+
+        if (churnThreads > 0) {
+            proxy.setDelayMs(0);
+            long[] connects = churn(config.getLocalPort(), churnThreads, seconds * 1000L);
+            System.out.println("{\"benchmark\":\"churn\"," + common + ",\"threads\":" + churnThreads
+                    + ",\"connections\":" + connects.length
+                    + ",\"connectionsPerSec\":" + connects.length / seconds
+                    + ",\"echoUsP50\":" + percentile(connects, 0.5) / 1000
+                    + ",\"echoUsP99\":" + percentile(connects, 0.99) / 1000
+                    + ",\"echoUsP999\":" + percentile(connects, 0.999) / 1000 + "}");
+        }
+    }
+
+    /**
+     * Streams data through the proxy on all the connections and returns the echoed MB/s and the
+     * socket reads and writes of the proxy per MB it proxied, in both directions, measured after
+     * a warmup of a third of the duration.
+     */
+    private static double[] throughput(TCPDataReader proxy, int port, int count, int chunkSize, boolean messages,
+            long durationMs) throws IOException {
+        // client, proxy client side, proxy remote side and echo server
+        long needed = 4L * count + 100;
+        long limit = maxFileDescriptors();
+        if (needed > limit) {
+            throw new IOException("Needs " + needed + " file descriptors, the limit is " + limit);
+        }
+        Selector selector = Selector.open();
+        StreamingClient[] clients = new StreamingClient[count];
+        try {
+            for (int i = 0; i < count; i += CONNECT_BATCH) {
+                int batch = Math.min(CONNECT_BATCH, count - i);
+                SocketChannel[] channels = new SocketChannel[batch];
+                for (int j = 0; j < batch; j++) {
+                    channels[j] = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                }
+                for (int j = 0; j < batch; j++) {
+                    channels[j].setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channels[j].configureBlocking(false);
+                    SelectionKey key = channels[j].register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    clients[i + j] = new StreamingClient(channels[j], key, chunkSize, messages);
+                    key.attach(clients[i + j]);
+                }
+            }
+            long start = System.nanoTime();
+            long measureStart = start + durationMs * 1000000 / 3;
+            long end = measureStart + durationMs * 1000000;
+            long receivedAtStart = -1;
+            long proxiedAtStart = 0;
+            long callsAtStart = 0;
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                if (receivedAtStart < 0 && now >= measureStart) {
+                    receivedAtStart = received(clients);
+                    proxiedAtStart = proxied(proxy);
+                    callsAtStart = proxy.getMetrics().getSocketCalls();
+                    measureStart = now;
+                }
+                selector.select(10);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((StreamingClient) key.attachment()).handle();
+                }
+            }
+            long bytes = received(clients) - receivedAtStart;
+            double mbPerSec = bytes / 1048576.0 / ((System.nanoTime() - measureStart) / 1e9);
+            long calls = proxy.getMetrics().getSocketCalls() - callsAtStart;
+            double proxiedMb = (proxied(proxy) - proxiedAtStart) / 1048576.0;
+            return new double[] {mbPerSec, proxiedMb > 0 ? calls / proxiedMb : 0};
+        } finally {
+            for (StreamingClient client : clients) {
+                if (client != null) {
+                    client.channel.close();
+                }
+            }
+            selector.close();
+        }
+    }
+
+    /**
+     * Opens a connection, sends one message, waits for its echo and resets the connection, in
+     * a loop on each thread, for the duration after a warmup of a third of it. Returns the time
+     * from the start of the connect to the echo of each connection in nanoseconds, sorted.
+     */
+    private static long[] churn(final int port, int threads, long durationMs) throws Exception {
+        final long measureStart = System.nanoTime() + durationMs * 1000000 / 3;
+        final long end = measureStart + durationMs * 1000000;
+        final long[][] times = new long[threads][];
+        final int[] counts = new int[threads];
+        final Exception[] error = new Exception[1];
+        Thread[] clients = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            clients[i] = new Thread(new Runnable() {
+                public void run() {
+                    long[] connects = new long[1024];
+                    int count = 0;
+                    ByteBuffer out = ByteBuffer.allocateDirect(PING_SIZE);
+                    ByteBuffer in = ByteBuffer.allocateDirect(PING_SIZE);
+                    try {
+                        long start;
+                        while ((start = System.nanoTime()) < end) {
+                            SocketChannel channel = SocketChannel.open(
+                                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                            try {
+                                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                                out.clear();
+                                in.clear();
+                                while (out.hasRemaining()) {
+                                    channel.write(out);
+                                }
+                                while (in.hasRemaining()) {
+                                    if (channel.read(in) < 0) {
+                                        throw new IOException("Connection closed by the proxy");
+                                    }
+                                }
+                                // a reset doesn't leave the client port in TIME_WAIT
+                                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                            } finally {
+                                channel.close();
+                            }
+                            if (start >= measureStart) {
+                                if (count == connects.length) {
+                                    connects = Arrays.copyOf(connects, count * 2);
+                                }
+                                connects[count++] = System.nanoTime() - start;
+                            }
+                        }
+                    } catch (Exception e) {
+                        error[0] = e;
+                    }
+                    times[index] = connects;
+                    counts[index] = count;
+                }
+            }, "churn-" + i);
+        }
+        for (Thread client : clients) {
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] connects = new long[total];
+        int offset = 0;
+        for (int i = 0; i < threads; i++) {
+            System.arraycopy(times[i], 0, connects, offset, counts[i]);
+            offset += counts[i];
+        }
+        Arrays.sort(connects);
+        return connects;
+    }
+
+    private static long proxied(TCPDataReader proxy) {
+        return proxy.getMetrics().getBytesUp() + proxy.getMetrics().getBytesDown();
+    }
+
+    private static long received(StreamingClient[] clients) {
+        long total = 0;
+        for (StreamingClient client : clients) {
+            total += client.received;
+        }
+        return total;
+    }
+
+    /**
+     * Sends small messages and waits for each echo, on a number of connections in parallel.
+     * Returns all the round trip times in nanoseconds, sorted.
+     */
+    private static long[] roundTrips(final int port, int count, final int perConnection) throws Exception {
+        final long[] rtts = new long[count * perConnection];
+        Thread[] threads = new Thread[count];
+        final Exception[] error = new Exception[1];
+        for (int i = 0; i < count; i++) {
+            final int offset = i * perConnection;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        ping(port, rtts, offset, perConnection);
+                    } catch (Exception e) {
+                        error[0] = e;
+                    }
+                }
+            }, "ping-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        Arrays.sort(rtts);
+        return rtts;
+    }
+
+    private static void ping(int port, long[] rtts, int offset, int pings) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer out = ByteBuffer.allocateDirect(PING_SIZE);
+            ByteBuffer in = ByteBuffer.allocateDirect(PING_SIZE);
+            // the first round trips include connecting to the remote host and warming up
+            for (int i = -10; i < pings; i++) {
+                out.clear();
+                in.clear();
+                long start = System.nanoTime();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                while (in.hasRemaining()) {
+                    if (channel.read(in) < 0) {
+                        throw new IOException("Connection closed by the proxy");
+                    }
+                }
+                if (i >= 0) {
+                    rtts[offset + i] = System.nanoTime() - start;
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    static long maxFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            return ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    static void startDaemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    static void waitForPort(int port) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            try {
+                SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("Proxy not listening on port " + port);
+    }
+
+    static int[] parseInts(String list) {
+        String[] values = list.split(",");
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = Integer.parseInt(values[i].trim());
+        }
+        return ints;
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
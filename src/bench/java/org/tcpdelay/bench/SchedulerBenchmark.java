@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay.bench;
+
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.tcpdelay.TimerWheel;
+import org.tcpdelay.WakeupTimer;
+
+/**
+ * Compares the cost and the lateness of the delay scheduling: a global DelayQueue
+ * drained by a writer thread (the original design) against per-connection FIFOs
+ * driven by a timer wheel from a selector loop, parking in select like the event loops,
+ * or spinning close to the deadlines like with -precisionUs.
+ * <p>
+ * Usage: SchedulerBenchmark [chunks] [connections] [delayMs] [spreadMs] [precisionUs]
+ */
+public class SchedulerBenchmark {
+
+    private static class DelayedChunk implements Delayed {
+        private long deadlineNanos;
+
+        DelayedChunk(long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed o) {
+            long other = ((DelayedChunk) o).deadlineNanos;
+            return deadlineNanos < other ? -1 : (deadlineNanos > other ? 1 : 0);
+        }
+    }
+
+    private static class Chunk {
+        long deadlineNanos;
+        Chunk next;
+    }
+
+    /**
+     * Per-connection FIFO, like TCPDataWriter without the sockets.
+     */
+    private static class Fifo implements TimerWheel.Task {
+        private TimerWheel wheel;
+        private TimerWheel.Timer timer;
+        private Chunk head;
+        private Chunk tail;
+        private Result result;
+
+        Fifo(TimerWheel wheel, Result result) {
+            this.wheel = wheel;
+            this.result = result;
+            timer = new TimerWheel.Timer(this);
+        }
+
+        void add(Chunk chunk) {
+            if (tail == null) {
+                head = chunk;
+            } else {
+                tail.next = chunk;
+            }
+            tail = chunk;
+            if (head == chunk) {
+                wheel.schedule(timer, chunk.deadlineNanos);
+            }
+        }
+
+        public void expire(long nowNanos) {
+            while (head != null && head.deadlineNanos <= nowNanos) {
+                result.record(System.nanoTime() - head.deadlineNanos);
+                head = head.next;
+            }
+            if (head == null) {
+                tail = null;
+            } else {
+                wheel.schedule(timer, head.deadlineNanos);
+            }
+        }
+    }
+
+    private static class Result {
+        private long[] lateness;
+        private int count;
+        private long enqueueNanos;
+        private long dispatchNanos;
+
+        Result(int chunks) {
+            lateness = new long[chunks];
+        }
+
+        void record(long latenessNanos) {
+            lateness[count++] = latenessNanos;
+        }
+
+        String toJson(String impl, int chunks, int connections, long delayMs) {
+            long[] sorted = Arrays.copyOf(lateness, count);
+            Arrays.sort(sorted);
+            return "{\"benchmark\":\"scheduler\",\"commit\":\"" + System.getProperty("bench.commit", "")
+                    + "\",\"impl\":\"" + impl + "\",\"chunks\":" + chunks
+                    + ",\"connections\":" + connections + ",\"delayMs\":" + delayMs
+                    + ",\"enqueueNsPerChunk\":" + enqueueNanos / chunks
+                    + ",\"dispatchNsPerChunk\":" + (dispatchNanos > 0 ? dispatchNanos / chunks : -1)
+                    + ",\"latenessUsP50\":" + percentile(sorted, 0.50) / 1000
+                    + ",\"latenessUsP99\":" + percentile(sorted, 0.99) / 1000
+                    + ",\"latenessUsP999\":" + percentile(sorted, 0.999) / 1000
+                    + ",\"latenessUsMax\":" + (sorted.length > 0 ? sorted[sorted.length - 1] / 1000 : 0)
+                    + "}";
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long delayMs = args.length > 2 ? Long.parseLong(args[2]) : 100;
+        long spreadMs = args.length > 3 ? Long.parseLong(args[3]) : 200;
+        long spinNanos = (args.length > 4 ? Long.parseLong(args[4]) : 200) * 1000;
+
+        // first rounds warm up the JIT
+        int warmups = Math.max(3, 500000 / chunks);
+        for (int i = 0; i < warmups; i++) {
+            runDelayQueue(chunks, delayMs, spreadMs);
+            runTimerWheel(chunks, connections, delayMs, spreadMs, 0);
+            runTimerWheel(chunks, connections, delayMs, spreadMs, spinNanos);
+        }
+        System.out.println(runDelayQueue(chunks, delayMs, spreadMs).toJson("delayqueue", chunks, connections, delayMs));
+        System.out.println(runTimerWheel(chunks, connections, delayMs, spreadMs, 0).toJson("timerwheel", chunks, connections, delayMs));
+        System.out.println(runTimerWheel(chunks, connections, delayMs, spreadMs, spinNanos).toJson("timerwheel-precise",
+                chunks, connections, delayMs));
+    }
+
+    private static Result runDelayQueue(int chunks, long delayMs, long spreadMs) throws InterruptedException {
+        final DelayQueue<DelayedChunk> queue = new DelayQueue<DelayedChunk>();
+        final Result result = new Result(chunks);
+        long base = System.nanoTime() + delayMs * 1000000;
+        long spreadNanos = spreadMs * 1000000;
+        long[] deadlines = deadlines(chunks, base, spreadNanos);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < chunks; i++) {
+            queue.add(new DelayedChunk(deadlines[i]));
+        }
+        result.enqueueNanos = System.nanoTime() - start;
+
+        for (int i = 0; i < chunks; i++) {
+            DelayedChunk chunk = queue.take();
+            result.record(System.nanoTime() - chunk.deadlineNanos);
+        }
+        return result;
+    }
+
+    /**
+     * Without spinning, the wheel has a 1 ms tick. With a spin window, it has a 10 us tick and the loop
+     * blocks until a WakeupTimer wakes it up when the next deadline is within the window, then polls the
+     * selector until it is due.
+     */
+    private static Result runTimerWheel(int chunks, int connections, long delayMs, long spreadMs, long spinNanos)
+            throws Exception {
+        Result result = new Result(chunks);
+        TimerWheel wheel = spinNanos > 0 ? new TimerWheel(10000, 4096, System.nanoTime())
+                : new TimerWheel(1000000, 1024, System.nanoTime());
+        Fifo[] fifos = new Fifo[connections];
+        for (int i = 0; i < connections; i++) {
+            fifos[i] = new Fifo(wheel, result);
+        }
+        Chunk[] pool = new Chunk[chunks];
+        for (int i = 0; i < chunks; i++) {
+            pool[i] = new Chunk();
+        }
+        long base = System.nanoTime() + delayMs * 1000000;
+        long spreadNanos = spreadMs * 1000000;
+        long[] deadlines = deadlines(chunks, base, spreadNanos);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < chunks; i++) {
+            Chunk chunk = pool[i];
+            chunk.deadlineNanos = deadlines[i];
+            fifos[i % connections].add(chunk);
+        }
+        result.enqueueNanos = System.nanoTime() - start;
+
+        Selector selector = Selector.open();
+        WakeupTimer wakeupTimer = null;
+        if (spinNanos > 0) {
+            wakeupTimer = new WakeupTimer(selector);
+            wakeupTimer.start("bench-timer");
+        }
+        try {
+            while (wheel.size() > 0) {
+                long timeoutNanos = wheel.nanosToNextExpiry(System.nanoTime());
+                if (timeoutNanos <= spinNanos) {
+                    selector.selectNow();
+                } else if (spinNanos > 0) {
+                    wakeupTimer.wakeupAt(System.nanoTime() + timeoutNanos - spinNanos);
+                    selector.select((timeoutNanos + 999999) / 1000000);
+                } else {
+                    selector.select((timeoutNanos + 999999) / 1000000);
+                }
+                long expireStart = System.nanoTime();
+                wheel.expire(expireStart);
+                result.dispatchNanos += System.nanoTime() - expireStart;
+            }
+        } finally {
+            if (wakeupTimer != null) {
+                wakeupTimer.stop();
+            }
+            selector.close();
+        }
+        return result;
+    }
+
+    /**
+     * Deadlines spread evenly, as if the chunks had been read at a constant rate.
+     */
+    private static long[] deadlines(int chunks, long base, long spreadNanos) {
+        long[] deadlines = new long[chunks];
+        for (int i = 0; i < chunks; i++) {
+            deadlines[i] = base + spreadNanos * i / chunks;
+        }
+        return deadlines;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
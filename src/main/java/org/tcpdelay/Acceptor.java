@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepts the connections of a route on one listening socket: all the pending ones at each
+ * wakeup, up to MAX_ACCEPTS so the other keys of the selector get their turn. Without
+ * -reusePort, the accepting thread has one per route and hands the connections to the event
+ * loops round robin. With -reusePort, each event loop has its own per route, on its own socket
+ * bound with SO_REUSEPORT, and keeps the connections it accepts: the kernel spreads the new
+ * connections over the sockets.
+ */
+public class Acceptor implements KeyHandler {
+    private static Logger LOGGER = Logger.getLogger(Acceptor.class.getName());
+
+    private static final int MAX_ACCEPTS = 64;
+
+    private ServerSocketChannel ssc;
+    private Route route;
+    private EventLoopGroup loops;
+    // null when accepting for all the loops
+    private EventLoop loop;
+
+    /**
+     * Acceptor handing the connections to the loops of the group, or keeping them on the
+     * given loop if it isn't null.
+     */
+    public Acceptor(ServerSocketChannel ssc, Route route, EventLoopGroup loops, EventLoop loop) {
+        this.ssc = ssc;
+        this.route = route;
+        this.loops = loops;
+        this.loop = loop;
+    }
+
+    /**
+     * Opens a non blocking socket listening on the local port of the route, with the accept
+     * backlog of the route.
+     */
+    public static ServerSocketChannel listen(ProxyConfig routeConfig, boolean reusePort) throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            ssc.configureBlocking(false);
+            if (reusePort) {
+                ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            Utils.setSocketOptions(ssc, routeConfig);
+            ssc.bind(new InetSocketAddress(routeConfig.getLocalPort()), routeConfig.getAcceptBacklog());
+        } catch (IOException e) {
+            ssc.close();
+            throw e;
+        }
+        return ssc;
+    }
+
+    /**
+     * True if listening sockets can share a port with SO_REUSEPORT on this platform.
+     */
+    public static boolean isReusePortSupported() {
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            return ssc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public ServerSocketChannel getChannel() {
+        return ssc;
+    }
+
+    public void handleKey(SelectionKey key, long selectTimeNanos) {
+        for (int i = 0; i < MAX_ACCEPTS; i++) {
+            SocketChannel sc;
+            try {
+                sc = ssc.accept();
+            } catch (IOException e) {
+                // likely out of file descriptors, the connection stays in the backlog
+                LOGGER.log(Level.WARNING, "Error accepting connection: {0}", e.getMessage());
+                return;
+            }
+            if (sc == null) {
+                return;
+            }
+            long acceptedNanos = System.nanoTime();
+            LOGGER.log(Level.INFO, "Got a request {0}", ssc.socket().getLocalSocketAddress());
+            EventLoop owner = loop != null ? loop : loops.next();
+            if (!route.admit()) {
+                LOGGER.log(Level.FINE, "Rejecting {0}, too many connections", sc);
+                owner.getMetrics().rejected();
+                Utils.reject(sc);
+                continue;
+            }
+            try {
+                sc.configureBlocking(false);
+                Utils.setSocketOptions(sc, route.getConfig());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error accepting connection: {0}", e.getMessage());
+                route.release();
+                close(sc);
+                continue;
+            }
+            if (loop != null) {
+                loop.open(sc, route, acceptedNanos);
+            } else {
+                owner.accept(sc, route, acceptedNanos);
+            }
+        }
+    }
+
+    private static void close(SocketChannel sc) {
+        try {
+            sc.close();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tcpdelay;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolved address of the remote host, cached for a time to live. Lookups never block:
+ * an expired address is still returned while it is resolved again in the background, and
+ * until the host first resolves an unresolved address is returned, so the connection fails
+ * at once instead of holding up the event loop. The host is the one of the settings a
+ * connection was accepted with; the previous host is kept, so the connections accepted with
+ * the settings published before a change still connect to it.
+ */
+public class AddressResolver {
+    private static Logger LOGGER = Logger.getLogger(AddressResolver.class.getName());
+
+    // time between two lookups while the host has never resolved
+    private static final long RETRY_NANOS = 1000000000L;
+
+    private long ttlNanos;
+    private volatile Target current;
+    // null until the host changes
+    private volatile Target previous;
+
+    /**
+     * A host and its address, if it ever resolved.
+     */
+    private static class Target {
+        private final String host;
+        private final int port;
+        private volatile InetSocketAddress address;
+        private volatile long expiresAtNanos;
+        private final AtomicBoolean resolving = new AtomicBoolean();
+
+        Target(String host, int port) {
+            this.host = host;
+            this.port = port;
+            expiresAtNanos = System.nanoTime();
+        }
+
+        boolean is(String host, int port) {
+            return this.port == port && (this.host == null ? host == null : this.host.equals(host));
+        }
+    }
+
+    public AddressResolver(String host, int port, long ttlMs) {
+        ttlNanos = ttlMs * 1000000;
+        current = new Target(host, port);
+    }
+
+    /**
+     * Returns the address of the given remote host, without blocking. The address is unresolved
+     * if the host has never resolved: it is then looked up in the background.
+     */
+    public InetSocketAddress resolve(String host, int port) {
+        final Target target = getTarget(host, port);
+        InetSocketAddress current = target.address;
+        if (System.nanoTime() - target.expiresAtNanos > 0 && target.resolving.compareAndSet(false, true)) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        resolve(target);
+                    } finally {
+                        target.resolving.set(false);
+                    }
+                }
+            }, "tcpdelay-resolver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if (current == null) {
+            return InetSocketAddress.createUnresolved(host, port);
+        }
+        return current;
+    }
+
+    private Target getTarget(String host, int port) {
+        Target target = current;
+        if (target.is(host, port)) {
+            return target;
+        }
+        target = previous;
+        if (target != null && target.is(host, port)) {
+            return target;
+        }
+        synchronized (this) {
+            if (!current.is(host, port)) {
+                previous = current;
+                current = new Target(host, port);
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Adds a new remote host, already resolved with resolveTarget, before the settings naming it
+     * are published.
+     */
+    public synchronized void setTarget(String host, InetSocketAddress resolved) {
+        LOGGER.log(Level.INFO, "Remote host {0} resolved to {1}", new Object[] {host, resolved});
+        Target target = new Target(host, resolved.getPort());
+        target.expiresAtNanos = System.nanoTime() + ttlNanos;
+        target.address = resolved;
+        if (!current.is(host, resolved.getPort())) {
+            previous = current;
+        }
+        current = target;
+    }
+
+    /**
+     * Resolves a new remote host, blocking. Throws an IllegalArgumentException if it doesn't resolve.
+     */
+    public static InetSocketAddress resolveTarget(String host, int port) {
+        InetSocketAddress resolved = new InetSocketAddress(host, port);
+        if (resolved.isUnresolved()) {
+            throw new IllegalArgumentException("Unable to resolve remote host " + host);
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolves the given remote host, blocking. Keeps the previous address if the lookup fails.
+     */
+    public InetSocketAddress resolveNow(String host, int port) {
+        return resolve(getTarget(host, port));
+    }
+
+    private InetSocketAddress resolve(Target target) {
+        synchronized (target) {
+            InetSocketAddress resolved = new InetSocketAddress(target.host, target.port);
+            if (resolved.isUnresolved()) {
+                LOGGER.log(Level.WARNING, "Unable to resolve remote host {0}", target.host);
+                if (target.address != null) {
+                    // try again after another time to live
+                    target.expiresAtNanos = System.nanoTime() + ttlNanos;
+                    return target.address;
+                }
+                target.expiresAtNanos = System.nanoTime() + RETRY_NANOS;
+                return resolved;
+            }
+            if (target.address == null || !resolved.equals(target.address)) {
+                LOGGER.log(Level.INFO, "Remote host {0} resolved to {1}", new Object[] {target.host, resolved});
+            }
+            target.expiresAtNanos = System.nanoTime() + ttlNanos;
+            target.address = resolved;
+            return resolved;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP endpoint changing the settings of the routes and connections while the proxy runs.
+ * Only listens on the loopback address. Settings are given as query parameters:
+ * <pre>
+ * GET    /routes                    lists the routes and their settings
+ * POST   /routes[/&lt;local port&gt;]    changes delayMs, delayUp, delayDown, bandwidthUp, bandwidthDown,
+ *                                   globalBandwidthUp, globalBandwidthDown, remoteHost and remotePort
+ *                                   of one route, or of all of them
+ * GET    /connections               lists the open connections, with their queued bytes
+ * POST   /connections/&lt;id&gt;         gives a connection its own delays and bandwidths, or with reset
+ *                                   makes it follow its route again
+ * DELETE /connections/&lt;id&gt;         closes a connection
+ * </pre>
+ * All the parameters are checked before any is applied, and the delays and bandwidths of a
+ * route or connection are published as one ConnectionSettings, so a connection never sees half
+ * a change. Requests are handled one at a time.
+ */
+public class AdminServer {
+    private static Logger LOGGER = Logger.getLogger(AdminServer.class.getName());
+
+    private static final String DELAY_MS = "delayMs";
+    private static final String DELAY_UP = "delayUp";
+    private static final String DELAY_DOWN = "delayDown";
+    private static final String BANDWIDTH_UP = "bandwidthUp";
+    private static final String BANDWIDTH_DOWN = "bandwidthDown";
+    private static final String GLOBAL_BANDWIDTH_UP = "globalBandwidthUp";
+    private static final String GLOBAL_BANDWIDTH_DOWN = "globalBandwidthDown";
+    private static final String REMOTE_HOST = "remoteHost";
+    private static final String REMOTE_PORT = "remotePort";
+    private static final String RESET = "reset";
+
+    private HttpServer server;
+    private List<Route> routes;
+
+    public AdminServer(List<Route> routes) {
+        this.routes = routes;
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/routes", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleRoutes(exchange);
+                } catch (IllegalArgumentException e) {
+                    MetricsServer.sendText(exchange, 400, e.getMessage() + "\n");
+                }
+            }
+        });
+        server.createContext("/connections", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleConnections(exchange);
+                } catch (IllegalArgumentException e) {
+                    MetricsServer.sendText(exchange, 400, e.getMessage() + "\n");
+                }
+            }
+        });
+        server.start();
+        LOGGER.log(Level.INFO, "Serving the admin endpoint on http://{0}:{1}/",
+                new Object[] {InetAddress.getLoopbackAddress().getHostAddress(), String.valueOf(getPort())});
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void handleRoutes(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String id = getId(exchange, "/routes");
+        if ("GET".equals(method) && id == null) {
+            StringBuilder text = new StringBuilder();
+            for (Route route : routes) {
+                appendRoute(text, route);
+            }
+            MetricsServer.sendText(exchange, 200, text.toString());
+            return;
+        }
+        if (!"POST".equals(method)) {
+            MetricsServer.sendText(exchange, 405, "Use GET /routes or POST /routes[/<local port>]\n");
+            return;
+        }
+        List<Route> targets = routes;
+        if (id != null) {
+            Route route = findRoute(parseLong(id, "local port"));
+            if (route == null) {
+                MetricsServer.sendText(exchange, 404, "No route on local port " + id + "\n");
+                return;
+            }
+            targets = Collections.singletonList(route);
+        }
+        Map<String, String> params = getParams(exchange);
+        checkParams(params, DELAY_MS, DELAY_UP, DELAY_DOWN, BANDWIDTH_UP, BANDWIDTH_DOWN, GLOBAL_BANDWIDTH_UP,
+                GLOBAL_BANDWIDTH_DOWN, REMOTE_HOST, REMOTE_PORT);
+        // everything is parsed before anything changes
+        ConnectionSettings[] settings = new ConnectionSettings[targets.size()];
+        for (int i = 0; i < settings.length; i++) {
+            settings[i] = applySettings(targets.get(i).getConfig().getSettings(), params);
+        }
+        if (params.containsKey(GLOBAL_BANDWIDTH_UP) || params.containsKey(GLOBAL_BANDWIDTH_DOWN)) {
+            long globalUp = params.containsKey(GLOBAL_BANDWIDTH_UP) ? Utils.parseRate(params.get(GLOBAL_BANDWIDTH_UP)) : -1;
+            long globalDown = params.containsKey(GLOBAL_BANDWIDTH_DOWN)
+                    ? Utils.parseRate(params.get(GLOBAL_BANDWIDTH_DOWN)) : -1;
+            for (int i = 0; i < settings.length; i++) {
+                settings[i] = settings[i].withGlobalBandwidths(
+                        globalUp >= 0 ? globalUp : settings[i].getGlobalBandwidthUp(),
+                        globalDown >= 0 ? globalDown : settings[i].getGlobalBandwidthDown());
+            }
+        }
+        int remotePort = -1;
+        if (params.containsKey(REMOTE_PORT)) {
+            long port = parseLong(params.get(REMOTE_PORT), REMOTE_PORT);
+            if (port < 1 || port > 65535) {
+                throw new IllegalArgumentException("Invalid " + REMOTE_PORT + ": " + port);
+            }
+            remotePort = (int) port;
+        }
+        // the new remote hosts are resolved here, so changing them can't fail
+        InetSocketAddress[] remotes = new InetSocketAddress[targets.size()];
+        if (params.containsKey(REMOTE_HOST) || remotePort > 0) {
+            for (int i = 0; i < remotes.length; i++) {
+                settings[i] = settings[i].withRemote(
+                        params.containsKey(REMOTE_HOST) ? params.get(REMOTE_HOST) : settings[i].getRemoteHost(),
+                        remotePort > 0 ? remotePort : settings[i].getRemotePort());
+                remotes[i] = AddressResolver.resolveTarget(settings[i].getRemoteHost(), settings[i].getRemotePort());
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < settings.length; i++) {
+            Route route = targets.get(i);
+            // the remote host, the shared bandwidths and the settings change at once
+            route.update(settings[i], remotes[i]);
+            LOGGER.log(Level.INFO, "Route {0} changed: {1}", new Object[] {route, settings[i]});
+            appendRoute(text, route);
+        }
+        MetricsServer.sendText(exchange, 200, text.toString());
+    }
+
+    private void handleConnections(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String id = getId(exchange, "/connections");
+        if ("GET".equals(method) && id == null) {
+            StringBuilder text = new StringBuilder();
+            for (Route route : routes) {
+                for (ProxiedConnection connection : route.getConnections()) {
+                    appendConnection(text, connection);
+                }
+            }
+            MetricsServer.sendText(exchange, 200, text.toString());
+            return;
+        }
+        ProxiedConnection connection = id == null ? null : findConnection(parseLong(id, "connection id"));
+        if (!"POST".equals(method) && !"DELETE".equals(method)) {
+            MetricsServer.sendText(exchange, 405, "Use GET /connections, POST or DELETE /connections/<id>\n");
+            return;
+        }
+        if (connection == null) {
+            MetricsServer.sendText(exchange, 404, "No open connection " + id + "\n");
+            return;
+        }
+        if ("DELETE".equals(method)) {
+            connection.abort();
+            MetricsServer.sendText(exchange, 200, "Closing connection " + id + "\n");
+            return;
+        }
+        Map<String, String> params = getParams(exchange);
+        checkParams(params, DELAY_MS, DELAY_UP, DELAY_DOWN, BANDWIDTH_UP, BANDWIDTH_DOWN, RESET);
+        if (params.containsKey(RESET)) {
+            connection.setSettings(null);
+        } else {
+            connection.setSettings(applySettings(connection.getSettings(), params));
+        }
+        LOGGER.log(Level.INFO, "Connection {0} changed: {1}", new Object[] {id, connection.getSettings()});
+        StringBuilder text = new StringBuilder();
+        appendConnection(text, connection);
+        MetricsServer.sendText(exchange, 200, text.toString());
+    }
+
+    /**
+     * The given settings, changed by the delay and bandwidth parameters.
+     */
+    private static ConnectionSettings applySettings(ConnectionSettings settings, Map<String, String> params) {
+        DelayProfile delayUp = settings.getDelayUp();
+        DelayProfile delayDown = settings.getDelayDown();
+        if (params.containsKey(DELAY_MS)) {
+            long delayMs = parseLong(params.get(DELAY_MS), DELAY_MS);
+            if (delayMs < 0) {
+                throw new IllegalArgumentException("Invalid " + DELAY_MS + ": " + delayMs);
+            }
+            delayUp = DelayProfile.constant(delayMs);
+            delayDown = delayUp;
+        }
+        if (params.containsKey(DELAY_UP)) {
+            delayUp = DelayProfile.parse(params.get(DELAY_UP));
+        }
+        if (params.containsKey(DELAY_DOWN)) {
+            delayDown = DelayProfile.parse(params.get(DELAY_DOWN));
+        }
+        long bandwidthUp = settings.getBandwidthUp();
+        long bandwidthDown = settings.getBandwidthDown();
+        if (params.containsKey(BANDWIDTH_UP)) {
+            bandwidthUp = Utils.parseRate(params.get(BANDWIDTH_UP));
+        }
+        if (params.containsKey(BANDWIDTH_DOWN)) {
+            bandwidthDown = Utils.parseRate(params.get(BANDWIDTH_DOWN));
+        }
+        return settings.withDelays(delayUp, delayDown).withBandwidths(bandwidthUp, bandwidthDown);
+    }
+
+    private static void appendRoute(StringBuilder text, Route route) {
+        ProxyConfig config = route.getConfig();
+        text.append(config.getLocalPort()).append(' ').append(config.getRemoteHost()).append(':')
+                .append(config.getRemotePort()).append(' ').append(config.getSettings())
+                .append(" globalBandwidthUp=").append(config.getGlobalBandwidthUp())
+                .append(" globalBandwidthDown=").append(config.getGlobalBandwidthDown());
+        if (config.getProtocol() != null) {
+            text.append(" protocol=").append(config.getProtocol());
+        }
+        text.append(" connections=").append(route.getConnections().size()).append('\n');
+    }
+
+    private static void appendConnection(StringBuilder text, ProxiedConnection connection) {
+        text.append(connection.getId()).append(' ').append(connection.getRoute().getConfig().getLocalPort())
+                .append(' ').append(connection.getClient())
+                .append(" queuedUp=").append(connection.getQueuedBytesUp())
+                .append(" queuedDown=").append(connection.getQueuedBytesDown())
+                .append(" bytesUp=").append(connection.getBytesUp())
+                .append(" bytesDown=").append(connection.getBytesDown())
+                .append(' ').append(connection.hasOwnSettings() ? "own" : "route")
+                .append(' ').append(connection.getSettings()).append('\n');
+    }
+
+    private Route findRoute(long localPort) {
+        for (Route route : routes) {
+            if (route.getConfig().getLocalPort() == localPort) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    private ProxiedConnection findConnection(long id) {
+        for (Route route : routes) {
+            ProxiedConnection connection = route.getConnection(id);
+            if (connection != null) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The path after the context, without slashes, or null if there is none.
+     */
+    private static String getId(HttpExchange exchange, String context) {
+        String path = exchange.getRequestURI().getPath().substring(context.length());
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.length() == 0 ? null : path;
+    }
+
+    private static Map<String, String> getParams(HttpExchange exchange) throws UnsupportedEncodingException {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.length() == 0) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            params.put(name, value);
+        }
+        return params;
+    }
+
+    private static void checkParams(Map<String, String> params, String... known) {
+        for (String name : params.keySet()) {
+            boolean found = false;
+            for (String k : known) {
+                found |= k.equals(name);
+            }
+            if (!found) {
+                throw new IllegalArgumentException("Unknown parameter: " + name);
+            }
+        }
+    }
+
+    private static long parseLong(String value, String name) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A connection proxied by the ThreadEngine: the client channel, the channel to the remote
+ * host and one BlockingPipe per direction. The thread running the connection connects to the
+ * remote host, then reads from the client; the other directions get their own threads.
+ * Its timeouts are checked by the timeout thread of the engine.
+ */
+public class BlockingConnection implements Runnable, ProxiedConnection, TimerWheel.Task {
+    private static Logger LOGGER = Logger.getLogger(BlockingConnection.class.getName());
+
+    private long id;
+    private ThreadEngine engine;
+    private Route route;
+    private ProxyConfig config;
+    // null to follow the settings of the route
+    private volatile ConnectionSettings settings;
+    private String client;
+    private Metrics metrics;
+    private long acceptedNanos;
+
+    private SocketChannel clientChannel;
+    private volatile SocketChannel remoteChannel;
+    // client to remote
+    private volatile BlockingPipe upstream;
+    // remote to client
+    private volatile BlockingPipe downstream;
+
+    // null without timeouts
+    private volatile ConnectionTimeouts timeouts;
+    private TimerWheel.Timer timeoutTimer;
+
+    private AtomicBoolean closed;
+    // directions which passed their end of stream on
+    private AtomicInteger done;
+
+    public BlockingConnection(SocketChannel clientChannel, Route route, ThreadEngine engine, long acceptedNanos) {
+        this.clientChannel = clientChannel;
+        this.route = route;
+        this.engine = engine;
+        this.acceptedNanos = acceptedNanos;
+        id = Route.newConnectionId();
+        client = String.valueOf(clientChannel.socket().getRemoteSocketAddress());
+        config = route.getConfig();
+        metrics = engine.getMetrics();
+        closed = new AtomicBoolean();
+        done = new AtomicInteger();
+    }
+
+    public void run() {
+        route.register(this);
+        ConnectionTimeouts timeouts = new ConnectionTimeouts(config, acceptedNanos);
+        if (timeouts.isEnabled()) {
+            timeoutTimer = new TimerWheel.Timer(this);
+            this.timeouts = timeouts;
+            scheduleTimeout();
+        }
+        metrics.accepted(System.nanoTime() - acceptedNanos);
+        long connectStartNanos = System.nanoTime();
+        try {
+            Utils.setSocketOptions(clientChannel, config);
+            InetSocketAddress address = route.resolveRemote();
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(address.getHostString());
+            }
+            remoteChannel = SocketChannel.open();
+            Utils.setSocketOptions(remoteChannel, config);
+            remoteChannel.connect(address);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error connecting to remote host: {0}", e.getMessage());
+            metrics.connectFailed();
+            close();
+            return;
+        }
+        long connectedNanos = System.nanoTime();
+        metrics.connected(connectedNanos - connectStartNanos);
+        if (engine.getCaptureLog() != null) {
+            engine.getCaptureLog().open(id, config.getLocalPort(), connectedNanos);
+        }
+        if (engine.getTrace() != null) {
+            engine.getTrace().opened(this, connectedNanos);
+        }
+        LOGGER.log(Level.INFO, "Connected to remote host {0}", remoteChannel);
+        MessageDecoder[] decoders = config.newDecoders();
+        final BlockingPipe upstream = new BlockingPipe(this, clientChannel, remoteChannel, true,
+                decoders == null ? null : decoders[0]);
+        final BlockingPipe downstream = new BlockingPipe(this, remoteChannel, clientChannel, false,
+                decoders == null ? null : decoders[1]);
+        this.upstream = upstream;
+        this.downstream = downstream;
+        if (closed.get()) {
+            // aborted while connecting, the pipes and the remote channel may have been missed
+            upstream.close();
+            downstream.close();
+            close(remoteChannel);
+            return;
+        }
+        engine.newThread(new Runnable() {
+            public void run() {
+                upstream.write();
+            }
+        });
+        engine.newThread(new Runnable() {
+            public void run() {
+                downstream.read();
+            }
+        });
+        engine.newThread(new Runnable() {
+            public void run() {
+                downstream.write();
+            }
+        });
+        upstream.read();
+    }
+
+    /**
+     * A pipe read len bytes, or the end of its stream if len is negative.
+     */
+    void read(int len, long nanos) {
+        ConnectionTimeouts timeouts = this.timeouts;
+        if (timeouts != null) {
+            timeouts.active(nanos);
+            if (len < 0 && timeouts.halfClosed(nanos)) {
+                scheduleTimeout();
+            }
+        }
+    }
+
+    /**
+     * Timeout timer callback, on the timeout thread. The timer isn't moved on every read, so
+     * when it fires the connection may have been active since: the timer is then scheduled again.
+     */
+    public void expire(long nowNanos) {
+        if (closed.get()) {
+            return;
+        }
+        if (getQueuedBytesUp() > 0 || getQueuedBytesDown() > 0) {
+            // data waiting for its delay isn't idle
+            timeouts.active(nowNanos);
+        }
+        String expired = timeouts.getExpired(nowNanos);
+        if (expired == null) {
+            scheduleTimeout();
+            return;
+        }
+        LOGGER.log(Level.INFO, "Closing {0} after the {1} timeout", new Object[] {clientChannel, expired});
+        metrics.timedOut();
+        close();
+    }
+
+    private void scheduleTimeout() {
+        long deadlineNanos = timeouts.getDeadlineNanos();
+        if (deadlineNanos != Long.MAX_VALUE) {
+            engine.scheduleTimeout(timeoutTimer, deadlineNanos);
+        }
+    }
+
+    /**
+     * A direction passed its end of stream on. Closes the connection once both did.
+     */
+    void pipeDone() {
+        if (done.incrementAndGet() == 2) {
+            close();
+        }
+    }
+
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        metrics.closed();
+        route.unregister(this);
+        if (timeouts != null) {
+            engine.cancelTimeout(timeoutTimer);
+        }
+        if (engine.getTrace() != null) {
+            engine.getTrace().closed(this, System.nanoTime());
+        }
+        BlockingPipe upstream = this.upstream;
+        BlockingPipe downstream = this.downstream;
+        if (upstream != null) {
+            upstream.close();
+            downstream.close();
+            Utils.logVarArgs(LOGGER, Level.INFO, "Closing {0} after {1} bytes up in {2} chunks, {3} bytes down in {4} chunks",
+                    clientChannel, upstream.getBytesWritten(), upstream.getChunksWritten(),
+                    downstream.getBytesWritten(), downstream.getChunksWritten());
+        } else {
+            LOGGER.log(Level.INFO, "Closing {0}", clientChannel);
+        }
+        close(clientChannel);
+        if (remoteChannel != null) {
+            close(remoteChannel);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public ProxyConfig getConfig() {
+        return config;
+    }
+
+    ThreadEngine getEngine() {
+        return engine;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Route getRoute() {
+        return route;
+    }
+
+    public String getClient() {
+        return client;
+    }
+
+    public ConnectionSettings getSettings() {
+        ConnectionSettings own = settings;
+        return own != null ? own : config.getSettings();
+    }
+
+    public boolean hasOwnSettings() {
+        return settings != null;
+    }
+
+    public void setSettings(ConnectionSettings settings) {
+        this.settings = settings;
+    }
+
+    public long getQueuedBytesUp() {
+        BlockingPipe pipe = upstream;
+        return pipe == null ? 0 : pipe.getQueuedBytes();
+    }
+
+    public long getQueuedBytesDown() {
+        BlockingPipe pipe = downstream;
+        return pipe == null ? 0 : pipe.getQueuedBytes();
+    }
+
+    public long getBytesUp() {
+        BlockingPipe pipe = upstream;
+        return pipe == null ? 0 : pipe.getBytesWritten();
+    }
+
+    public long getBytesDown() {
+        BlockingPipe pipe = downstream;
+        return pipe == null ? 0 : pipe.getBytesWritten();
+    }
+
+    public void abort() {
+        LOGGER.log(Level.INFO, "Aborting {0}", clientChannel);
+        close();
+    }
+
+    private static void close(SocketChannel sc) {
+        try {
+            sc.close();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One direction of a BlockingConnection. The reader thread reads from the source and queues
+ * the data with its deadline, the writer thread waits for the head of the queue to be due and
+ * writes it to the target. Like TCPDataWriter, the queue is a FIFO ordered by deadline, and
+ * reading stops while more than the high watermark is queued.
+ */
+public class BlockingPipe {
+    private static Logger LOGGER = Logger.getLogger(BlockingPipe.class.getName());
+
+    private BlockingConnection connection;
+    private SocketChannel source;
+    private SocketChannel target;
+    private boolean up;
+    private ProxyConfig config;
+    private ThreadEngine engine;
+    private BufferPool buffers;
+    private FlowControl flowControl;
+    private Metrics.Direction metrics;
+    // null when not capturing
+    private CaptureLog capture;
+    private Trace trace;
+    private long highWatermark;
+    private long lowWatermark;
+    // the writer spins that close to a deadline instead of waiting, 0 to never spin
+    private long spinNanos;
+    // only used by the reader
+    private Shaper shaper;
+    // null without a protocol
+    private MessageFramer framer;
+    private TCPData[] read;
+
+    // guards the queue, signalled when it changes
+    private ReentrantLock lock;
+    private Condition changed;
+    private TCPData head;
+    private TCPData tail;
+    private volatile long queuedBytes;
+    // the writer is writing the head, it releases it
+    private boolean writing;
+    private boolean closed;
+
+    private volatile long bytesWritten;
+    private volatile long chunksWritten;
+
+    /**
+     * Up is true for the direction from the client to the remote host. The decoder finds the
+     * messages read from the source, null to delay each read.
+     */
+    public BlockingPipe(BlockingConnection connection, SocketChannel source, SocketChannel target, boolean up,
+            MessageDecoder decoder) {
+        this.connection = connection;
+        this.source = source;
+        this.target = target;
+        this.up = up;
+        config = connection.getConfig();
+        engine = connection.getEngine();
+        buffers = engine.getBufferPool();
+        flowControl = engine.getFlowControl();
+        metrics = up ? engine.getMetrics().getUp() : engine.getMetrics().getDown();
+        capture = engine.getCaptureLog();
+        trace = engine.getTrace();
+        highWatermark = config.getHighWatermark();
+        lowWatermark = config.getLowWatermark();
+        spinNanos = engine.getSpinNanos();
+        shaper = new Shaper(connection.getRoute(), up);
+        if (decoder != null) {
+            framer = new MessageFramer(decoder, shaper, up, metrics, buffers, null);
+            read = new TCPData[1];
+        }
+        lock = new ReentrantLock();
+        changed = lock.newCondition();
+    }
+
+    /**
+     * Reader thread: reads and queues data until the end of stream or the connection closes.
+     */
+    public void read() {
+        TCPData data = null;
+        try {
+            while (awaitRoom()) {
+                engine.awaitFlow();
+                data = buffers.acquire();
+                ByteBuffer buffer = data.getBuffer();
+                int len = source.read(buffer);
+                metrics.readCall();
+                if (len == 0) {
+                    buffers.release(data);
+                    data = null;
+                    continue;
+                }
+                long readNanos = System.nanoTime();
+                connection.read(len, readNanos);
+                // the delay is sampled for every chunk, or every message with a protocol, the settings
+                // can change while connections are open
+                long delayedUntilNanos = framer != null && len > 0 ? 0
+                        : shaper.getDeadlineNanos(Math.max(len, 0), readNanos, connection.getSettings());
+                if (len > 0) {
+                    buffer.flip();
+                }
+                if (capture != null) {
+                    capture.read(connection.getId(), config.getLocalPort(), up, readNanos, len < 0 ? null : buffer);
+                }
+                if (trace != null) {
+                    trace.read(connection, up, readNanos, buffer, len);
+                }
+                data.set(len, delayedUntilNanos);
+                if (framer != null && len > 0) {
+                    read[0] = data;
+                    data = null;
+                    int framed = framer.frame(read, 1, readNanos, connection.getSettings());
+                    read[0] = null;
+                    if (!addAll(framer.getChunks(), framed)) {
+                        return;
+                    }
+                    continue;
+                }
+                TCPData queued = data;
+                data = null;
+                if (!add(queued) || len < 0) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            if (!connection.isClosed()) {
+                LOGGER.log(Level.FINE, "Exception reading: {0}. Closing", e.getMessage());
+                connection.close();
+            }
+        } catch (InterruptedException e) {
+            connection.close();
+        } finally {
+            if (data != null) {
+                buffers.release(data);
+            }
+        }
+    }
+
+    /**
+     * Writer thread: writes the queued data once it is due, until the end of stream or the
+     * connection closes.
+     */
+    public void write() {
+        TCPData data = null;
+        try {
+            while ((data = awaitHead()) != null) {
+                if (data.isEndOfStream()) {
+                    closeOutput(target);
+                    if (trace != null) {
+                        trace.wrote(connection, up, System.nanoTime(), null, -1);
+                    }
+                    removeHead();
+                    connection.pipeDone();
+                    return;
+                }
+                ByteBuffer buffer = data.getBuffer();
+                while (buffer.hasRemaining()) {
+                    int written = target.write(buffer);
+                    metrics.writeCall();
+                    if (trace != null) {
+                        trace.wrote(connection, up, System.nanoTime(), buffer, written);
+                    }
+                }
+                metrics.written(data.getLen(), System.nanoTime() - data.getDelayedUntilNanos());
+                bytesWritten += data.getLen();
+                chunksWritten++;
+                removeHead();
+                data = null;
+            }
+        } catch (IOException e) {
+            if (!connection.isClosed()) {
+                LOGGER.log(Level.FINE, "Exception writing: {0}. Closing", e.getMessage());
+                connection.close();
+            }
+            if (data != null) {
+                removeHead();
+            }
+        } catch (InterruptedException e) {
+            connection.close();
+            if (data != null) {
+                removeHead();
+            }
+        }
+    }
+
+    /**
+     * Waits until the queue is under the watermarks. Returns false if the connection closed.
+     */
+    private boolean awaitRoom() throws InterruptedException {
+        lock.lock();
+        try {
+            if (queuedBytes > highWatermark) {
+                while (!closed && queuedBytes > lowWatermark) {
+                    changed.await();
+                }
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean add(TCPData data) {
+        lock.lock();
+        try {
+            if (closed) {
+                buffers.release(data);
+                return false;
+            }
+            if (tail == null) {
+                head = data;
+            } else {
+                tail.next = data;
+            }
+            tail = data;
+            if (!data.isEndOfStream()) {
+                queuedBytes += data.getLen();
+                flowControl.add(data.getLen());
+            }
+            metrics.queued();
+            changed.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the chunks a read was split into. Returns false if the connection closed, the
+     * chunks are then released.
+     */
+    private boolean addAll(TCPData[] chunks, int count) {
+        boolean open = true;
+        for (int i = 0; i < count; i++) {
+            if (open) {
+                open = add(chunks[i]);
+            } else {
+                buffers.release(chunks[i]);
+            }
+            chunks[i] = null;
+        }
+        return open;
+    }
+
+    /**
+     * Waits until the head of the queue is due and returns it, or null if the connection closed.
+     * Within spinNanos of the deadline, spins with the lock released instead of waiting, as the
+     * wait overshoots its timeout.
+     */
+    private TCPData awaitHead() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed) {
+                if (head == null) {
+                    changed.await();
+                    continue;
+                }
+                long waitNanos = head.getDelayedUntilNanos() - System.nanoTime();
+                if (waitNanos <= 0) {
+                    writing = true;
+                    return head;
+                }
+                if (waitNanos > spinNanos) {
+                    changed.awaitNanos(waitNanos - spinNanos);
+                } else {
+                    lock.unlock();
+                    Thread.onSpinWait();
+                    lock.lock();
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeHead() {
+        lock.lock();
+        try {
+            TCPData data = head;
+            writing = false;
+            head = data.next;
+            data.next = null;
+            if (head == null) {
+                tail = null;
+            }
+            if (!data.isEndOfStream()) {
+                queuedBytes -= data.getLen();
+                flowControl.remove(data.getLen());
+            }
+            metrics.dequeued();
+            buffers.release(data);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all queued data, except the chunk being written which the writer releases.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            TCPData data = writing ? head.next : head;
+            while (data != null) {
+                TCPData next = data.next;
+                data.next = null;
+                if (!data.isEndOfStream()) {
+                    queuedBytes -= data.getLen();
+                    flowControl.remove(data.getLen());
+                }
+                metrics.dequeued();
+                buffers.release(data);
+                data = next;
+            }
+            if (writing) {
+                head.next = null;
+                tail = head;
+            } else {
+                head = null;
+                tail = null;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queued bytes, may be slightly out of date.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getChunksWritten() {
+        return chunksWritten;
+    }
+
+    private static void closeOutput(SocketChannel sc) {
+        Socket socket = sc.socket();
+        if (socket.isClosed() || socket.isOutputShutdown()) {
+            return;
+        }
+        try {
+            LOGGER.log(Level.FINE, "Closing output {0}", sc);
+            socket.shutdownOutput();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+}
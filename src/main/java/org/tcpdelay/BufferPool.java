@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers, each one wrapped in the TCPData carrying it through the delay.
+ * Buffers are sliced out of large direct slabs and never freed, so once the pool has grown
+ * to the working set the read and write path doesn't allocate.
+ * Each event loop takes and returns buffers through its own cache, and only goes to the
+ * shared free list, in batches, when its cache is empty or full. Threads without a cache
+ * use the shared free list directly.
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 16384;
+    private static final int SLAB_BUFFERS = 64;
+    private static final int CACHE_SIZE = 256;
+    private static final int BATCH_SIZE = 64;
+
+    private TCPData[] free;
+    private int freeCount;
+    private List<TCPData> all;
+    private List<Cache> caches;
+    private AtomicLong doubleReleases;
+
+    public BufferPool() {
+        free = new TCPData[SLAB_BUFFERS * 4];
+        all = new ArrayList<TCPData>();
+        caches = new ArrayList<Cache>();
+        doubleReleases = new AtomicLong();
+    }
+
+    /**
+     * Creates a cache to be used by a single thread.
+     */
+    public synchronized Cache newCache() {
+        Cache cache = new Cache();
+        caches.add(cache);
+        return cache;
+    }
+
+    /**
+     * Returns an empty buffer straight from the shared free list, for threads without a cache.
+     */
+    public TCPData acquire() {
+        TCPData data;
+        synchronized (this) {
+            if (freeCount == 0) {
+                allocateSlab();
+            }
+            data = free[--freeCount];
+            free[freeCount] = null;
+        }
+        data.inUse = true;
+        data.getBuffer().clear();
+        return data;
+    }
+
+    /**
+     * Gives a buffer taken with acquire() back. The buffer must not be used afterwards.
+     */
+    public void release(TCPData data) {
+        if (!data.inUse) {
+            doubleReleases.incrementAndGet();
+            return;
+        }
+        data.inUse = false;
+        data.owner = null;
+        data.next = null;
+        synchronized (this) {
+            if (freeCount == free.length) {
+                TCPData[] larger = new TCPData[free.length * 2];
+                System.arraycopy(free, 0, larger, 0, freeCount);
+                free = larger;
+            }
+            free[freeCount++] = data;
+        }
+    }
+
+    /**
+     * Number of buffers allocated so far.
+     */
+    public synchronized int getCapacity() {
+        return all.size();
+    }
+
+    /**
+     * Number of buffers taken out of the pool. Approximate while the loops are running.
+     */
+    public synchronized int getInUse() {
+        int available = freeCount;
+        for (Cache cache : caches) {
+            available += cache.count;
+        }
+        return all.size() - available;
+    }
+
+    /**
+     * Bytes of direct memory held by the pool.
+     */
+    public long getDirectMemory() {
+        return (long) getCapacity() * BUFFER_SIZE;
+    }
+
+    /**
+     * Number of buffers released more than once.
+     */
+    public long getDoubleReleases() {
+        return doubleReleases.get();
+    }
+
+    /**
+     * Number of buffers still in use by connections that are closed: they will
+     * never come back to the pool. Scans the whole pool.
+     */
+    public int getLeaks() {
+        TCPData[] chunks;
+        synchronized (this) {
+            chunks = all.toArray(new TCPData[all.size()]);
+        }
+        int leaks = 0;
+        for (TCPData data : chunks) {
+            TCPConnection owner = data.owner;
+            if (data.inUse && owner != null && owner.isClosed()) {
+                leaks++;
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Drops all the buffers, their direct memory is freed once they are garbage collected. Only
+     * called when the threads using the pool have stopped.
+     */
+    public synchronized void clear() {
+        all.clear();
+        Arrays.fill(free, 0, freeCount, null);
+        freeCount = 0;
+        for (Cache cache : caches) {
+            Arrays.fill(cache.chunks, 0, cache.count, null);
+            cache.count = 0;
+        }
+    }
+
+    public String toString() {
+        return "capacity=" + getCapacity() + " inUse=" + getInUse() + " leaks=" + getLeaks()
+                + " doubleReleases=" + getDoubleReleases();
+    }
+
+    private synchronized int take(TCPData[] chunks, int max) {
+        if (freeCount == 0) {
+            allocateSlab();
+        }
+        int n = Math.min(max, freeCount);
+        for (int i = 0; i < n; i++) {
+            chunks[i] = free[--freeCount];
+            free[freeCount] = null;
+        }
+        return n;
+    }
+
+    private synchronized void give(TCPData[] chunks, int from, int n) {
+        if (freeCount + n > free.length) {
+            TCPData[] larger = new TCPData[Math.max(free.length * 2, freeCount + n)];
+            System.arraycopy(free, 0, larger, 0, freeCount);
+            free = larger;
+        }
+        for (int i = from; i < from + n; i++) {
+            free[freeCount++] = chunks[i];
+            chunks[i] = null;
+        }
+    }
+
+    private void allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_BUFFERS * BUFFER_SIZE);
+        if (free.length < freeCount + SLAB_BUFFERS) {
+            TCPData[] larger = new TCPData[free.length + SLAB_BUFFERS * 4];
+            System.arraycopy(free, 0, larger, 0, freeCount);
+            free = larger;
+        }
+        for (int i = 0; i < SLAB_BUFFERS; i++) {
+            slab.limit((i + 1) * BUFFER_SIZE);
+            slab.position(i * BUFFER_SIZE);
+            TCPData data = new TCPData(slab.slice());
+            all.add(data);
+            free[freeCount++] = data;
+        }
+    }
+
+    /**
+     * Buffers of one thread. Not thread safe.
+     */
+    public class Cache {
+        private TCPData[] chunks = new TCPData[CACHE_SIZE];
+        private int count;
+
+        /**
+         * Returns an empty buffer, ready to be read into.
+         */
+        public TCPData acquire() {
+            if (count == 0) {
+                count = take(chunks, BATCH_SIZE);
+            }
+            TCPData data = chunks[--count];
+            chunks[count] = null;
+            data.inUse = true;
+            data.getBuffer().clear();
+            return data;
+        }
+
+        /**
+         * Gives a buffer back. The buffer must not be used afterwards.
+         */
+        public void release(TCPData data) {
+            if (!data.inUse) {
+                doubleReleases.incrementAndGet();
+                return;
+            }
+            data.inUse = false;
+            data.owner = null;
+            data.next = null;
+            if (count == chunks.length) {
+                count -= BATCH_SIZE;
+                give(chunks, count, BATCH_SIZE);
+            }
+            chunks[count++] = data;
+        }
+    }
+}
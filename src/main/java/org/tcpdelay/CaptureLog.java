@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of the data read by the proxy, written to memory-mapped segment files of
+ * SEGMENT_SIZE bytes named &lt;run&gt;-&lt;name&gt;-&lt;sequence&gt;.cap. Each event loop has its own log, so
+ * capturing is a copy into mapped memory without contention; the next segment is mapped, and
+ * its pages touched, in the background while the current one fills. Read by CaptureReader.
+ * <p>
+ * A segment starts with a header: the magic TCPDCAP1, the run (milliseconds since the epoch
+ * when the process started capturing), then the time since the epoch in milliseconds and
+ * System.nanoTime() when the segment was created. Then come the records: type (1 byte),
+ * length of the data (4), System.nanoTime() of the read (8), connection id (8), local port of
+ * the route (4), then the data. The type is written last, so a record cut short by the end of
+ * the process reads as the end of the segment, like the zeros after the last record.
+ * <p>
+ * Thread safe: the virtual engine shares one log between all the connections.
+ */
+public class CaptureLog {
+    private static Logger LOGGER = Logger.getLogger(CaptureLog.class.getName());
+
+    public static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final byte[] MAGIC = {'T', 'C', 'P', 'D', 'C', 'A', 'P', '1'};
+    public static final int SEGMENT_HEADER_SIZE = 32;
+    public static final int RECORD_HEADER_SIZE = 25;
+
+    public static final byte END = 0;
+    // the proxy connected to the remote host
+    public static final byte OPEN = 1;
+    public static final byte UP = 2;
+    public static final byte DOWN = 3;
+    public static final byte UP_END = 4;
+    public static final byte DOWN_END = 5;
+
+    // all the logs of a process are part of the same run, connection ids are unique in a run
+    private static final long RUN = System.currentTimeMillis();
+    private static final int PAGE_SIZE = 4096;
+    private static ExecutorService mapper;
+
+    private File dir;
+    private String name;
+    private int sequence;
+    private MappedByteBuffer segment;
+    private Future<MappedByteBuffer> nextSegment;
+    private long bytes;
+    private long records;
+    private boolean closed;
+    // closes the log if the process exits first, removed once closed
+    private Thread closeHook;
+
+    /**
+     * Creates the directory if needed and maps the first segment.
+     */
+    public CaptureLog(File dir, String name) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create the capture directory " + dir);
+        }
+        this.dir = dir;
+        this.name = name;
+        segment = map(sequence++);
+        nextSegment = prepare(sequence++);
+        closeHook = new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, "tcpdelay-capture-close");
+        Runtime.getRuntime().addShutdownHook(closeHook);
+    }
+
+    /**
+     * The proxy connected the given connection to the remote host.
+     */
+    public void open(long connectionId, int localPort, long nanos) {
+        append(OPEN, connectionId, localPort, nanos, null);
+    }
+
+    /**
+     * Data read from the client if up, from the remote host otherwise: the remaining bytes of the
+     * buffer, whose position isn't changed. A null buffer is the end of the stream.
+     */
+    public void read(long connectionId, int localPort, boolean up, long nanos, ByteBuffer buffer) {
+        if (buffer == null) {
+            append(up ? UP_END : DOWN_END, connectionId, localPort, nanos, null);
+        } else {
+            append(up ? UP : DOWN, connectionId, localPort, nanos, buffer);
+        }
+    }
+
+    private synchronized void append(byte type, long connectionId, int localPort, long nanos, ByteBuffer buffer) {
+        if (closed) {
+            return;
+        }
+        int len = buffer == null ? 0 : buffer.remaining();
+        if (segment.remaining() < RECORD_HEADER_SIZE + len && !nextSegment()) {
+            return;
+        }
+        int start = segment.position();
+        segment.position(start + 1);
+        segment.putInt(len);
+        segment.putLong(nanos);
+        segment.putLong(connectionId);
+        segment.putInt(localPort);
+        if (buffer != null) {
+            int position = buffer.position();
+            segment.put(buffer);
+            buffer.position(position);
+        }
+        segment.put(start, type);
+        bytes += len;
+        records++;
+    }
+
+    /**
+     * Switches to the segment mapped in the background, only waiting for it if the log fills
+     * faster than segments are mapped. Stops capturing if it can't.
+     */
+    private boolean nextSegment() {
+        try {
+            segment = nextSegment.get();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Unable to map a capture segment, stopping the capture: {0}", e.getMessage());
+            closed = true;
+            Utils.removeShutdownHook(closeHook);
+            return false;
+        }
+        nextSegment = prepare(sequence++);
+        return true;
+    }
+
+    private Future<MappedByteBuffer> prepare(final int sequence) {
+        return getMapper().submit(new Callable<MappedByteBuffer>() {
+            public MappedByteBuffer call() throws IOException {
+                MappedByteBuffer buffer = map(sequence);
+                // fault the pages in now rather than on the event loop
+                for (int i = SEGMENT_HEADER_SIZE; i < buffer.capacity(); i += PAGE_SIZE) {
+                    buffer.put(i, (byte) 0);
+                }
+                return buffer;
+            }
+        });
+    }
+
+    private MappedByteBuffer map(int sequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(getFile(sequence).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            buffer.put(MAGIC);
+            buffer.putLong(RUN);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putLong(System.nanoTime());
+            buffer.position(SEGMENT_HEADER_SIZE);
+            return buffer;
+        }
+    }
+
+    private File getFile(int sequence) {
+        return new File(dir, RUN + "-" + name + "-" + sequence + ".cap");
+    }
+
+    private static synchronized ExecutorService getMapper() {
+        if (mapper == null) {
+            mapper = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "tcpdelay-capture");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mapper;
+    }
+
+    /**
+     * Stops capturing and writes the current segment to disk.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Utils.removeShutdownHook(closeHook);
+        segment.force();
+        // the segment mapped in advance was never used
+        try {
+            nextSegment.get();
+        } catch (Exception e) {
+            // do nothing
+        }
+        getFile(sequence - 1).delete();
+        Utils.logVarArgs(LOGGER, Level.INFO, "Captured {0} bytes in {1} records to {2}", bytes, records,
+                new File(dir, RUN + "-" + name + "-*.cap"));
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the segments written by CaptureLog in a directory, and groups their records by
+ * connection. The data isn't copied: it stays in the read-only mapped segments.
+ */
+public class CaptureReader {
+    private static Logger LOGGER = Logger.getLogger(CaptureReader.class.getName());
+
+    /**
+     * The records of one captured connection, in the order they were read.
+     */
+    public static class Connection {
+        private long run;
+        private long id;
+        private int localPort;
+        private byte[] types;
+        private long[] nanos;
+        private ByteBuffer[] data;
+        private int size;
+
+        Connection(long run, long id, int localPort) {
+            this.run = run;
+            this.id = id;
+            this.localPort = localPort;
+            types = new byte[8];
+            nanos = new long[8];
+            data = new ByteBuffer[8];
+        }
+
+        void add(byte type, long nanos, ByteBuffer data) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                this.nanos = Arrays.copyOf(this.nanos, size * 2);
+                this.data = Arrays.copyOf(this.data, size * 2);
+            }
+            types[size] = type;
+            this.nanos[size] = nanos;
+            this.data[size] = data;
+            size++;
+        }
+
+        /**
+         * Sorts the records by time: the threads of the virtual engine may log them slightly out of order.
+         */
+        void sort() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(nanos[a], nanos[b]);
+                }
+            });
+            byte[] sortedTypes = new byte[size];
+            long[] sortedNanos = new long[size];
+            ByteBuffer[] sortedData = new ByteBuffer[size];
+            for (int i = 0; i < size; i++) {
+                sortedTypes[i] = types[order[i]];
+                sortedNanos[i] = nanos[order[i]];
+                sortedData[i] = data[order[i]];
+            }
+            types = sortedTypes;
+            nanos = sortedNanos;
+            data = sortedData;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getLocalPort() {
+            return localPort;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * One of the CaptureLog record types.
+         */
+        public byte getType(int i) {
+            return types[i];
+        }
+
+        public long getNanos(int i) {
+            return nanos[i];
+        }
+
+        /**
+         * Number of bytes of the record, 0 for the end of a stream.
+         */
+        public int getLen(int i) {
+            return data[i] == null ? 0 : data[i].remaining();
+        }
+
+        /**
+         * Data of the record, to be duplicated before reading it. Null without data.
+         */
+        public ByteBuffer getData(int i) {
+            return data[i];
+        }
+
+        /**
+         * Time of the first record, usually the connection to the remote host.
+         */
+        public long getStartNanos() {
+            return size == 0 ? 0 : nanos[0];
+        }
+
+        private long getRun() {
+            return run;
+        }
+
+        public String toString() {
+            return run + "-" + id;
+        }
+    }
+
+    private Map<Integer, List<Connection>> connections;
+    private long bytes;
+    private long records;
+
+    /**
+     * Reads all the segments of the directory.
+     */
+    public CaptureReader(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to read the capture directory " + dir);
+        }
+        // by run and connection id, in the order the connections were first seen
+        Map<Long, Map<Long, Connection>> runs = new HashMap<Long, Map<Long, Connection>>();
+        Arrays.sort(files);
+        int segments = 0;
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(".cap")) {
+                read(file, runs);
+                segments++;
+            }
+        }
+        if (segments == 0) {
+            throw new IOException("No capture in " + dir);
+        }
+        List<Connection> all = new ArrayList<Connection>();
+        for (Map<Long, Connection> run : runs.values()) {
+            all.addAll(run.values());
+        }
+        for (Connection connection : all) {
+            connection.sort();
+        }
+        Collections.sort(all, new Comparator<Connection>() {
+            public int compare(Connection a, Connection b) {
+                int byRun = Long.compare(a.getRun(), b.getRun());
+                return byRun != 0 ? byRun : Long.compare(a.getStartNanos(), b.getStartNanos());
+            }
+        });
+        connections = new LinkedHashMap<Integer, List<Connection>>();
+        for (Connection connection : all) {
+            List<Connection> route = connections.get(connection.getLocalPort());
+            if (route == null) {
+                route = new ArrayList<Connection>();
+                connections.put(connection.getLocalPort(), route);
+            }
+            route.add(connection);
+        }
+        Utils.logVarArgs(LOGGER, Level.INFO, "Read {0} connections, {1} records and {2} bytes from {3} segments in {4}",
+                all.size(), records, bytes, segments, dir);
+    }
+
+    private void read(File file, Map<Long, Map<Long, Connection>> runs) throws IOException {
+        MappedByteBuffer segment;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        byte[] magic = new byte[CaptureLog.MAGIC.length];
+        if (segment.remaining() < CaptureLog.SEGMENT_HEADER_SIZE) {
+            throw new IOException("Not a capture segment: " + file);
+        }
+        segment.get(magic);
+        if (!Arrays.equals(magic, CaptureLog.MAGIC)) {
+            throw new IOException("Not a capture segment: " + file);
+        }
+        long run = segment.getLong();
+        Map<Long, Connection> connections = runs.get(run);
+        if (connections == null) {
+            connections = new LinkedHashMap<Long, Connection>();
+            runs.put(run, connections);
+        }
+        segment.position(CaptureLog.SEGMENT_HEADER_SIZE);
+        while (segment.remaining() >= CaptureLog.RECORD_HEADER_SIZE) {
+            int start = segment.position();
+            byte type = segment.get();
+            if (type == CaptureLog.END) {
+                break;
+            }
+            int len = segment.getInt();
+            long nanos = segment.getLong();
+            long id = segment.getLong();
+            int localPort = segment.getInt();
+            if (type > CaptureLog.DOWN_END || len < 0 || len > segment.remaining()) {
+                LOGGER.log(Level.WARNING, "Invalid record at {0} in {1}, skipping the rest of the segment",
+                        new Object[] {String.valueOf(start), file});
+                break;
+            }
+            ByteBuffer data = null;
+            if (type == CaptureLog.UP || type == CaptureLog.DOWN) {
+                data = segment.slice(segment.position(), len).asReadOnlyBuffer();
+            }
+            segment.position(segment.position() + len);
+            Connection connection = connections.get(id);
+            if (connection == null) {
+                connection = new Connection(run, id, localPort);
+                connections.put(id, connection);
+            }
+            connection.add(type, nanos, data);
+            bytes += len;
+            records++;
+        }
+    }
+
+    /**
+     * The captured connections of the given local port, in the order they were opened.
+     */
+    public List<Connection> getConnections(int localPort) {
+        List<Connection> route = connections.get(localPort);
+        return route == null ? Collections.<Connection>emptyList() : route;
+    }
+
+    /**
+     * The local ports with captured connections.
+     */
+    public List<Integer> getLocalPorts() {
+        return new ArrayList<Integer>(connections.keySet());
+    }
+}
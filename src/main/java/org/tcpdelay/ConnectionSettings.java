@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+/**
+ * Delays and bandwidths applied to a connection, and the remote host and shared bandwidths of
+ * its route. Immutable: a change publishes a new instance, which the connections pick up for the
+ * next chunk they read without locking, and the settings of both directions, the remote host and
+ * the shared links of a route always change together.
+ */
+public final class ConnectionSettings {
+    public static final ConnectionSettings DEFAULT = new ConnectionSettings(DelayProfile.constant(0),
+            DelayProfile.constant(0), 0, 0);
+
+    // client to remote host, and back
+    private final DelayProfile delayUp;
+    private final DelayProfile delayDown;
+    // bits per second, 0 for no limit
+    private final long bandwidthUp;
+    private final long bandwidthDown;
+    // where the route connects its new clients, only used from the settings of the route
+    private final String remoteHost;
+    private final int remotePort;
+    // bits per second shared by all the connections of the route, 0 for no limit, only used
+    // from the settings of the route
+    private final long globalBandwidthUp;
+    private final long globalBandwidthDown;
+
+    public ConnectionSettings(DelayProfile delayUp, DelayProfile delayDown, long bandwidthUp, long bandwidthDown) {
+        this(delayUp, delayDown, bandwidthUp, bandwidthDown, null, 0, 0, 0);
+    }
+
+    private ConnectionSettings(DelayProfile delayUp, DelayProfile delayDown, long bandwidthUp, long bandwidthDown,
+            String remoteHost, int remotePort, long globalBandwidthUp, long globalBandwidthDown) {
+        if (delayUp == null || delayDown == null) {
+            throw new IllegalArgumentException("Missing delay profile");
+        }
+        if (bandwidthUp < 0 || bandwidthDown < 0) {
+            throw new IllegalArgumentException("Invalid bandwidth: " + Math.min(bandwidthUp, bandwidthDown));
+        }
+        if (globalBandwidthUp < 0 || globalBandwidthDown < 0) {
+            throw new IllegalArgumentException("Invalid bandwidth: " + Math.min(globalBandwidthUp, globalBandwidthDown));
+        }
+        this.delayUp = delayUp;
+        this.delayDown = delayDown;
+        this.bandwidthUp = bandwidthUp;
+        this.bandwidthDown = bandwidthDown;
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+        this.globalBandwidthUp = globalBandwidthUp;
+        this.globalBandwidthDown = globalBandwidthDown;
+    }
+
+    public DelayProfile getDelayUp() {
+        return delayUp;
+    }
+
+    public DelayProfile getDelayDown() {
+        return delayDown;
+    }
+
+    public DelayProfile getDelay(boolean up) {
+        return up ? delayUp : delayDown;
+    }
+
+    public long getBandwidthUp() {
+        return bandwidthUp;
+    }
+
+    public long getBandwidthDown() {
+        return bandwidthDown;
+    }
+
+    public long getBandwidth(boolean up) {
+        return up ? bandwidthUp : bandwidthDown;
+    }
+
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    public long getGlobalBandwidthUp() {
+        return globalBandwidthUp;
+    }
+
+    public long getGlobalBandwidthDown() {
+        return globalBandwidthDown;
+    }
+
+    public long getGlobalBandwidth(boolean up) {
+        return up ? globalBandwidthUp : globalBandwidthDown;
+    }
+
+    public ConnectionSettings withDelays(DelayProfile delayUp, DelayProfile delayDown) {
+        return new ConnectionSettings(delayUp, delayDown, bandwidthUp, bandwidthDown, remoteHost, remotePort,
+                globalBandwidthUp, globalBandwidthDown);
+    }
+
+    public ConnectionSettings withBandwidths(long bandwidthUp, long bandwidthDown) {
+        return new ConnectionSettings(delayUp, delayDown, bandwidthUp, bandwidthDown, remoteHost, remotePort,
+                globalBandwidthUp, globalBandwidthDown);
+    }
+
+    public ConnectionSettings withRemote(String remoteHost, int remotePort) {
+        return new ConnectionSettings(delayUp, delayDown, bandwidthUp, bandwidthDown, remoteHost, remotePort,
+                globalBandwidthUp, globalBandwidthDown);
+    }
+
+    public ConnectionSettings withGlobalBandwidths(long globalBandwidthUp, long globalBandwidthDown) {
+        return new ConnectionSettings(delayUp, delayDown, bandwidthUp, bandwidthDown, remoteHost, remotePort,
+                globalBandwidthUp, globalBandwidthDown);
+    }
+
+    public String toString() {
+        return "delayUp=" + delayUp + " delayDown=" + delayDown + " bandwidthUp=" + bandwidthUp
+                + " bandwidthDown=" + bandwidthDown;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+/**
+ * Idle, half-close and lifetime timeouts of a connection, all checked by one timer of a
+ * timer wheel. Reads only record their time: the timer is scheduled for the earliest timeout
+ * when the connection opens or half closes, and when it fires, either a timeout is over or
+ * the timer is scheduled again for the new earliest one. So a busy connection doesn't move
+ * its timer on every read.
+ */
+public class ConnectionTimeouts {
+    private static final long NONE = Long.MAX_VALUE;
+
+    // 0 when the timeout isn't set
+    private long idleNanos;
+    private long halfCloseNanos;
+    private long lifetimeNanos;
+
+    private long openedNanos;
+    private volatile long activeNanos;
+    private volatile long halfClosedNanos;
+    private volatile boolean halfClosed;
+
+    public ConnectionTimeouts(ProxyConfig config, long openedNanos) {
+        idleNanos = config.getIdleTimeoutMs() * 1000000;
+        halfCloseNanos = config.getHalfCloseTimeoutMs() * 1000000;
+        lifetimeNanos = config.getMaxLifetimeMs() * 1000000;
+        this.openedNanos = openedNanos;
+        activeNanos = openedNanos;
+    }
+
+    /**
+     * True if at least one timeout is set.
+     */
+    public boolean isEnabled() {
+        return idleNanos > 0 || halfCloseNanos > 0 || lifetimeNanos > 0;
+    }
+
+    /**
+     * Data was read, or is still waiting to be written.
+     */
+    public void active(long nowNanos) {
+        activeNanos = nowNanos;
+    }
+
+    /**
+     * One side closed its output. Returns true the first time.
+     */
+    public boolean halfClosed(long nowNanos) {
+        if (halfClosed) {
+            return false;
+        }
+        halfClosedNanos = nowNanos;
+        halfClosed = true;
+        return true;
+    }
+
+    /**
+     * Earliest time a timeout can be over, Long.MAX_VALUE if no timeout applies.
+     */
+    public long getDeadlineNanos() {
+        long deadline = NONE;
+        if (lifetimeNanos > 0) {
+            deadline = Math.min(deadline, openedNanos + lifetimeNanos);
+        }
+        if (idleNanos > 0) {
+            deadline = Math.min(deadline, activeNanos + idleNanos);
+        }
+        if (halfCloseNanos > 0 && halfClosed) {
+            deadline = Math.min(deadline, halfClosedNanos + halfCloseNanos);
+        }
+        return deadline;
+    }
+
+    /**
+     * Name of the timeout over at the given time, null if none is.
+     */
+    public String getExpired(long nowNanos) {
+        if (lifetimeNanos > 0 && nowNanos - openedNanos >= lifetimeNanos) {
+            return "lifetime";
+        }
+        if (idleNanos > 0 && nowNanos - activeNanos >= idleNanos) {
+            return "idle";
+        }
+        if (halfCloseNanos > 0 && halfClosed && nowNanos - halfClosedNanos >= halfCloseNanos) {
+            return "half-close";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Distribution of the delay applied to each chunk of data. Profiles are immutable and shared
+ * by the event loops. Sampling uses the random generator of the calling thread, so it doesn't
+ * allocate or contend between loops.
+ * <p>
+ * Profiles are described as
+ * <ul>
+ * <li>{@code <ms>}: constant delay,</li>
+ * <li>{@code uniform:<min ms>,<max ms>},</li>
+ * <li>{@code normal:<mean ms>,<standard deviation ms>}, never below 0,</li>
+ * <li>{@code pareto:<min ms>,<shape>[,<max ms>]}: long tail, heavier as the shape goes down to 1,</li>
+ * <li>{@code file:<path>}: empirical distribution, one {@code <ms> [<weight>]} line per value.</li>
+ * </ul>
+ * Times are in milliseconds, with decimals, or in microseconds with a {@code us} suffix, like
+ * {@code uniform:100us,500us}.
+ */
+public abstract class DelayProfile {
+    private static final double NANOS_PER_MS = 1000000.0;
+
+    private String description;
+
+    protected DelayProfile(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Returns the delay for the next chunk.
+     */
+    public abstract long nextDelayNanos();
+
+    /**
+     * True if all the chunks get the same delay.
+     */
+    public boolean isConstant() {
+        return false;
+    }
+
+    public String toString() {
+        return description;
+    }
+
+    public static DelayProfile constant(long delayMs) {
+        return new Constant(delayMs * 1000000, String.valueOf(delayMs));
+    }
+
+    public static DelayProfile constantMicros(long delayUs) {
+        return new Constant(delayUs * 1000, delayUs + "us");
+    }
+
+    /**
+     * Parses a profile description. Throws an IllegalArgumentException if it isn't valid.
+     */
+    public static DelayProfile parse(String spec) {
+        int colon = spec.indexOf(':');
+        if (colon < 0) {
+            double delayMs = parseMs(spec, spec);
+            return new Constant(toNanos(delayMs), spec);
+        }
+        String type = spec.substring(0, colon).toLowerCase();
+        String params = spec.substring(colon + 1);
+        if (type.equals("file")) {
+            return Empirical.load(params);
+        }
+        String[] values = params.split(",");
+        if (type.equals("uniform") && values.length == 2) {
+            double min = parseMs(values[0], spec);
+            double max = parseMs(values[1], spec);
+            if (max < min) {
+                throw new IllegalArgumentException("Maximum below minimum in delay profile " + spec);
+            }
+            return new Uniform(toNanos(min), toNanos(max), spec);
+        }
+        if (type.equals("normal") && values.length == 2) {
+            return new Normal(parseMs(values[0], spec) * NANOS_PER_MS, parseMs(values[1], spec) * NANOS_PER_MS, spec);
+        }
+        if (type.equals("pareto") && (values.length == 2 || values.length == 3)) {
+            double min = parseMs(values[0], spec);
+            double shape = parseNumber(values[1], spec);
+            if (min <= 0 || shape <= 0) {
+                throw new IllegalArgumentException("Pareto minimum and shape must be positive in delay profile " + spec);
+            }
+            long max = Long.MAX_VALUE / 2;
+            if (values.length == 3) {
+                double maxMs = parseMs(values[2], spec);
+                if (maxMs < min) {
+                    throw new IllegalArgumentException("Maximum below minimum in delay profile " + spec);
+                }
+                max = toNanos(maxMs);
+            }
+            return new Pareto(min * NANOS_PER_MS, shape, max, spec);
+        }
+        throw new IllegalArgumentException("Invalid delay profile: " + spec);
+    }
+
+    /**
+     * Parses a time in milliseconds, or in microseconds with a us suffix.
+     */
+    private static double parseMs(String value, String spec) {
+        String trimmed = value.trim();
+        if (trimmed.endsWith("us")) {
+            return parseNumber(trimmed.substring(0, trimmed.length() - 2), spec) / 1000;
+        }
+        return parseNumber(trimmed, spec);
+    }
+
+    private static double parseNumber(String value, String spec) {
+        double number;
+        try {
+            number = Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number " + value + " in delay profile " + spec);
+        }
+        if (number < 0 || Double.isNaN(number) || Double.isInfinite(number)) {
+            throw new IllegalArgumentException("Invalid number " + value + " in delay profile " + spec);
+        }
+        return number;
+    }
+
+    private static long toNanos(double ms) {
+        return Math.round(ms * NANOS_PER_MS);
+    }
+
+    static final class Constant extends DelayProfile {
+        private long delayNanos;
+
+        Constant(long delayNanos, String description) {
+            super(description);
+            this.delayNanos = delayNanos;
+        }
+
+        public long nextDelayNanos() {
+            return delayNanos;
+        }
+
+        public boolean isConstant() {
+            return true;
+        }
+    }
+
+    static final class Uniform extends DelayProfile {
+        private long minNanos;
+        private long rangeNanos;
+
+        Uniform(long minNanos, long maxNanos, String description) {
+            super(description);
+            this.minNanos = minNanos;
+            rangeNanos = maxNanos - minNanos;
+        }
+
+        public long nextDelayNanos() {
+            if (rangeNanos == 0) {
+                return minNanos;
+            }
+            return minNanos + ThreadLocalRandom.current().nextLong(rangeNanos + 1);
+        }
+    }
+
+    static final class Normal extends DelayProfile {
+        private double meanNanos;
+        private double deviationNanos;
+
+        Normal(double meanNanos, double deviationNanos, String description) {
+            super(description);
+            this.meanNanos = meanNanos;
+            this.deviationNanos = deviationNanos;
+        }
+
+        public long nextDelayNanos() {
+            double delay = meanNanos + deviationNanos * ThreadLocalRandom.current().nextGaussian();
+            return delay > 0 ? (long) delay : 0;
+        }
+    }
+
+    static final class Pareto extends DelayProfile {
+        private double minNanos;
+        private double inverseShape;
+        private long maxNanos;
+
+        Pareto(double minNanos, double shape, long maxNanos, String description) {
+            super(description);
+            this.minNanos = minNanos;
+            inverseShape = 1 / shape;
+            this.maxNanos = maxNanos;
+        }
+
+        public long nextDelayNanos() {
+            // inverse of the distribution function, on (0, 1]
+            double u = 1 - ThreadLocalRandom.current().nextDouble();
+            double delay = minNanos * Math.pow(u, -inverseShape);
+            return delay < maxNanos ? (long) delay : maxNanos;
+        }
+    }
+
+    /**
+     * Values read from a file, picked with a probability proportional to their weight.
+     */
+    static final class Empirical extends DelayProfile {
+        private long[] delaysNanos;
+        // weight of the values up to and including each index
+        private double[] cumulativeWeights;
+
+        Empirical(long[] delaysNanos, double[] cumulativeWeights, String description) {
+            super(description);
+            this.delaysNanos = delaysNanos;
+            this.cumulativeWeights = cumulativeWeights;
+        }
+
+        public long nextDelayNanos() {
+            double total = cumulativeWeights[cumulativeWeights.length - 1];
+            double target = ThreadLocalRandom.current().nextDouble() * total;
+            int index = Arrays.binarySearch(cumulativeWeights, target);
+            if (index < 0) {
+                index = -index - 1;
+            } else {
+                // exactly on a boundary, the value is in the next bucket
+                index++;
+            }
+            return delaysNanos[Math.min(index, delaysNanos.length - 1)];
+        }
+
+        static Empirical load(String path) {
+            long[] delays = new long[16];
+            double[] weights = new double[16];
+            int count = 0;
+            double total = 0;
+            String spec = "file:" + path;
+            try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = line.split("[\\s,]+");
+                    double weight = fields.length > 1 ? parseNumber(fields[1], spec) : 1;
+                    if (weight == 0) {
+                        continue;
+                    }
+                    if (count == delays.length) {
+                        delays = Arrays.copyOf(delays, count * 2);
+                        weights = Arrays.copyOf(weights, count * 2);
+                    }
+                    delays[count] = toNanos(parseMs(fields[0], spec));
+                    total += weight;
+                    weights[count] = total;
+                    count++;
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unable to read delay profile " + path + ": " + e.getMessage());
+            }
+            if (count == 0) {
+                throw new IllegalArgumentException("No delay in delay profile " + path);
+            }
+            return new Empirical(Arrays.copyOf(delays, count), Arrays.copyOf(weights, count), spec);
+        }
+    }
+}
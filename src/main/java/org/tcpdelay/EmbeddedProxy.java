@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Proxy started from code, typically by tests needing a delayed dependency: one route from a
+ * local port, ephemeral by default, to a remote host. Proxies share the event loops of a group:
+ * by default a group with one daemon io thread, started by the first proxy and shut down when
+ * the last one is closed. The connections are accepted by the event loops, there is no
+ * accepting thread, JMX bean, metrics or admin server, so a proxy starts in a few milliseconds.
+ * Only the event loop engine is available.
+ * <pre>
+ * EmbeddedProxy proxy = new EmbeddedProxy.Builder("localhost", 5432).delayMs(50).start();
+ * // connect to localhost:proxy.getLocalPort()
+ * proxy.setDelayMs(200);
+ * proxy.close();
+ * </pre>
+ */
+public class EmbeddedProxy implements Closeable {
+    private static Logger LOGGER = Logger.getLogger(EmbeddedProxy.class.getName());
+
+    // how often close checks that the loops it waits for are still running
+    private static final long LOOP_CHECK_MS = 100;
+
+    // group of the proxies started without one, null when none is open
+    private static EventLoopGroup sharedLoops;
+    private static int sharedUsers;
+
+    private Route route;
+    private EventLoopGroup loops;
+    private boolean shared;
+    private ServerSocketChannel ssc;
+    private EventLoop acceptLoop;
+    private boolean closed;
+
+    private EmbeddedProxy(ProxyConfig config, EventLoopGroup loops, boolean shared) throws IOException {
+        this.loops = loops;
+        this.shared = shared;
+        ssc = Acceptor.listen(config, false);
+        config.setLocalPort(((InetSocketAddress) ssc.getLocalAddress()).getPort());
+        route = new Route(config, loops);
+        route.start();
+        acceptLoop = loops.next();
+        acceptLoop.listen(new Acceptor(ssc, route, loops, null));
+        LOGGER.log(Level.INFO, "Started {0}", route);
+    }
+
+    /**
+     * Settings of a proxy to start. The settings not set here can be set on the config, see
+     * Builder(ProxyConfig).
+     */
+    public static class Builder {
+        private ProxyConfig config;
+        // null for the shared group
+        private EventLoopGroup loops;
+
+        public Builder(String remoteHost, int remotePort) {
+            config = new ProxyConfig(0, remoteHost, remotePort, 0);
+        }
+
+        /**
+         * Builder of a proxy with a copy of the given route config.
+         */
+        public Builder(ProxyConfig config) {
+            this.config = new ProxyConfig(config);
+        }
+
+        /**
+         * Local port to listen to, 0 for an ephemeral port, the default.
+         */
+        public Builder localPort(int localPort) {
+            config.setLocalPort(localPort);
+            return this;
+        }
+
+        public Builder delayMs(long delayMs) {
+            config.setDelayMs(delayMs);
+            return this;
+        }
+
+        public Builder delayUs(long delayUs) {
+            config.setDelayUs(delayUs);
+            return this;
+        }
+
+        public Builder delayUp(DelayProfile delayUp) {
+            config.setDelayUp(delayUp);
+            return this;
+        }
+
+        public Builder delayDown(DelayProfile delayDown) {
+            config.setDelayDown(delayDown);
+            return this;
+        }
+
+        /**
+         * Bandwidth of each connection to the remote host, in bits per second, 0 for no limit.
+         */
+        public Builder bandwidthUp(long bandwidthUp) {
+            config.setBandwidthUp(bandwidthUp);
+            return this;
+        }
+
+        /**
+         * Bandwidth of each connection to the client, in bits per second, 0 for no limit.
+         */
+        public Builder bandwidthDown(long bandwidthDown) {
+            config.setBandwidthDown(bandwidthDown);
+            return this;
+        }
+
+        public Builder protocol(Protocol protocol) {
+            config.setProtocol(protocol);
+            return this;
+        }
+
+        /**
+         * Event loops serving the proxy, started by the caller, who shuts them down once all
+         * their proxies are closed, or before, which closes their connections. The shared group
+         * is used otherwise. Sub-millisecond delays
+         * need a group created with -precisionUs, see ProxyConfig.setPrecisionUs.
+         */
+        public Builder loops(EventLoopGroup loops) {
+            this.loops = loops;
+            return this;
+        }
+
+        /**
+         * Listens to the local port and returns the running proxy.
+         */
+        public EmbeddedProxy start() throws IOException {
+            if (loops != null) {
+                return new EmbeddedProxy(config, loops, false);
+            }
+            EventLoopGroup group = acquireShared();
+            try {
+                return new EmbeddedProxy(config, group, true);
+            } catch (IOException e) {
+                releaseShared();
+                throw e;
+            }
+        }
+    }
+
+    private static synchronized EventLoopGroup acquireShared() throws IOException {
+        if (sharedLoops == null) {
+            EventLoopGroup group = new EventLoopGroup(new ProxyConfig());
+            group.start(true);
+            sharedLoops = group;
+        }
+        sharedUsers++;
+        return sharedLoops;
+    }
+
+    private static synchronized void releaseShared() {
+        if (--sharedUsers == 0) {
+            sharedLoops.shutdown();
+            sharedLoops = null;
+        }
+    }
+
+    /**
+     * Actual local port, useful with an ephemeral port.
+     */
+    public int getLocalPort() {
+        return route.getConfig().getLocalPort();
+    }
+
+    /**
+     * Config of the route, its delays and bandwidths can be changed while connections are open.
+     */
+    public ProxyConfig getConfig() {
+        return route.getConfig();
+    }
+
+    public Route getRoute() {
+        return route;
+    }
+
+    /**
+     * Changes the delay of the connections in both directions, including the open ones.
+     */
+    public void setDelayMs(long delayMs) {
+        route.getConfig().setDelayMs(delayMs);
+    }
+
+    /**
+     * Same as setDelayMs, in microseconds.
+     */
+    public void setDelayUs(long delayUs) {
+        route.getConfig().setDelayUs(delayUs);
+    }
+
+    /**
+     * Changes the delays of the connections, including the open ones.
+     */
+    public void setDelays(DelayProfile delayUp, DelayProfile delayDown) {
+        ProxyConfig config = route.getConfig();
+        config.setSettings(config.getSettings().withDelays(delayUp, delayDown));
+    }
+
+    /**
+     * Stops listening, closes the open connections without waiting for their delayed data, and
+     * shuts the shared group down if this was its last proxy. Returns once the local port is
+     * free and the connections are closed, also if the group given with Builder.loops was shut
+     * down first, its connections then being already closed. Must not be called from an event loop.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Runnable stopListening = new Runnable() {
+            public void run() {
+                SelectionKey key = ssc.keyFor(acceptLoop.getSelector());
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    ssc.close();
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }
+        };
+        if (!runOn(new EventLoop[] {acceptLoop}, stopListening)) {
+            // the loop is gone, the socket is closed from here
+            stopListening.run();
+        }
+        EventLoop[] all = new EventLoop[loops.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = loops.get(i);
+        }
+        // connections accepted before the socket was closed are registered once this returns
+        if (runOn(all, null)) {
+            route.close();
+            runOn(all, null);
+        }
+        LOGGER.log(Level.INFO, "Closed {0}", route);
+        if (shared) {
+            releaseShared();
+        }
+    }
+
+    /**
+     * Runs the task, if not null, on each loop, and waits until each loop has run the tasks
+     * queued before it. Returns false, without waiting any longer, as soon as one of the loops
+     * is found stopped: the tasks it was given may never run.
+     */
+    private static boolean runOn(EventLoop[] loops, final Runnable task) {
+        final CountDownLatch done = new CountDownLatch(loops.length);
+        for (EventLoop loop : loops) {
+            if (!loop.isRunning()) {
+                return false;
+            }
+            loop.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (task != null) {
+                            task.run();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            while (!done.await(LOOP_CHECK_MS, TimeUnit.MILLISECONDS)) {
+                for (EventLoop loop : loops) {
+                    if (!loop.isRunning()) {
+                        return false;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    public String toString() {
+        return route.toString();
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector thread owning a subset of the proxied connections. Connecting, reads,
+ * delays and writes for a connection pair all happen on the same loop, so
+ * per-connection ordering is kept without sharing state between loops.
+ */
+public class EventLoop implements Runnable {
+    private static Logger LOGGER = Logger.getLogger(EventLoop.class.getName());
+
+    private static final long TICK_NANOS = 1000000;
+    private static final int WHEEL_SIZE = 1024;
+    // with -precisionUs the delays fire on a 10 us tick, the wheel still covers 40 ms per turn
+    private static final long PRECISE_TICK_NANOS = 10000;
+    private static final int PRECISE_WHEEL_SIZE = 4096;
+    // connection timeouts are coarse and long, they get their own wheel with a longer tick
+    // so they rarely go round it more than once
+    private static final long TIMEOUT_TICK_NANOS = 100000000;
+    private static final int TIMEOUT_WHEEL_SIZE = 4096;
+    // most chunks written by one gathering write
+    public static final int MAX_GATHER = 64;
+
+    private int id;
+    private ProxyConfig config;
+    private FlowControl flowControl;
+
+    private Selector dataSelector;
+    // time before the next deadline the loop stops parking in select and spins, 0 to never spin
+    private long spinNanos;
+    // wakes the selector up when the spinning starts, null when the loop doesn't spin
+    private WakeupTimer wakeupTimer;
+    private Queue<Runnable> tasks;
+    private TimerWheel wheel;
+    private TimerWheel timeoutWheel;
+    private BufferPool.Cache buffers;
+    private Metrics metrics;
+    // null when not capturing
+    private CaptureLog capture;
+    private Trace trace;
+    // writers waiting for the total of queued bytes to go down
+    private TCPDataWriter[] pausedWriters;
+    private int pausedCount;
+    // scratch arrays of the scattering reads and gathering writes, only used on the loop thread
+    private ByteBuffer[] ioBuffers;
+    private TCPData[] ioChunks;
+    private int[] ioPositions;
+
+    private Consumer<SelectionKey> keyHandler;
+    private long selectTimeNanos;
+    private boolean selectTimeSet;
+    private volatile boolean running = true;
+
+    public EventLoop(int id, EventLoopGroup group) throws IOException {
+        this.id = id;
+        config = group.getConfig();
+        flowControl = group.getFlowControl();
+        dataSelector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        spinNanos = config.getPrecisionUs() * 1000;
+        if (spinNanos > 0) {
+            wheel = new TimerWheel(PRECISE_TICK_NANOS, PRECISE_WHEEL_SIZE, System.nanoTime());
+        } else {
+            wheel = new TimerWheel(TICK_NANOS, WHEEL_SIZE, System.nanoTime());
+        }
+        timeoutWheel = new TimerWheel(TIMEOUT_TICK_NANOS, TIMEOUT_WHEEL_SIZE, System.nanoTime());
+        buffers = group.getBufferPool().newCache();
+        metrics = new Metrics();
+        if (config.getCaptureDir() != null) {
+            capture = new CaptureLog(new File(config.getCaptureDir()), "io-" + id);
+        }
+        trace = group.getTrace();
+        pausedWriters = new TCPDataWriter[16];
+        ioBuffers = new ByteBuffer[MAX_GATHER];
+        ioChunks = new TCPData[MAX_GATHER];
+        ioPositions = new int[MAX_GATHER];
+        keyHandler = new Consumer<SelectionKey>() {
+            public void accept(SelectionKey key) {
+                handleKey(key);
+            }
+        };
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Selector getSelector() {
+        return dataSelector;
+    }
+
+    public TimerWheel getTimerWheel() {
+        return wheel;
+    }
+
+    /**
+     * Wheel of the idle, half-close and lifetime timeouts of the connections, with a 100 ms tick.
+     */
+    public TimerWheel getTimeoutWheel() {
+        return timeoutWheel;
+    }
+
+    public BufferPool.Cache getBufferCache() {
+        return buffers;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Log of the data read by this loop, null when not capturing.
+     */
+    public CaptureLog getCaptureLog() {
+        return capture;
+    }
+
+    /**
+     * Trace of the connections, null when not tracing.
+     */
+    public Trace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Scratch arrays for a single read or write at a time, cleared after use so they don't hold
+     * on to buffers.
+     */
+    ByteBuffer[] getIoBuffers() {
+        return ioBuffers;
+    }
+
+    TCPData[] getIoChunks() {
+        return ioChunks;
+    }
+
+    int[] getIoPositions() {
+        return ioPositions;
+    }
+
+    public ProxyConfig getConfig() {
+        return config;
+    }
+
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    public void wakeup() {
+        dataSelector.wakeup();
+    }
+
+    /**
+     * Remembers a writer paused because too many bytes are queued in total.
+     */
+    void addPausedWriter(TCPDataWriter writer) {
+        if (pausedCount == pausedWriters.length) {
+            TCPDataWriter[] larger = new TCPDataWriter[pausedCount * 2];
+            System.arraycopy(pausedWriters, 0, larger, 0, pausedCount);
+            pausedWriters = larger;
+        }
+        pausedWriters[pausedCount++] = writer;
+    }
+
+    private void resumePausedWriters() {
+        for (int i = 0; i < pausedCount; i++) {
+            pausedWriters[i].resume();
+            pausedWriters[i] = null;
+        }
+        pausedCount = 0;
+    }
+
+    /**
+     * Runs a task on the loop thread. Safe to call from any thread.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        dataSelector.wakeup();
+    }
+
+    /**
+     * Hands a client channel accepted on the given route to this loop, which connects it to
+     * the remote host of the route. The channel must already be non-blocking.
+     */
+    public void accept(final SocketChannel sc, final Route route, final long acceptedNanos) {
+        execute(new Runnable() {
+            public void run() {
+                open(sc, route, acceptedNanos);
+            }
+        });
+    }
+
+    /**
+     * Proxies a client channel accepted on the given route, on the loop thread.
+     */
+    void open(SocketChannel sc, Route route, long acceptedNanos) {
+        TCPConnection connection;
+        try {
+            connection = new TCPConnection(sc, route, this, acceptedNanos);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error registering connection: {0}", e.getMessage());
+            route.release();
+            try {
+                sc.close();
+            } catch (Exception ee) {
+                // do nothing
+            }
+            return;
+        }
+        metrics.accepted(System.nanoTime() - acceptedNanos);
+        UpstreamPool upstreamPool = route.getUpstreamPool(this);
+        SelectionKey idle = upstreamPool != null ? upstreamPool.take() : null;
+        if (idle != null) {
+            connection.connect(idle);
+        } else {
+            connection.connect(route.resolveRemote());
+        }
+    }
+
+    /**
+     * Accepts connections with an acceptor of this loop, which keeps them, see Acceptor.
+     */
+    public void listen(final Acceptor acceptor) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    acceptor.getChannel().register(dataSelector, SelectionKey.OP_ACCEPT, acceptor);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Unable to accept connections: {0}", e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Handle reads and writes on the open sockets owned by this loop, and the delayed data.
+     * Ready keys are handled as the selector reports them, without going through the
+     * selected key set, so the loop doesn't allocate. With -precisionUs, the loop blocks in
+     * select until a WakeupTimer wakes it up that long before the next deadline, then polls the
+     * selector without blocking until it is due: the timeout of select is in milliseconds and
+     * overshoots, so the loop would otherwise spin for up to a millisecond more.
+     */
+    public void run() {
+        if (spinNanos > 0) {
+            wakeupTimer = new WakeupTimer(dataSelector);
+            wakeupTimer.start("tcpdelay-timer-" + id);
+        }
+        while (running) {
+            try {
+                selectTimeSet = false;
+                long timeoutNanos = nanosToNextExpiry(System.nanoTime());
+                if (timeoutNanos < 0) {
+                    dataSelector.select(keyHandler);
+                } else if (timeoutNanos <= spinNanos) {
+                    dataSelector.selectNow(keyHandler);
+                } else if (spinNanos > 0) {
+                    wakeupTimer.wakeupAt(System.nanoTime() + timeoutNanos - spinNanos);
+                    // the timeout is only a fallback, the timer wakes the loop up first
+                    dataSelector.select(keyHandler, (timeoutNanos + TICK_NANOS - 1) / TICK_NANOS);
+                } else {
+                    // select has a millisecond resolution, never wake up before the timer is due
+                    dataSelector.select(keyHandler, (timeoutNanos + TICK_NANOS - 1) / TICK_NANOS);
+                }
+                runTasks();
+                wheel.expire(System.nanoTime());
+                timeoutWheel.expire(System.nanoTime());
+                if (pausedCount > 0 && !flowControl.isPaused()) {
+                    resumePausedWriters();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Exception during selection: {0}", e.getMessage());
+            }
+        }
+        if (wakeupTimer != null) {
+            wakeupTimer.stop();
+        }
+        closeAll();
+    }
+
+    /**
+     * Makes the loop thread close every channel still registered and the selector, and return.
+     */
+    void stop() {
+        running = false;
+        dataSelector.wakeup();
+    }
+
+    /**
+     * False once the loop was stopped: tasks given afterwards are never run.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : dataSelector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
+        try {
+            dataSelector.close();
+        } catch (IOException e) {
+            // do nothing
+        }
+        tasks.clear();
+        if (capture != null) {
+            capture.close();
+        }
+    }
+
+    /**
+     * Time until the next timer of either wheel, -1 if there is none.
+     */
+    private long nanosToNextExpiry(long nowNanos) {
+        long wheelNanos = wheel.nanosToNextExpiry(nowNanos);
+        long timeoutNanos = timeoutWheel.nanosToNextExpiry(nowNanos);
+        if (wheelNanos < 0 || timeoutNanos < 0) {
+            return Math.max(wheelNanos, timeoutNanos);
+        }
+        return Math.min(wheelNanos, timeoutNanos);
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!selectTimeSet) {
+            selectTimeNanos = System.nanoTime();
+            selectTimeSet = true;
+        }
+        if (key.isValid()) {
+            ((KeyHandler) key.attachment()).handleKey(key, selectTimeNanos);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Exception running task: {0}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of event loops, shared by all the routes of the proxy. New connections are
+ * spread over the loops round robin. Only the io threads and the global watermarks of
+ * the config are used here.
+ */
+public class EventLoopGroup {
+    private EventLoop[] loops;
+    // null until started
+    private Thread[] threads;
+    private AtomicInteger nextLoop;
+    private ProxyConfig config;
+    private BufferPool bufferPool;
+    private FlowControl flowControl;
+    // null when not tracing
+    private Trace trace;
+
+    public EventLoopGroup(ProxyConfig config) throws IOException {
+        int ioThreads = config.getIoThreads();
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("Invalid number of io threads: " + ioThreads);
+        }
+        this.config = config;
+        bufferPool = new BufferPool();
+        flowControl = new FlowControl(config.getGlobalHighWatermark(), config.getGlobalLowWatermark(),
+                new Runnable() {
+                    public void run() {
+                        wakeup();
+                    }
+                });
+        if (config.getTraceFile() != null) {
+            trace = new Trace(new File(config.getTraceFile()));
+        }
+        loops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new EventLoop(i, this);
+        }
+        nextLoop = new AtomicInteger();
+    }
+
+    /**
+     * Starts one thread per loop.
+     */
+    public void start() {
+        start(false);
+    }
+
+    /**
+     * Starts one thread per loop, daemon threads don't keep the JVM running.
+     */
+    public synchronized void start(boolean daemon) {
+        threads = new Thread[loops.length];
+        for (EventLoop loop : loops) {
+            Thread thread = new Thread(loop, "tcpdelay-io-" + loop.getId());
+            thread.setDaemon(daemon);
+            threads[loop.getId()] = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the loops and waits for their threads to end. The channels still registered with the
+     * loops are closed, without waiting for their delayed data, then the selectors, the trace and
+     * the buffers of the pool are released. The group can't be used afterwards.
+     */
+    public synchronized void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+        if (threads != null) {
+            for (Thread thread : threads) {
+                try {
+                    if (thread != Thread.currentThread()) {
+                        thread.join();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            threads = null;
+        }
+        if (trace != null) {
+            trace.close();
+        }
+        bufferPool.clear();
+    }
+
+    /**
+     * Returns the loop that should own the next connection.
+     */
+    public EventLoop next() {
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * Wakes up all the loops.
+     */
+    public void wakeup() {
+        for (EventLoop loop : loops) {
+            loop.wakeup();
+        }
+    }
+
+    public ProxyConfig getConfig() {
+        return config;
+    }
+
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * Trace shared by all the loops, null when not tracing.
+     */
+    public Trace getTrace() {
+        return trace;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public EventLoop get(int id) {
+        return loops[id];
+    }
+
+    /**
+     * Metrics of each loop.
+     */
+    public Metrics[] getMetrics() {
+        Metrics[] metrics = new Metrics[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            metrics[i] = loops[i].getMetrics();
+        }
+        return metrics;
+    }
+
+    public int size() {
+        return loops.length;
+    }
+}
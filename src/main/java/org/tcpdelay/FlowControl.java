@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes queued by all the event loops. Reading pauses when the total goes over the
+ * high watermark and resumes below the low watermark. The readers check isPaused() when
+ * they read and are notified when reading can resume.
+ */
+public class FlowControl {
+    private AtomicLong queuedBytes;
+    private AtomicBoolean paused;
+    private long highWatermark;
+    private long lowWatermark;
+    private Runnable resumeListener;
+
+    /**
+     * The listener is called when reading can resume, from the thread that dequeued data.
+     */
+    public FlowControl(long highWatermark, long lowWatermark, Runnable resumeListener) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Low watermark " + lowWatermark
+                    + " is above the high watermark " + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.resumeListener = resumeListener;
+        queuedBytes = new AtomicLong();
+        paused = new AtomicBoolean();
+    }
+
+    public void add(long bytes) {
+        if (queuedBytes.addAndGet(bytes) > highWatermark && paused.compareAndSet(false, true)) {
+            // the queue may have drained before the flag was set
+            if (queuedBytes.get() <= lowWatermark) {
+                resume();
+            }
+        }
+    }
+
+    public void remove(long bytes) {
+        if (queuedBytes.addAndGet(-bytes) <= lowWatermark && paused.get()) {
+            resume();
+        }
+    }
+
+    public boolean isPaused() {
+        return paused.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    private void resume() {
+        if (paused.compareAndSet(true, false)) {
+            resumeListener.run();
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the HTTP/1.1 requests sent by the client, or the responses sent by the remote host.
+ * Only the start line and the headers are copied, a line at a time, to find the length of the
+ * body: Content-Length, chunked, or up to the end of the stream for a response with neither.
+ * Bodies are skipped without looking at them. The request decoder queues the pipelined
+ * requests in the Exchanges of the connection, so the response decoder knows which request a
+ * response answers: its rule, and whether it has a body at all. After a 101 response or a
+ * CONNECT, both decoders give up.
+ */
+public class HttpDecoder extends MessageDecoder {
+    private static Logger LOGGER = Logger.getLogger(HttpDecoder.class.getName());
+
+    // longer lines are only kept up to that
+    private static final int MAX_LINE = 1024;
+
+    private static final int START = 0;
+    private static final int START_LINE = 1;
+    private static final int HEADER = 2;
+    private static final int BODY = 3;
+    private static final int CHUNK_SIZE = 4;
+    private static final int CHUNK_DATA = 5;
+    private static final int CHUNK_END = 6;
+    private static final int TRAILER = 7;
+    private static final int UNTIL_CLOSE = 8;
+
+    private static final byte[] HTTP_VERSION = {'H', 'T', 'T', 'P', '/'};
+    private static final byte[] HEAD = {'H', 'E', 'A', 'D'};
+    private static final byte[] CONNECT = {'C', 'O', 'N', 'N', 'E', 'C', 'T'};
+    private static final byte[] CONTENT_LENGTH = {'c', 'o', 'n', 't', 'e', 'n', 't', '-', 'l', 'e', 'n', 'g', 't',
+            'h'};
+    private static final byte[] TRANSFER_ENCODING = {'t', 'r', 'a', 'n', 's', 'f', 'e', 'r', '-', 'e', 'n', 'c',
+            'o', 'd', 'i', 'n', 'g'};
+    private static final byte[] CHUNKED = {'c', 'h', 'u', 'n', 'k', 'e', 'd'};
+
+    private boolean request;
+    private Exchanges exchanges;
+    private int state = START;
+    private byte[] line = new byte[MAX_LINE];
+    private int lineLen;
+    // bytes left in the body or the chunk
+    private long remaining;
+
+    // message being decoded
+    private long contentLength;
+    private boolean chunked;
+    private int status;
+    // request answered by the response being decoded
+    private int exchange;
+
+    /**
+     * Request is true for the decoder of the client.
+     */
+    public HttpDecoder(boolean request, Exchanges exchanges, MessageRules rules) {
+        super(rules);
+        this.request = request;
+        this.exchanges = exchanges;
+    }
+
+    protected void decode(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        while (i < to) {
+            switch (state) {
+            case START:
+                byte b = buffer.get(i);
+                if (b == '\r' || b == '\n') {
+                    // empty lines between messages
+                    i++;
+                    break;
+                }
+                if (exchanges.upgraded) {
+                    stopDecoding();
+                    return;
+                }
+                start(i);
+                contentLength = -1;
+                chunked = false;
+                if (!request) {
+                    exchange = exchanges.peek();
+                    setRule(Exchanges.getRule(exchange));
+                }
+                lineLen = 0;
+                state = START_LINE;
+                break;
+            case BODY:
+            case CHUNK_DATA:
+                int skipped = (int) Math.min(remaining, to - i);
+                i += skipped;
+                remaining -= skipped;
+                if (remaining == 0) {
+                    state = state == BODY ? START : CHUNK_END;
+                }
+                break;
+            case UNTIL_CLOSE:
+                return;
+            default:
+                int end = i;
+                while (end < to && buffer.get(end) != '\n') {
+                    end++;
+                }
+                int copied = Math.min(end - i, MAX_LINE - lineLen);
+                if (copied > 0) {
+                    buffer.get(i, line, lineLen, copied);
+                    lineLen += copied;
+                }
+                if (end == to) {
+                    return;
+                }
+                i = end + 1;
+                if (lineLen > 0 && line[lineLen - 1] == '\r') {
+                    lineLen--;
+                }
+                lineDone();
+                lineLen = 0;
+                if (isOpaque()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void lineDone() {
+        switch (state) {
+        case START_LINE:
+            if (request ? requestLine() : statusLine()) {
+                state = HEADER;
+            }
+            break;
+        case HEADER:
+            if (lineLen == 0) {
+                headDone();
+            } else if (startsWithIgnoreCase(CONTENT_LENGTH, 0) && lineLen > CONTENT_LENGTH.length
+                    && line[CONTENT_LENGTH.length] == ':') {
+                contentLength = parseLength(CONTENT_LENGTH.length + 1);
+                if (contentLength < 0) {
+                    error("Invalid Content-Length");
+                }
+            } else if (startsWithIgnoreCase(TRANSFER_ENCODING, 0) && lineLen > TRANSFER_ENCODING.length
+                    && line[TRANSFER_ENCODING.length] == ':') {
+                int end = lineLen;
+                while (end > 0 && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+                    end--;
+                }
+                // chunked is always the last coding
+                chunked = end >= CHUNKED.length && startsWithIgnoreCase(CHUNKED, end - CHUNKED.length);
+            }
+            break;
+        case CHUNK_SIZE:
+            long size = 0;
+            int digits = 0;
+            for (int i = 0; i < lineLen && line[i] != ';' && line[i] != ' ' && line[i] != '\t'; i++) {
+                int digit = Character.digit(line[i], 16);
+                if (digit < 0 || digits == 15) {
+                    error("Invalid chunk size");
+                    return;
+                }
+                size = size * 16 + digit;
+                digits++;
+            }
+            if (digits == 0) {
+                error("Invalid chunk size");
+            } else if (size == 0) {
+                state = TRAILER;
+            } else {
+                remaining = size;
+                state = CHUNK_DATA;
+            }
+            break;
+        case CHUNK_END:
+            if (lineLen == 0) {
+                state = CHUNK_SIZE;
+            } else {
+                error("Missing end of chunk");
+            }
+            break;
+        case TRAILER:
+            if (lineLen == 0) {
+                state = START;
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Queues the request for its response, and matches its path. Returns false if it isn't a request.
+     */
+    private boolean requestLine() {
+        int method = indexOf(' ', 0);
+        int target = method + 1;
+        int targetEnd = indexOf(' ', target);
+        if (method <= 0 || targetEnd < 0) {
+            error("Invalid request line");
+            return false;
+        }
+        int path = target;
+        if (line[path] != '/' && line[path] != '*') {
+            // absolute form, the path starts after the host
+            int scheme = indexOf(':', target);
+            if (scheme > 0 && scheme + 2 < targetEnd && line[scheme + 1] == '/' && line[scheme + 2] == '/') {
+                path = indexOf('/', scheme + 3);
+                if (path < 0 || path > targetEnd) {
+                    path = targetEnd;
+                }
+            }
+        }
+        int flags = 0;
+        if (method == HEAD.length && startsWith(HEAD, 0)) {
+            flags = Exchanges.HEAD;
+        } else if (method == CONNECT.length && startsWith(CONNECT, 0)) {
+            flags = Exchanges.CONNECT;
+        }
+        if (rules != null) {
+            setRule(rules.matchPath(line, path, targetEnd - path));
+        }
+        MessageRules responseRules = exchanges.responseRules;
+        int responseRule = responseRules == null ? NO_RULE : responseRules.matchPath(line, path, targetEnd - path);
+        exchanges.add(Exchanges.newExchange(responseRule, flags));
+        return true;
+    }
+
+    /**
+     * Reads the status of the response. Returns false if it isn't a response.
+     */
+    private boolean statusLine() {
+        if (lineLen < HTTP_VERSION.length + 8 || !startsWith(HTTP_VERSION, 0)) {
+            error("Invalid status line");
+            return false;
+        }
+        int code = indexOf(' ', 0) + 1;
+        status = 0;
+        for (int i = code; i > 0 && i < code + 3 && i < lineLen; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                status = 0;
+                break;
+            }
+            status = status * 10 + line[i] - '0';
+        }
+        if (status < 100) {
+            error("Invalid status line");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The empty line ending the headers: finds out how long the body is.
+     */
+    private void headDone() {
+        if (request) {
+            if (chunked) {
+                state = CHUNK_SIZE;
+            } else if (contentLength > 0) {
+                remaining = contentLength;
+                state = BODY;
+            } else {
+                state = START;
+            }
+            return;
+        }
+        if (status < 200 && status != 101) {
+            // interim response, the final one answers the same request
+            state = START;
+            return;
+        }
+        exchanges.remove();
+        if (status == 101 || ((exchange & Exchanges.CONNECT) != 0 && status < 300)) {
+            LOGGER.log(Level.FINE, "Protocol upgraded, no longer decoding HTTP");
+            exchanges.upgraded = true;
+            stopDecoding();
+            state = UNTIL_CLOSE;
+        } else if ((exchange & Exchanges.HEAD) != 0 || status == 204 || status == 304) {
+            state = START;
+        } else if (chunked) {
+            state = CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            remaining = contentLength;
+            state = BODY;
+        } else if (contentLength == 0) {
+            state = START;
+        } else {
+            state = UNTIL_CLOSE;
+        }
+    }
+
+    private void error(String message) {
+        LOGGER.log(Level.FINE, "{0}, no longer decoding HTTP", message);
+        stopDecoding();
+        state = UNTIL_CLOSE;
+    }
+
+    /**
+     * Parses the decimal value of a header starting at the given index, -1 if it isn't valid.
+     */
+    private long parseLength(int from) {
+        int i = from;
+        while (i < lineLen && (line[i] == ' ' || line[i] == '\t')) {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        for (; i < lineLen && line[i] >= '0' && line[i] <= '9'; i++) {
+            if (digits == 18) {
+                return -1;
+            }
+            value = value * 10 + line[i] - '0';
+            digits++;
+        }
+        while (i < lineLen && (line[i] == ' ' || line[i] == '\t')) {
+            i++;
+        }
+        return digits > 0 && i == lineLen ? value : -1;
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < lineLen; i++) {
+            if (line[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(byte[] prefix, int from) {
+        if (from + prefix.length > lineLen) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Prefix in lower case.
+     */
+    private boolean startsWithIgnoreCase(byte[] prefix, int from) {
+        if (from + prefix.length > lineLen) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            int b = line[from + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Requests of a connection waiting for their response, in order. Each is the rule of the
+     * response plus one, and flags. Shared by the two decoders of the connection, which may
+     * run on different threads.
+     */
+    public static class Exchanges {
+        static final int HEAD = 1 << 30;
+        static final int CONNECT = 1 << 29;
+        private static final int RULE_MASK = CONNECT - 1;
+
+        // null without rules for the responses
+        private MessageRules responseRules;
+        private int[] pending = new int[4];
+        private int first;
+        private int count;
+        private volatile boolean upgraded;
+
+        public Exchanges(MessageRules responseRules) {
+            this.responseRules = responseRules;
+        }
+
+        static int newExchange(int rule, int flags) {
+            return (rule + 1) | flags;
+        }
+
+        static int getRule(int exchange) {
+            return (exchange & RULE_MASK) - 1;
+        }
+
+        synchronized void add(int exchange) {
+            if (count == pending.length) {
+                int[] larger = new int[count * 2];
+                for (int i = 0; i < count; i++) {
+                    larger[i] = pending[(first + i) % pending.length];
+                }
+                pending = larger;
+                first = 0;
+            }
+            pending[(first + count) % pending.length] = exchange;
+            count++;
+        }
+
+        /**
+         * Oldest request waiting for its response, or no rule and no flags if there is none.
+         */
+        synchronized int peek() {
+            return count == 0 ? newExchange(NO_RULE, 0) : pending[first];
+        }
+
+        synchronized void remove() {
+            if (count > 0) {
+                first = (first + 1) % pending.length;
+                count--;
+            }
+        }
+    }
+}
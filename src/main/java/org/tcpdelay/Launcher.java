@@ -1,136 +1,576 @@
-/*
- * Copyright (C) 2011  Francois Forster
- *
- *     This program is free software: you can redistribute it and/or modify
- *     it under the terms of the GNU General Public License as published by
- *     the Free Software Foundation, either version 3 of the License, or
- *     (at your option) any later version.
- *
- *     This program is distributed in the hope that it will be useful,
- *     but WITHOUT ANY WARRANTY; without even the implied warranty of
- *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- *     GNU General Public License for more details.
- *
- *     You should have received a copy of the GNU General Public License
- *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
- */
-
-package org.tcpdelay;
-
-import java.util.logging.ConsoleHandler;
-import java.util.logging.Handler;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-/**
- * Class that proxies TCP requests. Can be used to test dependencies failures
- * and connection delays without having to touch the dependencies. Simply point
- * the service to be tested to the proxy and point the proxy to the dependency.
- */
-public abstract class Launcher {
-    private static final String HELP_ARG = "-help";
-    private static final String LOG_LEVEL_ARG = "-logLevel";
-    private static final String DELAY_LEVEL_ARG = "-delayMs";
-    private static final String REMOTE_PORT_ARG = "-remotePort";
-    private static final String REMOTE_HOST_ARG = "-remoteHost";
-    private static final String LOCAL_PORT_ARG = "-localPort";
-
-    public static void main(String[] args)
-            throws Exception {
-        if (hasArg(args, HELP_ARG) ||
-                !hasArg(args, LOCAL_PORT_ARG) ||
-                !hasArg(args, REMOTE_HOST_ARG) ||
-                !hasArg(args, REMOTE_PORT_ARG)) {
-            displayUsageAndExit();
-        }
-        Level logLevel = Level.INFO;
-        if (hasArg(args, LOG_LEVEL_ARG)) {
-            String logArg = getArgData(args, LOG_LEVEL_ARG);
-            if ("DEBUG".equalsIgnoreCase(logArg)) {
-                logLevel = Level.FINE;
-            } else if ("INFO".equalsIgnoreCase(logArg)) {
-                logLevel = Level.INFO;
-            } else if ("ERROR".equalsIgnoreCase(logArg)) {
-                logLevel = Level.SEVERE;
-            } else {
-                displayErrorMessageExit("Invalid log level: " + getArgData(args, LOG_LEVEL_ARG));
-            }
-        }
-        setLogLevel(logLevel);
-
-        int localPort = 0;
-        try {
-            localPort = Integer.parseInt(getArgData(args, LOCAL_PORT_ARG));
-        } catch (NumberFormatException e) {
-            displayErrorMessageExit("Invalid local port: " + getArgData(args, LOCAL_PORT_ARG));
-        }
-        String remoteHost = getArgData(args, REMOTE_HOST_ARG);
-        int remotePort = 0;
-        try {
-            remotePort = Integer.parseInt(getArgData(args, REMOTE_PORT_ARG));
-        } catch (NumberFormatException e) {
-            displayErrorMessageExit("Invalid remote port: " + getArgData(args, REMOTE_PORT_ARG));
-        }
-
-        int delayMs = 0;
-        if (hasArg(args, DELAY_LEVEL_ARG)) {
-            try {
-                delayMs = Integer.parseInt(getArgData(args, DELAY_LEVEL_ARG));
-            } catch (NumberFormatException e) {
-                displayErrorMessageExit("Invalid delay: " + getArgData(args, DELAY_LEVEL_ARG));
-            }
-
-        }
-
-        TCPDataReader reader = new TCPDataReader(localPort, remoteHost, remotePort, delayMs);
-        reader.run();
-    }
-
-    private static void displayUsageAndExit() {
-        System.err.println("Usage: java Launcher [" + HELP_ARG + "] [" + LOG_LEVEL_ARG
-                + " {DEBUG|INFO|ERROR}] [" + DELAY_LEVEL_ARG + " <ms delay>] " + LOCAL_PORT_ARG
-                + " <port> " + REMOTE_HOST_ARG + " <hostname> " + REMOTE_PORT_ARG + " <port>");
-        System.exit(1);
-    }
-
-    private static void displayErrorMessageExit(String message) {
-        System.err.println(message);
-        System.exit(1);
-    }
-
-    private static boolean hasArg(String[] args, String arg) {
-        for (String s : args) {
-            if (arg.equalsIgnoreCase(s)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private static String getArgData(String[] args, String arg) {
-        for (int i = 0; i < args.length; i++) {
-            if (arg.equalsIgnoreCase(args[i]) && args.length > i + 1) {
-                return args[i + 1];
-            }
-        }
-        return null;
-    }
-
-    private static void setLogLevel(Level level) {
-        Logger topLogger = Logger.getLogger("");
-        topLogger.setLevel(level);
-        Handler consoleHandler = null;
-        for (Handler handler : topLogger.getHandlers()) {
-            if (handler instanceof ConsoleHandler) {
-                consoleHandler = handler;
-                break;
-            }
-        }
-        if (consoleHandler == null) {
-            consoleHandler = new ConsoleHandler();
-            topLogger.addHandler(consoleHandler);
-        }
-        consoleHandler.setLevel(level);
-    }
-
-}
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class that proxies TCP requests. Can be used to test dependencies failures
+ * and connection delays without having to touch the dependencies. Simply point
+ * the service to be tested to the proxy and point the proxy to the dependency.
+ */
+public abstract class Launcher {
+    private static final String HELP_ARG = "-help";
+    private static final String LOG_LEVEL_ARG = "-logLevel";
+    private static final String DELAY_LEVEL_ARG = "-delayMs";
+    private static final String DELAY_US_ARG = "-delayUs";
+    private static final String REMOTE_PORT_ARG = "-remotePort";
+    private static final String REMOTE_HOST_ARG = "-remoteHost";
+    private static final String LOCAL_PORT_ARG = "-localPort";
+    private static final String IO_THREADS_ARG = "-ioThreads";
+    private static final String PRECISION_ARG = "-precisionUs";
+    private static final String HIGH_WATERMARK_ARG = "-highWatermark";
+    private static final String LOW_WATERMARK_ARG = "-lowWatermark";
+    private static final String GLOBAL_HIGH_WATERMARK_ARG = "-globalHighWatermark";
+    private static final String GLOBAL_LOW_WATERMARK_ARG = "-globalLowWatermark";
+    private static final String DNS_TTL_ARG = "-dnsTtlMs";
+    private static final String PREWARM_ARG = "-prewarm";
+    private static final String METRICS_PORT_ARG = "-metricsPort";
+    private static final String BANDWIDTH_UP_ARG = "-bandwidthUp";
+    private static final String BANDWIDTH_DOWN_ARG = "-bandwidthDown";
+    private static final String GLOBAL_BANDWIDTH_UP_ARG = "-globalBandwidthUp";
+    private static final String GLOBAL_BANDWIDTH_DOWN_ARG = "-globalBandwidthDown";
+    private static final String DELAY_UP_ARG = "-delayUp";
+    private static final String DELAY_DOWN_ARG = "-delayDown";
+    private static final String CONFIG_ARG = "-config";
+    private static final String ENGINE_ARG = "-engine";
+    private static final String ADMIN_PORT_ARG = "-adminPort";
+    private static final String CAPTURE_ARG = "-capture";
+    private static final String REPLAY_ARG = "-replay";
+    private static final String REPLAY_SCALE_ARG = "-replayScale";
+    private static final String TRACE_ARG = "-trace";
+    private static final String TCP_NO_DELAY_ARG = "-tcpNoDelay";
+    private static final String RECEIVE_BUFFER_ARG = "-receiveBuffer";
+    private static final String SEND_BUFFER_ARG = "-sendBuffer";
+    private static final String IDLE_TIMEOUT_ARG = "-idleTimeoutMs";
+    private static final String HALF_CLOSE_TIMEOUT_ARG = "-halfCloseTimeoutMs";
+    private static final String MAX_LIFETIME_ARG = "-maxLifetimeMs";
+    private static final String MAX_CONNECTIONS_ARG = "-maxConnections";
+    private static final String REUSE_PORT_ARG = "-reusePort";
+    private static final String ACCEPT_BACKLOG_ARG = "-acceptBacklog";
+    private static final String PROTOCOL_ARG = "-protocol";
+    private static final String MESSAGE_DELAY_UP_ARG = "-messageDelayUp";
+    private static final String MESSAGE_DELAY_DOWN_ARG = "-messageDelayDown";
+
+    public static void main(String[] args)
+            throws Exception {
+        if (hasArg(args, HELP_ARG) ||
+                (!hasArg(args, CONFIG_ARG) &&
+                        (!hasArg(args, LOCAL_PORT_ARG) ||
+                                (!hasArg(args, REPLAY_ARG) &&
+                                        (!hasArg(args, REMOTE_HOST_ARG) ||
+                                                !hasArg(args, REMOTE_PORT_ARG)))))) {
+            displayUsageAndExit();
+        }
+        Level logLevel = Level.INFO;
+        if (hasArg(args, LOG_LEVEL_ARG)) {
+            String logArg = getArgData(args, LOG_LEVEL_ARG);
+            if ("DEBUG".equalsIgnoreCase(logArg)) {
+                logLevel = Level.FINE;
+            } else if ("INFO".equalsIgnoreCase(logArg)) {
+                logLevel = Level.INFO;
+            } else if ("ERROR".equalsIgnoreCase(logArg)) {
+                logLevel = Level.SEVERE;
+            } else {
+                displayErrorMessageExit("Invalid log level: " + getArgData(args, LOG_LEVEL_ARG));
+            }
+        }
+        setLogLevel(logLevel);
+
+        int ioThreads = 1;
+        if (hasArg(args, IO_THREADS_ARG)) {
+            try {
+                ioThreads = Integer.parseInt(getArgData(args, IO_THREADS_ARG));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid number of io threads: " + getArgData(args, IO_THREADS_ARG));
+            }
+            if (ioThreads < 1) {
+                displayErrorMessageExit("Invalid number of io threads: " + ioThreads);
+            }
+        }
+
+        ProxyConfig config = new ProxyConfig();
+        config.setIoThreads(ioThreads);
+        config.setReusePort(hasArg(args, REUSE_PORT_ARG));
+        if (hasArg(args, PRECISION_ARG)) {
+            config.setPrecisionUs(getMicrosArg(args, PRECISION_ARG));
+        }
+        if (hasArg(args, ENGINE_ARG)) {
+            String engine = getArgData(args, ENGINE_ARG);
+            if (ProxyConfig.ENGINE_NIO.equalsIgnoreCase(engine)) {
+                config.setEngine(ProxyConfig.ENGINE_NIO);
+            } else if (ProxyConfig.ENGINE_VIRTUAL.equalsIgnoreCase(engine)) {
+                config.setEngine(ProxyConfig.ENGINE_VIRTUAL);
+            } else {
+                displayErrorMessageExit("Invalid engine: " + engine);
+            }
+        }
+        if (hasArg(args, GLOBAL_HIGH_WATERMARK_ARG)) {
+            config.setGlobalHighWatermark(getSizeArg(args, GLOBAL_HIGH_WATERMARK_ARG));
+            config.setGlobalLowWatermark(Math.min(config.getGlobalLowWatermark(),
+                    config.getGlobalHighWatermark() * 3 / 4));
+        }
+        if (hasArg(args, GLOBAL_LOW_WATERMARK_ARG)) {
+            config.setGlobalLowWatermark(getSizeArg(args, GLOBAL_LOW_WATERMARK_ARG));
+        }
+        if (config.getGlobalLowWatermark() > config.getGlobalHighWatermark()) {
+            displayErrorMessageExit("Global low watermark above global high watermark: "
+                    + config.getGlobalLowWatermark());
+        }
+        if (hasArg(args, METRICS_PORT_ARG)) {
+            try {
+                config.setMetricsPort(Integer.parseInt(getArgData(args, METRICS_PORT_ARG)));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid metrics port: " + getArgData(args, METRICS_PORT_ARG));
+            }
+        }
+        if (hasArg(args, ADMIN_PORT_ARG)) {
+            try {
+                config.setAdminPort(Integer.parseInt(getArgData(args, ADMIN_PORT_ARG)));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid admin port: " + getArgData(args, ADMIN_PORT_ARG));
+            }
+        }
+        if (hasArg(args, CAPTURE_ARG)) {
+            config.setCaptureDir(getArgData(args, CAPTURE_ARG));
+            if (config.getCaptureDir() == null) {
+                displayErrorMessageExit("Missing capture directory");
+            }
+        }
+        if (hasArg(args, REPLAY_ARG)) {
+            config.setReplayDir(getArgData(args, REPLAY_ARG));
+            if (config.getReplayDir() == null) {
+                displayErrorMessageExit("Missing replay directory");
+            }
+        }
+        if (hasArg(args, TRACE_ARG)) {
+            config.setTraceFile(getArgData(args, TRACE_ARG));
+            if (config.getTraceFile() == null) {
+                displayErrorMessageExit("Missing trace file");
+            }
+        }
+        if (hasArg(args, REPLAY_SCALE_ARG)) {
+            try {
+                config.setReplayScale(Double.parseDouble(getArgData(args, REPLAY_SCALE_ARG)));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid replay scale: " + getArgData(args, REPLAY_SCALE_ARG));
+            }
+            if (!(config.getReplayScale() >= 0)) {
+                displayErrorMessageExit("Invalid replay scale: " + config.getReplayScale());
+            }
+        }
+        // with a config file, the route settings of the command line are the defaults of all the routes
+        parseRouteArgs(args, config);
+
+        List<ProxyConfig> routes;
+        if (hasArg(args, CONFIG_ARG)) {
+            routes = readRoutes(getArgData(args, CONFIG_ARG), config);
+        } else {
+            routes = Collections.singletonList(config);
+        }
+
+        TCPDataReader reader = new TCPDataReader(config, routes);
+        reader.run();
+    }
+
+    /**
+     * Parses the settings that can be different for each route.
+     */
+    private static void parseRouteArgs(String[] args, ProxyConfig config) {
+        if (hasArg(args, LOCAL_PORT_ARG)) {
+            try {
+                config.setLocalPort(Integer.parseInt(getArgData(args, LOCAL_PORT_ARG)));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid local port: " + getArgData(args, LOCAL_PORT_ARG));
+            }
+        }
+        if (hasArg(args, REMOTE_HOST_ARG)) {
+            config.setRemoteHost(getArgData(args, REMOTE_HOST_ARG));
+        }
+        if (hasArg(args, REMOTE_PORT_ARG)) {
+            try {
+                config.setRemotePort(Integer.parseInt(getArgData(args, REMOTE_PORT_ARG)));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid remote port: " + getArgData(args, REMOTE_PORT_ARG));
+            }
+        }
+        if (hasArg(args, DELAY_LEVEL_ARG)) {
+            try {
+                config.setDelayMs(Integer.parseInt(getArgData(args, DELAY_LEVEL_ARG)));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid delay: " + getArgData(args, DELAY_LEVEL_ARG));
+            }
+        }
+        if (hasArg(args, DELAY_US_ARG)) {
+            config.setDelayUs(getMicrosArg(args, DELAY_US_ARG));
+        }
+        if (hasArg(args, DELAY_UP_ARG)) {
+            config.setDelayUp(getDelayArg(args, DELAY_UP_ARG));
+        }
+        if (hasArg(args, DELAY_DOWN_ARG)) {
+            config.setDelayDown(getDelayArg(args, DELAY_DOWN_ARG));
+        }
+        if (hasArg(args, HIGH_WATERMARK_ARG)) {
+            config.setHighWatermark(getSizeArg(args, HIGH_WATERMARK_ARG));
+            config.setLowWatermark(Math.min(config.getLowWatermark(), config.getHighWatermark() / 2));
+        }
+        if (hasArg(args, LOW_WATERMARK_ARG)) {
+            config.setLowWatermark(getSizeArg(args, LOW_WATERMARK_ARG));
+        }
+        if (config.getLowWatermark() > config.getHighWatermark()) {
+            displayErrorMessageExit("Low watermark above high watermark: " + config.getLowWatermark());
+        }
+        if (hasArg(args, DNS_TTL_ARG)) {
+            try {
+                config.setDnsTtlMs(Long.parseLong(getArgData(args, DNS_TTL_ARG)));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid DNS time to live: " + getArgData(args, DNS_TTL_ARG));
+            }
+        }
+        if (hasArg(args, PREWARM_ARG)) {
+            try {
+                config.setPrewarm(Integer.parseInt(getArgData(args, PREWARM_ARG)));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid number of idle connections: " + getArgData(args, PREWARM_ARG));
+            }
+        }
+        if (hasArg(args, BANDWIDTH_UP_ARG)) {
+            config.setBandwidthUp(getRateArg(args, BANDWIDTH_UP_ARG));
+        }
+        if (hasArg(args, BANDWIDTH_DOWN_ARG)) {
+            config.setBandwidthDown(getRateArg(args, BANDWIDTH_DOWN_ARG));
+        }
+        if (hasArg(args, GLOBAL_BANDWIDTH_UP_ARG)) {
+            config.setGlobalBandwidthUp(getRateArg(args, GLOBAL_BANDWIDTH_UP_ARG));
+        }
+        if (hasArg(args, GLOBAL_BANDWIDTH_DOWN_ARG)) {
+            config.setGlobalBandwidthDown(getRateArg(args, GLOBAL_BANDWIDTH_DOWN_ARG));
+        }
+        if (hasArg(args, TCP_NO_DELAY_ARG)) {
+            String noDelay = getArgData(args, TCP_NO_DELAY_ARG);
+            if ("true".equalsIgnoreCase(noDelay) || "false".equalsIgnoreCase(noDelay)) {
+                config.setTcpNoDelay(Boolean.valueOf(noDelay));
+            } else {
+                displayErrorMessageExit("Invalid value for " + TCP_NO_DELAY_ARG + ": " + noDelay);
+            }
+        }
+        if (hasArg(args, RECEIVE_BUFFER_ARG)) {
+            config.setReceiveBuffer(getBufferSizeArg(args, RECEIVE_BUFFER_ARG));
+        }
+        if (hasArg(args, SEND_BUFFER_ARG)) {
+            config.setSendBuffer(getBufferSizeArg(args, SEND_BUFFER_ARG));
+        }
+        if (hasArg(args, IDLE_TIMEOUT_ARG)) {
+            config.setIdleTimeoutMs(getTimeoutArg(args, IDLE_TIMEOUT_ARG));
+        }
+        if (hasArg(args, HALF_CLOSE_TIMEOUT_ARG)) {
+            config.setHalfCloseTimeoutMs(getTimeoutArg(args, HALF_CLOSE_TIMEOUT_ARG));
+        }
+        if (hasArg(args, MAX_LIFETIME_ARG)) {
+            config.setMaxLifetimeMs(getTimeoutArg(args, MAX_LIFETIME_ARG));
+        }
+        if (hasArg(args, ACCEPT_BACKLOG_ARG)) {
+            try {
+                config.setAcceptBacklog(Integer.parseInt(getArgData(args, ACCEPT_BACKLOG_ARG)));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid accept backlog: " + getArgData(args, ACCEPT_BACKLOG_ARG));
+            }
+            if (config.getAcceptBacklog() < 0) {
+                displayErrorMessageExit("Invalid accept backlog: " + config.getAcceptBacklog());
+            }
+        }
+        if (hasArg(args, MAX_CONNECTIONS_ARG)) {
+            try {
+                config.setMaxConnections(Integer.parseInt(getArgData(args, MAX_CONNECTIONS_ARG)));
+            } catch (NumberFormatException e) {
+                displayErrorMessageExit("Invalid number of connections: " + getArgData(args, MAX_CONNECTIONS_ARG));
+            }
+            if (config.getMaxConnections() < 0) {
+                displayErrorMessageExit("Invalid number of connections: " + config.getMaxConnections());
+            }
+        }
+        if (hasArg(args, PROTOCOL_ARG)) {
+            String protocol = getArgData(args, PROTOCOL_ARG);
+            if (protocol == null) {
+                displayErrorMessageExit("Missing protocol");
+            }
+            try {
+                config.setProtocol(Protocol.parse(protocol));
+            } catch (IllegalArgumentException e) {
+                displayErrorMessageExit(e.getMessage());
+            }
+        }
+        if (hasArg(args, MESSAGE_DELAY_UP_ARG)) {
+            config.setMessageDelayUp(getMessageRulesArg(args, MESSAGE_DELAY_UP_ARG));
+        }
+        if (hasArg(args, MESSAGE_DELAY_DOWN_ARG)) {
+            config.setMessageDelayDown(getMessageRulesArg(args, MESSAGE_DELAY_DOWN_ARG));
+        }
+        try {
+            if (config.getMessageDelayUp() != null) {
+                config.getMessageDelayUp().check(config.getProtocol());
+            }
+            if (config.getMessageDelayDown() != null) {
+                config.getMessageDelayDown().check(config.getProtocol());
+            }
+        } catch (IllegalArgumentException e) {
+            displayErrorMessageExit(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the routes of a config file: one route per line, with the same arguments as the
+     * command line. Settings missing from a line are taken from the command line.
+     */
+    private static List<ProxyConfig> readRoutes(String path, ProxyConfig defaults) {
+        List<ProxyConfig> routes = new ArrayList<ProxyConfig>();
+        Set<Integer> localPorts = new HashSet<Integer>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] lineArgs = line.split("\\s+");
+                for (String arg : new String[] {LOG_LEVEL_ARG, IO_THREADS_ARG, GLOBAL_HIGH_WATERMARK_ARG,
+                        GLOBAL_LOW_WATERMARK_ARG, METRICS_PORT_ARG, CONFIG_ARG, ENGINE_ARG, ADMIN_PORT_ARG, CAPTURE_ARG, REPLAY_ARG,
+                        REPLAY_SCALE_ARG, TRACE_ARG, REUSE_PORT_ARG, PRECISION_ARG}) {
+                    if (hasArg(lineArgs, arg)) {
+                        displayErrorMessageExit(path + ":" + lineNumber + ": " + arg
+                                + " can only be given on the command line");
+                    }
+                }
+                ProxyConfig route = new ProxyConfig(defaults);
+                parseRouteArgs(lineArgs, route);
+                if (!hasArg(lineArgs, LOCAL_PORT_ARG) || (defaults.getReplayDir() == null
+                        && (route.getRemoteHost() == null || route.getRemotePort() <= 0))) {
+                    displayErrorMessageExit(path + ":" + lineNumber + ": a route needs " + LOCAL_PORT_ARG + ", "
+                            + REMOTE_HOST_ARG + " and " + REMOTE_PORT_ARG);
+                }
+                if (!localPorts.add(route.getLocalPort())) {
+                    displayErrorMessageExit(path + ":" + lineNumber + ": local port " + route.getLocalPort()
+                            + " used by more than one route");
+                }
+                routes.add(route);
+            }
+        } catch (IOException e) {
+            displayErrorMessageExit("Unable to read " + path + ": " + e.getMessage());
+        }
+        if (routes.isEmpty()) {
+            displayErrorMessageExit("No route in " + path);
+        }
+        return routes;
+    }
+
+    private static void displayUsageAndExit() {
+        System.err.println("Usage: java Launcher [" + HELP_ARG + "] [" + LOG_LEVEL_ARG
+                + " {DEBUG|INFO|ERROR}] [" + DELAY_LEVEL_ARG + " <ms delay>] [" + DELAY_US_ARG + " <us delay>] [" + DELAY_UP_ARG + " <profile>] ["
+                + DELAY_DOWN_ARG + " <profile>] [" + ENGINE_ARG + " {nio|virtual}] [" + IO_THREADS_ARG
+                + " <threads>] [" + PRECISION_ARG + " <us>] [" + HIGH_WATERMARK_ARG + " <bytes>] [" + LOW_WATERMARK_ARG + " <bytes>] ["
+                + GLOBAL_HIGH_WATERMARK_ARG + " <bytes>] [" + GLOBAL_LOW_WATERMARK_ARG + " <bytes>] [" + DNS_TTL_ARG
+                + " <ms>] [" + PREWARM_ARG + " <connections>] [" + REUSE_PORT_ARG + "] [" + ACCEPT_BACKLOG_ARG + " <connections>] [" + METRICS_PORT_ARG + " <port>] [" + ADMIN_PORT_ARG + " <port>] ["
+                + CAPTURE_ARG + " <dir>] [" + REPLAY_ARG + " <dir>] [" + REPLAY_SCALE_ARG + " <factor>] [" + TRACE_ARG + " <file>] ["
+                + BANDWIDTH_UP_ARG + " <bits/s>] [" + BANDWIDTH_DOWN_ARG + " <bits/s>] [" + GLOBAL_BANDWIDTH_UP_ARG
+                + " <bits/s>] [" + GLOBAL_BANDWIDTH_DOWN_ARG + " <bits/s>] [" + TCP_NO_DELAY_ARG + " {true|false}] ["
+                + RECEIVE_BUFFER_ARG + " <bytes>] [" + SEND_BUFFER_ARG + " <bytes>] [" + IDLE_TIMEOUT_ARG + " <ms>] ["
+                + HALF_CLOSE_TIMEOUT_ARG + " <ms>] [" + MAX_LIFETIME_ARG + " <ms>] [" + MAX_CONNECTIONS_ARG
+                + " <connections>] [" + PROTOCOL_ARG + " {http|length:<offset>,<size>[,<adjust>[,<type offset>]]}] ["
+                + MESSAGE_DELAY_UP_ARG + " <rules>] [" + MESSAGE_DELAY_DOWN_ARG + " <rules>] {" + CONFIG_ARG + " <file> | "
+                + LOCAL_PORT_ARG + " <port> " + REMOTE_HOST_ARG + " <hostname> " + REMOTE_PORT_ARG + " <port>}");
+        System.exit(1);
+    }
+
+    private static void displayErrorMessageExit(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+
+    private static boolean hasArg(String[] args, String arg) {
+        for (String s : args) {
+            if (arg.equalsIgnoreCase(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getArgData(String[] args, String arg) {
+        for (int i = 0; i < args.length; i++) {
+            if (arg.equalsIgnoreCase(args[i]) && args.length > i + 1) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a number of bytes, with an optional k, m or g suffix.
+     */
+    private static long getSizeArg(String[] args, String arg) {
+        String data = getArgData(args, arg);
+        long size = -1;
+        if (data != null && data.length() > 0) {
+            long multiplier = 1;
+            char unit = Character.toLowerCase(data.charAt(data.length() - 1));
+            if (unit == 'k') {
+                multiplier = 1024;
+            } else if (unit == 'm') {
+                multiplier = 1024 * 1024;
+            } else if (unit == 'g') {
+                multiplier = 1024 * 1024 * 1024;
+            }
+            String number = multiplier == 1 ? data : data.substring(0, data.length() - 1);
+            try {
+                size = Long.parseLong(number) * multiplier;
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+        }
+        if (size < 0) {
+            displayErrorMessageExit("Invalid size for " + arg + ": " + data);
+        }
+        return size;
+    }
+
+    /**
+     * Parses a timeout in milliseconds, 0 for none.
+     */
+    private static long getTimeoutArg(String[] args, String arg) {
+        long timeout = -1;
+        try {
+            timeout = Long.parseLong(getArgData(args, arg));
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        if (timeout < 0) {
+            displayErrorMessageExit("Invalid timeout for " + arg + ": " + getArgData(args, arg));
+        }
+        return timeout;
+    }
+
+    /**
+     * Parses a number of microseconds.
+     */
+    private static long getMicrosArg(String[] args, String arg) {
+        long micros = -1;
+        try {
+            micros = Long.parseLong(getArgData(args, arg));
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        if (micros < 0) {
+            displayErrorMessageExit("Invalid microseconds for " + arg + ": " + getArgData(args, arg));
+        }
+        return micros;
+    }
+
+    /**
+     * Parses the size of a socket buffer, which has to fit an int.
+     */
+    private static int getBufferSizeArg(String[] args, String arg) {
+        long size = getSizeArg(args, arg);
+        if (size > Integer.MAX_VALUE) {
+            displayErrorMessageExit("Invalid size for " + arg + ": " + getArgData(args, arg));
+        }
+        return (int) size;
+    }
+
+    /**
+     * Parses a delay profile, see DelayProfile.
+     */
+    private static DelayProfile getDelayArg(String[] args, String arg) {
+        String data = getArgData(args, arg);
+        if (data == null) {
+            displayErrorMessageExit("Missing delay profile for " + arg);
+        }
+        DelayProfile profile = null;
+        try {
+            profile = DelayProfile.parse(data);
+        } catch (IllegalArgumentException e) {
+            displayErrorMessageExit(e.getMessage());
+        }
+        return profile;
+    }
+
+    /**
+     * Parses message delay rules, see MessageRules.
+     */
+    private static MessageRules getMessageRulesArg(String[] args, String arg) {
+        String data = getArgData(args, arg);
+        if (data == null) {
+            displayErrorMessageExit("Missing message delay rules for " + arg);
+        }
+        MessageRules rules = null;
+        try {
+            rules = MessageRules.parse(data);
+        } catch (IllegalArgumentException e) {
+            displayErrorMessageExit(e.getMessage());
+        }
+        return rules;
+    }
+
+    /**
+     * Parses a number of bits per second, with an optional k, m or g suffix (powers of 1000).
+     */
+    private static long getRateArg(String[] args, String arg) {
+        String data = getArgData(args, arg);
+        long rate = -1;
+        try {
+            rate = Utils.parseRate(data);
+        } catch (IllegalArgumentException e) {
+            displayErrorMessageExit("Invalid bandwidth for " + arg + ": " + data);
+        }
+        return rate;
+    }
+
+    private static void setLogLevel(Level level) {
+        Logger topLogger = Logger.getLogger("");
+        topLogger.setLevel(level);
+        Handler consoleHandler = null;
+        for (Handler handler : topLogger.getHandlers()) {
+            if (handler instanceof ConsoleHandler) {
+                consoleHandler = handler;
+                break;
+            }
+        }
+        if (consoleHandler == null) {
+            consoleHandler = new ConsoleHandler();
+            topLogger.addHandler(consoleHandler);
+        }
+        consoleHandler.setLevel(level);
+    }
+
+}
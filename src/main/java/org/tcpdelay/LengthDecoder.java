@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the messages of a protocol where each message starts with its length. Only the header,
+ * up to the length and the type, is copied; the rest of the message is skipped.
+ */
+public class LengthDecoder extends MessageDecoder {
+    private static Logger LOGGER = Logger.getLogger(LengthDecoder.class.getName());
+
+    private Protocol protocol;
+    private byte[] header;
+    // bytes of the header read so far
+    private int headerLen;
+    // bytes of the message left after the header
+    private long remaining;
+
+    public LengthDecoder(Protocol protocol, MessageRules rules) {
+        super(rules);
+        this.protocol = protocol;
+        header = new byte[Math.max(protocol.getLengthOffset() + protocol.getLengthSize(),
+                protocol.getTypeOffset() + 1)];
+    }
+
+    protected void decode(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        while (i < to) {
+            if (remaining > 0) {
+                int skipped = (int) Math.min(remaining, to - i);
+                i += skipped;
+                remaining -= skipped;
+                continue;
+            }
+            if (headerLen == 0) {
+                start(i);
+            }
+            int copied = Math.min(header.length - headerLen, to - i);
+            buffer.get(i, header, headerLen, copied);
+            headerLen += copied;
+            i += copied;
+            if (headerLen == header.length && !headerDone()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the length and the type of the message. Returns false if the length isn't valid.
+     */
+    private boolean headerDone() {
+        long length = 0;
+        int offset = protocol.getLengthOffset();
+        for (int i = offset; i < offset + protocol.getLengthSize(); i++) {
+            length = (length << 8) | (header[i] & 0xff);
+        }
+        long size = offset + protocol.getLengthSize() + length + protocol.getLengthAdjust();
+        if (size < header.length) {
+            LOGGER.log(Level.FINE, "Invalid message length {0}, no longer decoding {1}",
+                    new Object[] {length, protocol});
+            stopDecoding();
+            return false;
+        }
+        if (rules != null && protocol.hasType()) {
+            setRule(rules.matchType(header[protocol.getTypeOffset()] & 0xff));
+        }
+        headerLen = 0;
+        remaining = size - header.length;
+        return true;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+/**
+ * Emulated link of limited bandwidth, for one direction of one connection. Works as a
+ * token bucket holding one chunk: each chunk starts going through the link once the
+ * previous one went through, and takes as long as its size at the link rate. So a large
+ * chunk arrives later than a small one, and the data is never sent faster than the rate,
+ * whatever the number of connections. Only used by the thread reading the connection.
+ */
+public class Link {
+    private long bitsPerSecond;
+    // time the last chunk finished going through the link
+    private long freeAtNanos = Long.MIN_VALUE;
+
+    public Link(long bitsPerSecond) {
+        if (bitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid bandwidth: " + bitsPerSecond);
+        }
+        this.bitsPerSecond = bitsPerSecond;
+    }
+
+    /**
+     * Sends the given number of bytes, which became available at the given time.
+     * Returns the time their last byte went through the link.
+     */
+    public long transmit(int bytes, long availableNanos) {
+        long start = Math.max(availableNanos, freeAtNanos);
+        freeAtNanos = start + serializationNanos(bytes, bitsPerSecond);
+        return freeAtNanos;
+    }
+
+    public long getBitsPerSecond() {
+        return bitsPerSecond;
+    }
+
+    /**
+     * Changes the rate for the chunks sent afterwards, the chunks already sent keep their time.
+     */
+    public void setBitsPerSecond(long bitsPerSecond) {
+        if (bitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid bandwidth: " + bitsPerSecond);
+        }
+        this.bitsPerSecond = bitsPerSecond;
+    }
+
+    /**
+     * Time to send the given number of bytes at the given rate.
+     */
+    static long serializationNanos(int bytes, long bitsPerSecond) {
+        return bytes * 8000000000L / bitsPerSecond;
+    }
+}
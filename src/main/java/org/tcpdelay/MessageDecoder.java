@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Streaming decoder finding where the messages of one direction of a connection start. The
+ * data of each read is decoded where it was read, in the pooled buffers, and the decoder keeps
+ * its state between reads, so a message can be split over any number of reads and a read can
+ * hold any number of messages. The rule of a message is only known once its request line or
+ * header is decoded: when that is not in the read where the message starts, the message gets
+ * the delay of the connection. Once the data can't be decoded, or after a protocol upgrade,
+ * the decoder gives up and each read is a message, like without a protocol.
+ * Only used by the thread reading the direction.
+ */
+public abstract class MessageDecoder {
+    // rule of a message matching no rule
+    public static final int NO_RULE = -1;
+
+    // null without rules
+    protected MessageRules rules;
+    private boolean opaque;
+
+    // messages starting in the data of the last read: index of the buffer, offset in the buffer, rule
+    private int starts;
+    private int[] startBuffers = new int[8];
+    private int[] startOffsets = new int[8];
+    private int[] startRules = new int[8];
+    // index of the buffer being decoded
+    private int buffer;
+    // the current message starts in the data being decoded
+    private boolean started;
+
+    protected MessageDecoder(MessageRules rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Decodes the data of one read, between the position and the limit of each buffer.
+     */
+    public void decode(ByteBuffer[] buffers, int count) {
+        starts = 0;
+        started = false;
+        if (opaque) {
+            buffer = 0;
+            start(buffers[0].position());
+            return;
+        }
+        for (int i = 0; i < count && !opaque; i++) {
+            buffer = i;
+            decode(buffers[i], buffers[i].position(), buffers[i].limit());
+        }
+    }
+
+    /**
+     * Decodes the bytes of the buffer from the index from to the index to, excluded, calling
+     * start() for each message starting there.
+     */
+    protected abstract void decode(ByteBuffer buffer, int from, int to);
+
+    /**
+     * A message starts at the given index of the buffer being decoded.
+     */
+    protected void start(int offset) {
+        if (starts == startBuffers.length) {
+            startBuffers = Arrays.copyOf(startBuffers, starts * 2);
+            startOffsets = Arrays.copyOf(startOffsets, starts * 2);
+            startRules = Arrays.copyOf(startRules, starts * 2);
+        }
+        startBuffers[starts] = buffer;
+        startOffsets[starts] = offset;
+        startRules[starts] = NO_RULE;
+        starts++;
+        started = true;
+    }
+
+    /**
+     * The current message matches the given rule. Too late if it started in an earlier read.
+     */
+    protected void setRule(int rule) {
+        if (started) {
+            startRules[starts - 1] = rule;
+        }
+    }
+
+    /**
+     * Gives up decoding, after an error or a protocol upgrade.
+     */
+    protected void stopDecoding() {
+        opaque = true;
+    }
+
+    public boolean isOpaque() {
+        return opaque;
+    }
+
+    /**
+     * Number of messages starting in the data of the last read.
+     */
+    public int getStarts() {
+        return starts;
+    }
+
+    public int getStartBuffer(int start) {
+        return startBuffers[start];
+    }
+
+    public int getStartOffset(int start) {
+        return startOffsets[start];
+    }
+
+    /**
+     * Delay profile of a message starting in the data of the last read, null for the delay of
+     * the connection.
+     */
+    public DelayProfile getStartProfile(int start) {
+        int rule = startRules[start];
+        return rule == NO_RULE ? null : rules.getProfile(rule);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sets the deadlines of the data read for one direction of a connection with a protocol: the
+ * delay is sampled once for each message, when it starts, and applies to all its bytes,
+ * whatever the reads it is split over. A chunk is only split where a message with a later
+ * deadline starts: the bytes after it are copied to a chunk of their own. Messages starting
+ * in the same read with the same deadline, as with a constant delay, stay in one chunk.
+ * Only used by the thread reading the direction.
+ */
+public class MessageFramer {
+    private MessageDecoder decoder;
+    private Shaper shaper;
+    private boolean up;
+    private Metrics.Direction metrics;
+    private BufferPool pool;
+    // null for threads without a cache
+    private BufferPool.Cache cache;
+    // delay of the message being read
+    private long delayNanos;
+    private ByteBuffer[] buffers = new ByteBuffer[4];
+    private TCPData[] chunks = new TCPData[8];
+
+    /**
+     * Up is true for the data sent to the remote host. Buffers are taken from the cache if it
+     * isn't null, from the pool otherwise.
+     */
+    public MessageFramer(MessageDecoder decoder, Shaper shaper, boolean up, Metrics.Direction metrics,
+            BufferPool pool, BufferPool.Cache cache) {
+        this.decoder = decoder;
+        this.shaper = shaper;
+        this.up = up;
+        this.metrics = metrics;
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the deadlines of the chunks filled by one read, flipped, splitting them where needed.
+     * Returns the number of chunks to queue, in getChunks().
+     */
+    public int frame(TCPData[] read, int count, long readNanos, ConnectionSettings settings) {
+        if (buffers.length < count) {
+            buffers = new ByteBuffer[count];
+        }
+        for (int i = 0; i < count; i++) {
+            buffers[i] = read[i].getBuffer();
+        }
+        decoder.decode(buffers, count);
+        Arrays.fill(buffers, 0, count, null);
+        int starts = decoder.getStarts();
+        int start = 0;
+        int framed = 0;
+        for (int i = 0; i < count; i++) {
+            TCPData data = read[i];
+            ByteBuffer buffer = data.getBuffer();
+            int limit = buffer.limit();
+            reserve(framed);
+            chunks[framed++] = data;
+            // the bytes from the start of the buffer to the first split stay in the chunk read
+            int firstEnd = limit;
+            long firstDeadline = 0;
+            int from = 0;
+            int offset = 0;
+            long deadline = 0;
+            while (offset < limit) {
+                boolean next = start < starts && decoder.getStartBuffer(start) == i;
+                if (next && decoder.getStartOffset(start) == offset) {
+                    DelayProfile profile = decoder.getStartProfile(start);
+                    delayNanos = (profile != null ? profile : settings.getDelay(up)).nextDelayNanos();
+                    metrics.message();
+                    start++;
+                    continue;
+                }
+                int end = next ? decoder.getStartOffset(start) : limit;
+                long segmentDeadline = shaper.getDeadlineNanos(end - offset, readNanos, delayNanos, settings);
+                if (offset > from && segmentDeadline != deadline) {
+                    if (from == 0) {
+                        firstEnd = offset;
+                        firstDeadline = deadline;
+                    } else {
+                        framed = copy(buffer, from, offset, deadline, framed);
+                    }
+                    from = offset;
+                }
+                deadline = segmentDeadline;
+                offset = end;
+            }
+            if (from == 0) {
+                firstDeadline = deadline;
+            } else {
+                framed = copy(buffer, from, limit, deadline, framed);
+            }
+            buffer.limit(firstEnd);
+            data.set(firstEnd, firstDeadline);
+        }
+        return framed;
+    }
+
+    /**
+     * Chunks of the last frame(), to be cleared by the caller once queued.
+     */
+    public TCPData[] getChunks() {
+        return chunks;
+    }
+
+    private int copy(ByteBuffer buffer, int from, int to, long deadline, int framed) {
+        TCPData copy = cache != null ? cache.acquire() : pool.acquire();
+        ByteBuffer copied = copy.getBuffer();
+        copied.put(0, buffer, from, to - from);
+        copied.limit(to - from);
+        copy.set(to - from, deadline);
+        reserve(framed);
+        chunks[framed] = copy;
+        return framed + 1;
+    }
+
+    private void reserve(int framed) {
+        if (framed == chunks.length) {
+            chunks = Arrays.copyOf(chunks, framed * 2);
+        }
+    }
+}
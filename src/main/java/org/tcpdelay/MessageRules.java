@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Delay profiles of the messages of one direction, by path or by type. Described as
+ * {@code <match>=<profile>[;<match>=<profile>...]}: with the http protocol a match is the start
+ * of the path of the request, and applies to the request or to its response; with a length
+ * protocol it is a message type. The first rule matching a message gives its delay, the other
+ * messages get the delay of the connection. Immutable.
+ */
+public class MessageRules {
+    private String description;
+    private byte[][] prefixes;
+    // -1 when the match isn't a type
+    private int[] types;
+    private DelayProfile[] profiles;
+
+    private MessageRules(String description, byte[][] prefixes, int[] types, DelayProfile[] profiles) {
+        this.description = description;
+        this.prefixes = prefixes;
+        this.types = types;
+        this.profiles = profiles;
+    }
+
+    /**
+     * Parses rules. Throws an IllegalArgumentException if they aren't valid.
+     */
+    public static MessageRules parse(String spec) {
+        String[] rules = spec.split(";");
+        byte[][] prefixes = new byte[rules.length][];
+        int[] types = new int[rules.length];
+        DelayProfile[] profiles = new DelayProfile[rules.length];
+        for (int i = 0; i < rules.length; i++) {
+            int equals = rules[i].indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Invalid message delay rule: " + rules[i]);
+            }
+            String match = rules[i].substring(0, equals).trim();
+            prefixes[i] = match.getBytes(StandardCharsets.US_ASCII);
+            types[i] = -1;
+            try {
+                int type = Integer.parseInt(match);
+                if (type >= 0 && type <= 255) {
+                    types[i] = type;
+                }
+            } catch (NumberFormatException e) {
+                // a path
+            }
+            profiles[i] = DelayProfile.parse(rules[i].substring(equals + 1).trim());
+        }
+        return new MessageRules(spec, prefixes, types, profiles);
+    }
+
+    /**
+     * Throws an IllegalArgumentException if the rules can't match the messages of the protocol.
+     */
+    public void check(Protocol protocol) {
+        for (int i = 0; i < profiles.length; i++) {
+            if (protocol == null) {
+                throw new IllegalArgumentException("Message delay rules need a protocol: " + description);
+            }
+            if (protocol.isHttp() && (prefixes[i].length == 0 || prefixes[i][0] != '/')) {
+                throw new IllegalArgumentException("Not a path in message delay rule: " + new String(prefixes[i],
+                        StandardCharsets.US_ASCII));
+            }
+            if (!protocol.isHttp() && (!protocol.hasType() || types[i] < 0)) {
+                throw new IllegalArgumentException("Not a message type of protocol " + protocol
+                        + " in message delay rule: " + new String(prefixes[i], StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    /**
+     * Index of the first rule matching the start of the path, -1 if none does.
+     */
+    public int matchPath(byte[] path, int offset, int len) {
+        for (int i = 0; i < prefixes.length; i++) {
+            byte[] prefix = prefixes[i];
+            if (prefix.length > len) {
+                continue;
+            }
+            int j = 0;
+            while (j < prefix.length && prefix[j] == path[offset + j]) {
+                j++;
+            }
+            if (j == prefix.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Index of the first rule matching the type, -1 if none does.
+     */
+    public int matchType(int type) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public DelayProfile getProfile(int rule) {
+        return profiles[rule];
+    }
+
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tcpdelay;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one event loop. Each loop updates its own instance, so recording
+ * doesn't contend between loops. ProxyMetrics adds up the loops when read.
+ */
+public class Metrics {
+
+    /**
+     * Counters of one direction: client to remote (up) or remote to client (down).
+     */
+    public static class Direction {
+        private AtomicLong bytes = new AtomicLong();
+        private AtomicLong chunks = new AtomicLong();
+        private AtomicLong queuedChunks = new AtomicLong();
+        // system calls reading from the source and writing to the target
+        private AtomicLong readCalls = new AtomicLong();
+        private AtomicLong writeCalls = new AtomicLong();
+        // messages found with -protocol
+        private AtomicLong messages = new AtomicLong();
+        // delivery time minus the time the data was due
+        private LatencyHistogram lateness = new LatencyHistogram();
+
+        void queued() {
+            queuedChunks.incrementAndGet();
+        }
+
+        void dequeued() {
+            queuedChunks.decrementAndGet();
+        }
+
+        void readCall() {
+            readCalls.incrementAndGet();
+        }
+
+        void writeCall() {
+            writeCalls.incrementAndGet();
+        }
+
+        void message() {
+            messages.incrementAndGet();
+        }
+
+        void written(int len, long latenessNanos) {
+            bytes.addAndGet(len);
+            chunks.incrementAndGet();
+            lateness.record(latenessNanos);
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getChunks() {
+            return chunks.get();
+        }
+
+        public long getQueuedChunks() {
+            return queuedChunks.get();
+        }
+
+        public long getReadCalls() {
+            return readCalls.get();
+        }
+
+        public long getWriteCalls() {
+            return writeCalls.get();
+        }
+
+        public long getMessages() {
+            return messages.get();
+        }
+
+        public LatencyHistogram getLateness() {
+            return lateness;
+        }
+    }
+
+    private Direction up = new Direction();
+    private Direction down = new Direction();
+
+    private AtomicLong connectionsAccepted = new AtomicLong();
+    private AtomicLong connectionsOpen = new AtomicLong();
+    private AtomicLong connectFailures = new AtomicLong();
+    // closed by the idle, half-close or lifetime timeouts, and refused over -maxConnections
+    private AtomicLong connectionsTimedOut = new AtomicLong();
+    private AtomicLong connectionsRejected = new AtomicLong();
+    // from the accept to the connection being handled by its loop
+    private LatencyHistogram acceptLatency = new LatencyHistogram();
+    // from the start of the connect to the remote host to the connection being established
+    private LatencyHistogram connectLatency = new LatencyHistogram();
+
+    public Direction getUp() {
+        return up;
+    }
+
+    public Direction getDown() {
+        return down;
+    }
+
+    void accepted(long latencyNanos) {
+        connectionsAccepted.incrementAndGet();
+        connectionsOpen.incrementAndGet();
+        acceptLatency.record(latencyNanos);
+    }
+
+    void connected(long latencyNanos) {
+        connectLatency.record(latencyNanos);
+    }
+
+    void connectFailed() {
+        connectFailures.incrementAndGet();
+    }
+
+    void closed() {
+        connectionsOpen.decrementAndGet();
+    }
+
+    void timedOut() {
+        connectionsTimedOut.incrementAndGet();
+    }
+
+    void rejected() {
+        connectionsRejected.incrementAndGet();
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public long getConnectionsOpen() {
+        return connectionsOpen.get();
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.get();
+    }
+
+    public long getConnectionsTimedOut() {
+        return connectionsTimedOut.get();
+    }
+
+    public long getConnectionsRejected() {
+        return connectionsRejected.get();
+    }
+
+    public LatencyHistogram getAcceptLatency() {
+        return acceptLatency;
+    }
+
+    public LatencyHistogram getConnectLatency() {
+        return connectLatency;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tcpdelay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP endpoint serving the metrics as text on /metrics. Only listens on the loopback address.
+ */
+public class MetricsServer {
+    private static Logger LOGGER = Logger.getLogger(MetricsServer.class.getName());
+
+    private HttpServer server;
+    private ProxyMetrics metrics;
+
+    public MetricsServer(ProxyMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                sendText(exchange, 200, metrics.getText());
+            }
+        });
+        server.start();
+        LOGGER.log(Level.INFO, "Serving metrics on http://{0}:{1}/metrics",
+                new Object[] {InetAddress.getLoopbackAddress().getHostAddress(), String.valueOf(getPort())});
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(Charset.forName("UTF-8"));
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns a Trace into a pcap file with nanosecond timestamps, which Wireshark opens. Each
+ * connection shows as two TCP streams: from the client (10.0.0.1) to TCPDelay (10.0.0.2) on the
+ * local port, and from TCPDelay to the remote host (10.0.0.3) on the remote port, both from a
+ * port made from the connection id. Reads of the client and the remote host and writes to them
+ * become packets on these streams, each showing when TCPDelay read or wrote the data, so the
+ * delay added to a chunk is the time between its read on one stream and its write on the other.
+ * Packets only hold the data kept in the trace, but their lengths and sequence numbers count
+ * all of it. Checksums are left out.
+ * <pre>
+ * java org.tcpdelay.PcapExporter &lt;trace file&gt; &lt;pcap file&gt;
+ * </pre>
+ */
+public class PcapExporter {
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int HEADERS_SIZE = 40;
+
+    private static final int CLIENT = 0x0a000001;
+    private static final int PROXY = 0x0a000002;
+    private static final int REMOTE = 0x0a000003;
+
+    private static final int FIN = 0x01;
+    private static final int SYN = 0x02;
+    private static final int ACK = 0x10;
+    private static final int PSH = 0x08;
+
+    // sequence numbers of each connection: client to proxy, proxy to client, proxy to remote, remote to proxy
+    private Map<Long, long[]> sequences = new HashMap<Long, long[]>();
+    private long startMillis;
+    private long startNanos;
+    private DataOutputStream out;
+    private byte[] data = new byte[Trace.SNAP_LEN];
+    private long packets;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java org.tcpdelay.PcapExporter <trace file> <pcap file>");
+            System.exit(1);
+        }
+        long packets = new PcapExporter().export(args[0], args[1]);
+        System.out.println("Wrote " + packets + " packets to " + args[1]);
+    }
+
+    /**
+     * Returns the number of packets written.
+     */
+    public long export(String tracePath, String pcapPath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tracePath)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pcapPath)))) {
+            this.out = out;
+            byte[] magic = new byte[Trace.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, Trace.MAGIC)) {
+                throw new IOException("Not a trace: " + tracePath);
+            }
+            startMillis = in.readLong();
+            startNanos = in.readLong();
+            int recordSize = in.readInt();
+            int snapLen = in.readInt();
+            in.skipBytes(Trace.HEADER_SIZE - Trace.MAGIC.length - 24);
+            if (recordSize != Trace.RECORD_SIZE || snapLen != Trace.SNAP_LEN) {
+                throw new IOException("Unsupported trace record size: " + recordSize);
+            }
+            out.writeInt(PCAP_MAGIC_NANOS);
+            out.writeShort(2);
+            out.writeShort(4);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(HEADERS_SIZE + Trace.SNAP_LEN);
+            out.writeInt(LINKTYPE_RAW);
+            while (true) {
+                long nanos;
+                try {
+                    nanos = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                long id = in.readLong();
+                int localPort = in.readInt();
+                int remotePort = in.readInt();
+                int len = in.readInt();
+                byte type = in.readByte();
+                boolean up = in.readByte() != 0;
+                int snap = in.readShort();
+                in.readFully(data);
+                export(nanos, id, localPort, remotePort, len, type, up, snap);
+            }
+        }
+        return packets;
+    }
+
+    private void export(long nanos, long id, int localPort, int remotePort, int len, byte type, boolean up, int snap)
+            throws IOException {
+        long[] seq = sequences.get(id);
+        if (seq == null) {
+            seq = new long[4];
+            sequences.put(id, seq);
+        }
+        int port = 1024 + (int) (id % 64511);
+        if (type == Trace.OPEN) {
+            packet(nanos, CLIENT, port, PROXY, localPort, seq, 0, 1, SYN, 0, 0);
+            packet(nanos, PROXY, localPort, CLIENT, port, seq, 1, 0, SYN | ACK, 0, 0);
+            packet(nanos, PROXY, port, REMOTE, remotePort, seq, 2, 3, SYN, 0, 0);
+            packet(nanos, REMOTE, remotePort, PROXY, port, seq, 3, 2, SYN | ACK, 0, 0);
+            return;
+        }
+        if (type != Trace.READ && type != Trace.WRITE) {
+            return;
+        }
+        int flags = len < 0 ? FIN | ACK : PSH | ACK;
+        int size = Math.max(len, 0);
+        if (type == Trace.READ && up) {
+            packet(nanos, CLIENT, port, PROXY, localPort, seq, 0, 1, flags, size, snap);
+        } else if (type == Trace.WRITE && !up) {
+            packet(nanos, PROXY, localPort, CLIENT, port, seq, 1, 0, flags, size, snap);
+        } else if (type == Trace.WRITE) {
+            packet(nanos, PROXY, port, REMOTE, remotePort, seq, 2, 3, flags, size, snap);
+        } else {
+            packet(nanos, REMOTE, remotePort, PROXY, port, seq, 3, 2, flags, size, snap);
+        }
+    }
+
+    /**
+     * Writes an IPv4 packet with a TCP header and the data kept, and moves the sequence number on.
+     */
+    private void packet(long nanos, int src, int srcPort, int dst, int dstPort, long[] seq, int from, int to,
+            int flags, int size, int snap) throws IOException {
+        long time = startMillis * 1000000 + (nanos - startNanos);
+        out.writeInt((int) (time / 1000000000));
+        out.writeInt((int) (time % 1000000000));
+        out.writeInt(HEADERS_SIZE + snap);
+        out.writeInt(HEADERS_SIZE + size);
+        // IPv4
+        int[] ip = {0x4500, HEADERS_SIZE + size, 0, 0x4000, 0x4006, 0, src >>> 16, src & 0xffff, dst >>> 16,
+                dst & 0xffff};
+        int sum = 0;
+        for (int word : ip) {
+            sum += word;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        ip[5] = ~sum & 0xffff;
+        for (int word : ip) {
+            out.writeShort(word);
+        }
+        // TCP
+        out.writeShort(srcPort);
+        out.writeShort(dstPort);
+        out.writeInt((int) seq[from]);
+        out.writeInt((flags & ACK) != 0 ? (int) seq[to] : 0);
+        out.writeByte(5 << 4);
+        out.writeByte(flags);
+        out.writeShort(65535);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.write(data, 0, snap);
+        seq[from] += size + ((flags & (SYN | FIN)) != 0 ? 1 : 0);
+        packets++;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+/**
+ * Protocol spoken on a route, so the delay is applied once per message instead of once per
+ * read. Protocols are immutable and shared by the connections of the route, which each get
+ * their own pair of decoders.
+ * <p>
+ * Protocols are described as
+ * <ul>
+ * <li>{@code http}: HTTP/1.1 requests and responses, the rules match the path of the request,</li>
+ * <li>{@code length:<offset>,<size>[,<adjust>[,<type offset>]]}: messages starting with a header
+ * holding their length as a big endian unsigned number of size bytes (1 to 4) at offset, which
+ * counts the bytes after the length plus adjust. With a type offset, the rules match the byte
+ * at that offset, from 0 to 255.</li>
+ * </ul>
+ */
+public class Protocol {
+    public static final Protocol HTTP = new Protocol("http", true, 0, 0, 0, -1);
+
+    private String description;
+    private boolean http;
+    private int lengthOffset;
+    private int lengthSize;
+    private int lengthAdjust;
+    // -1 without a type
+    private int typeOffset;
+
+    private Protocol(String description, boolean http, int lengthOffset, int lengthSize, int lengthAdjust,
+            int typeOffset) {
+        this.description = description;
+        this.http = http;
+        this.lengthOffset = lengthOffset;
+        this.lengthSize = lengthSize;
+        this.lengthAdjust = lengthAdjust;
+        this.typeOffset = typeOffset;
+    }
+
+    /**
+     * Parses a protocol description. Throws an IllegalArgumentException if it isn't valid.
+     */
+    public static Protocol parse(String spec) {
+        if (spec.equalsIgnoreCase("http")) {
+            return HTTP;
+        }
+        int colon = spec.indexOf(':');
+        if (colon < 0 || !spec.substring(0, colon).equalsIgnoreCase("length")) {
+            throw new IllegalArgumentException("Invalid protocol: " + spec);
+        }
+        String[] values = spec.substring(colon + 1).split(",");
+        if (values.length < 2 || values.length > 4) {
+            throw new IllegalArgumentException("Invalid protocol: " + spec);
+        }
+        int offset = parseInt(values[0], spec);
+        int size = parseInt(values[1], spec);
+        int adjust = values.length > 2 ? parseInt(values[2], spec) : 0;
+        int typeOffset = values.length > 3 ? parseInt(values[3], spec) : -1;
+        if (offset < 0 || size < 1 || size > 4 || (values.length > 3 && typeOffset < 0)) {
+            throw new IllegalArgumentException("Invalid protocol: " + spec);
+        }
+        return new Protocol(spec, false, offset, size, adjust, typeOffset);
+    }
+
+    private static int parseInt(String value, String spec) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number " + value + " in protocol " + spec);
+        }
+    }
+
+    /**
+     * Decoders of a new connection: from the client, and from the remote host.
+     */
+    public MessageDecoder[] newDecoders(MessageRules rulesUp, MessageRules rulesDown) {
+        if (http) {
+            HttpDecoder.Exchanges exchanges = new HttpDecoder.Exchanges(rulesDown);
+            return new MessageDecoder[] {new HttpDecoder(true, exchanges, rulesUp),
+                    new HttpDecoder(false, exchanges, rulesDown)};
+        }
+        return new MessageDecoder[] {new LengthDecoder(this, rulesUp), new LengthDecoder(this, rulesDown)};
+    }
+
+    public boolean isHttp() {
+        return http;
+    }
+
+    public boolean hasType() {
+        return typeOffset >= 0;
+    }
+
+    public int getLengthOffset() {
+        return lengthOffset;
+    }
+
+    public int getLengthSize() {
+        return lengthSize;
+    }
+
+    public int getLengthAdjust() {
+        return lengthAdjust;
+    }
+
+    public int getTypeOffset() {
+        return typeOffset;
+    }
+
+    public String toString() {
+        return description;
+    }
+}
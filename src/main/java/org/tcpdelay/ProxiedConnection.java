@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+/**
+ * A connection of a route, as seen from outside the thread proxying it: by the admin
+ * endpoint, to list the connections and change their settings. Implemented by the
+ * connections of both engines. The counters may be slightly out of date.
+ */
+public interface ProxiedConnection {
+
+    /**
+     * Unique in the process.
+     */
+    long getId();
+
+    Route getRoute();
+
+    /**
+     * Address of the client, as text.
+     */
+    String getClient();
+
+    /**
+     * Settings applied to the data read next: those of the connection if it has its own, else
+     * those of the route.
+     */
+    ConnectionSettings getSettings();
+
+    /**
+     * True if the connection has its own settings instead of following the route.
+     */
+    boolean hasOwnSettings();
+
+    /**
+     * Gives the connection its own settings, or makes it follow the route again if null.
+     * Can be called from any thread.
+     */
+    void setSettings(ConnectionSettings settings);
+
+    long getQueuedBytesUp();
+
+    long getQueuedBytesDown();
+
+    long getBytesUp();
+
+    long getBytesDown();
+
+    /**
+     * Closes both sides of the connection at once, dropping the queued data. Can be called
+     * from any thread.
+     */
+    void abort();
+}
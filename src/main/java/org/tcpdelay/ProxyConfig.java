@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+/**
+ * Settings of the proxy. Each route has its own config; the engine, the io threads, the global
+ * watermarks, the metrics and admin ports, capture, replay and trace are taken from the config given
+ * to the proxy.
+ */
+public class ProxyConfig {
+    public static final String ENGINE_NIO = "nio";
+    public static final String ENGINE_VIRTUAL = "virtual";
+
+    private int localPort;
+    // delays and bandwidths of the connections, remote host and shared bandwidths of the route,
+    // replaced as a whole on a change
+    private volatile ConnectionSettings settings = ConnectionSettings.DEFAULT;
+    private int ioThreads = 1;
+    private String engine = ENGINE_NIO;
+    private long dnsTtlMs = 30000;
+    private int prewarm;
+    private int metricsPort;
+    private int adminPort;
+    // directories of the captured data, null if none
+    private String captureDir;
+    private String replayDir;
+    private double replayScale = 1;
+    // null when not tracing
+    private String traceFile;
+
+    // one listening socket per event loop
+    private boolean reusePort;
+    // pending connections of the listening socket, 0 for the default
+    private int acceptBacklog;
+    // 0 when the loops don't spin
+    private long precisionUs;
+    // socket options of the client and remote sockets, null or 0 for the OS default
+    private Boolean tcpNoDelay;
+    private int receiveBuffer;
+    private int sendBuffer;
+
+    // timeouts closing the connections, 0 for none
+    private long idleTimeoutMs;
+    private long halfCloseTimeoutMs;
+    private long maxLifetimeMs;
+    // open connections of the route, 0 for no limit
+    private int maxConnections;
+    // null to delay each read rather than each message
+    private Protocol protocol;
+    // null when all the messages get the delay of the connection
+    private MessageRules messageDelayUp;
+    private MessageRules messageDelayDown;
+
+    // bytes queued per connection and direction
+    private long highWatermark = 4 * 1024 * 1024;
+    private long lowWatermark = 1024 * 1024;
+    // bytes queued for all connections
+    private long globalHighWatermark = 256 * 1024 * 1024;
+    private long globalLowWatermark = 192 * 1024 * 1024;
+
+    public ProxyConfig() {
+    }
+
+    public ProxyConfig(int localPort, String remoteHost, int remotePort, long delayMs) {
+        this.localPort = localPort;
+        settings = settings.withRemote(remoteHost, remotePort);
+        setDelayMs(delayMs);
+    }
+
+    /**
+     * Copy of the given config, for a route using it as defaults.
+     */
+    public ProxyConfig(ProxyConfig other) {
+        localPort = other.localPort;
+        settings = other.settings;
+        ioThreads = other.ioThreads;
+        engine = other.engine;
+        dnsTtlMs = other.dnsTtlMs;
+        prewarm = other.prewarm;
+        metricsPort = other.metricsPort;
+        adminPort = other.adminPort;
+        captureDir = other.captureDir;
+        replayDir = other.replayDir;
+        replayScale = other.replayScale;
+        traceFile = other.traceFile;
+        reusePort = other.reusePort;
+        acceptBacklog = other.acceptBacklog;
+        precisionUs = other.precisionUs;
+        tcpNoDelay = other.tcpNoDelay;
+        receiveBuffer = other.receiveBuffer;
+        sendBuffer = other.sendBuffer;
+        idleTimeoutMs = other.idleTimeoutMs;
+        halfCloseTimeoutMs = other.halfCloseTimeoutMs;
+        maxLifetimeMs = other.maxLifetimeMs;
+        maxConnections = other.maxConnections;
+        protocol = other.protocol;
+        messageDelayUp = other.messageDelayUp;
+        messageDelayDown = other.messageDelayDown;
+        highWatermark = other.highWatermark;
+        lowWatermark = other.lowWatermark;
+        globalHighWatermark = other.globalHighWatermark;
+        globalLowWatermark = other.globalLowWatermark;
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public void setLocalPort(int localPort) {
+        this.localPort = localPort;
+    }
+
+    public String getRemoteHost() {
+        return settings.getRemoteHost();
+    }
+
+    /**
+     * Host the route connects its clients to. Changed while the route runs, the new host is
+     * resolved in the background and the clients fail to connect until it resolves: the admin
+     * server resolves it first.
+     */
+    public void setRemoteHost(String remoteHost) {
+        settings = settings.withRemote(remoteHost, settings.getRemotePort());
+    }
+
+    public int getRemotePort() {
+        return settings.getRemotePort();
+    }
+
+    public void setRemotePort(int remotePort) {
+        settings = settings.withRemote(settings.getRemoteHost(), remotePort);
+    }
+
+    /**
+     * Constant delay of the data in both directions, in milliseconds rounded down, read from the
+     * settings. -1 if the two directions don't have the same constant delay.
+     */
+    public long getDelayMs() {
+        long delayNanos = getConstantDelayNanos();
+        return delayNanos < 0 ? -1 : delayNanos / 1000000;
+    }
+
+    /**
+     * Same as getDelayMs, in microseconds, so sub-millisecond delays aren't shown as 0.
+     */
+    public long getDelayUs() {
+        long delayNanos = getConstantDelayNanos();
+        return delayNanos < 0 ? -1 : delayNanos / 1000;
+    }
+
+    private long getConstantDelayNanos() {
+        ConnectionSettings current = settings;
+        DelayProfile up = current.getDelayUp();
+        DelayProfile down = current.getDelayDown();
+        if (!up.isConstant() || !down.isConstant() || up.nextDelayNanos() != down.nextDelayNanos()) {
+            return -1;
+        }
+        return up.nextDelayNanos();
+    }
+
+    /**
+     * Constant delay applied to the data in both directions. Can be changed while connections
+     * are open: it applies to the data read afterwards, and data is never reordered.
+     */
+    public void setDelayMs(long delayMs) {
+        DelayProfile profile = DelayProfile.constant(delayMs);
+        settings = settings.withDelays(profile, profile);
+    }
+
+    /**
+     * Same as setDelayMs, in microseconds.
+     */
+    public void setDelayUs(long delayUs) {
+        DelayProfile profile = DelayProfile.constantMicros(delayUs);
+        settings = settings.withDelays(profile, profile);
+    }
+
+    public ConnectionSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Delays and bandwidths of the connections, remote host and shared bandwidths of the route.
+     * Replaces all of them at once: the open connections apply the new settings to the data they
+     * read afterwards, the clients accepted afterwards connect to the new remote host.
+     */
+    public void setSettings(ConnectionSettings settings) {
+        this.settings = settings;
+    }
+
+    public DelayProfile getDelayUp() {
+        return settings.getDelayUp();
+    }
+
+    /**
+     * Delay applied to the data sent to the remote host. Can be changed while connections are open.
+     */
+    public void setDelayUp(DelayProfile delayUp) {
+        settings = settings.withDelays(delayUp, settings.getDelayDown());
+    }
+
+    public DelayProfile getDelayDown() {
+        return settings.getDelayDown();
+    }
+
+    /**
+     * Delay applied to the data sent to the clients. Can be changed while connections are open.
+     */
+    public void setDelayDown(DelayProfile delayDown) {
+        settings = settings.withDelays(settings.getDelayUp(), delayDown);
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * How connections are proxied: ENGINE_NIO for the event loops, ENGINE_VIRTUAL for a
+     * thread per direction of each connection.
+     */
+    public void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    public long getDnsTtlMs() {
+        return dnsTtlMs;
+    }
+
+    /**
+     * How long the address of the remote host is used before resolving it again.
+     */
+    public void setDnsTtlMs(long dnsTtlMs) {
+        this.dnsTtlMs = dnsTtlMs;
+    }
+
+    public int getPrewarm() {
+        return prewarm;
+    }
+
+    /**
+     * Number of idle connections to the remote host kept open for new clients.
+     */
+    public void setPrewarm(int prewarm) {
+        this.prewarm = prewarm;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Local port of the HTTP endpoint serving the metrics, none if 0.
+     */
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public int getAdminPort() {
+        return adminPort;
+    }
+
+    /**
+     * Local port of the HTTP endpoint changing the settings of the routes and connections, none if 0.
+     */
+    public void setAdminPort(int adminPort) {
+        this.adminPort = adminPort;
+    }
+
+    public String getCaptureDir() {
+        return captureDir;
+    }
+
+    /**
+     * Directory where the data read from the clients and the remote hosts is captured, see CaptureLog.
+     */
+    public void setCaptureDir(String captureDir) {
+        this.captureDir = captureDir;
+    }
+
+    public String getReplayDir() {
+        return replayDir;
+    }
+
+    /**
+     * Capture directory the remote hosts are replayed from instead of connecting to them, see ReplayServer.
+     */
+    public void setReplayDir(String replayDir) {
+        this.replayDir = replayDir;
+    }
+
+    public double getReplayScale() {
+        return replayScale;
+    }
+
+    /**
+     * Factor applied to the captured times when replaying: 2 replays twice slower.
+     */
+    public void setReplayScale(double replayScale) {
+        this.replayScale = replayScale;
+    }
+
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    /**
+     * File the binary trace of the connections is written to, see Trace.
+     */
+    public void setTraceFile(String traceFile) {
+        this.traceFile = traceFile;
+    }
+
+    public long getBandwidthUp() {
+        return settings.getBandwidthUp();
+    }
+
+    /**
+     * Bandwidth from the client to the remote host of each connection, in bits per second. 0 for no limit.
+     */
+    public void setBandwidthUp(long bandwidthUp) {
+        settings = settings.withBandwidths(bandwidthUp, settings.getBandwidthDown());
+    }
+
+    public long getBandwidthDown() {
+        return settings.getBandwidthDown();
+    }
+
+    /**
+     * Bandwidth from the remote host to the client of each connection, in bits per second. 0 for no limit.
+     */
+    public void setBandwidthDown(long bandwidthDown) {
+        settings = settings.withBandwidths(settings.getBandwidthUp(), bandwidthDown);
+    }
+
+    public long getGlobalBandwidthUp() {
+        return settings.getGlobalBandwidthUp();
+    }
+
+    /**
+     * Bandwidth from the clients to the remote host, shared by all the connections of the route. 0 for no limit.
+     */
+    public void setGlobalBandwidthUp(long globalBandwidthUp) {
+        settings = settings.withGlobalBandwidths(globalBandwidthUp, settings.getGlobalBandwidthDown());
+    }
+
+    public long getGlobalBandwidthDown() {
+        return settings.getGlobalBandwidthDown();
+    }
+
+    /**
+     * Bandwidth from the remote host to the clients, shared by all the connections of the route. 0 for no limit.
+     */
+    public void setGlobalBandwidthDown(long globalBandwidthDown) {
+        settings = settings.withGlobalBandwidths(settings.getGlobalBandwidthUp(), globalBandwidthDown);
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Each event loop listens on the local ports with its own socket, bound with SO_REUSEPORT,
+     * and accepts its connections itself.
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * Maximum number of connections waiting to be accepted on the local port, 0 for the default of Java (50).
+     */
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public long getPrecisionUs() {
+        return precisionUs;
+    }
+
+    /**
+     * Delivers the delayed data within microseconds of its deadline: the threads writing it park
+     * until that many microseconds before the next deadline, then spin until it is due. 0 to only
+     * park, with a millisecond resolution.
+     */
+    public void setPrecisionUs(long precisionUs) {
+        this.precisionUs = precisionUs;
+    }
+
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * TCP_NODELAY of the client and remote sockets, null to keep the OS default.
+     */
+    public void setTcpNoDelay(Boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public int getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    /**
+     * SO_RCVBUF of the client and remote sockets in bytes, 0 to keep the OS default.
+     */
+    public void setReceiveBuffer(int receiveBuffer) {
+        this.receiveBuffer = receiveBuffer;
+    }
+
+    public int getSendBuffer() {
+        return sendBuffer;
+    }
+
+    /**
+     * SO_SNDBUF of the client and remote sockets in bytes, 0 to keep the OS default.
+     */
+    public void setSendBuffer(int sendBuffer) {
+        this.sendBuffer = sendBuffer;
+    }
+
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    /**
+     * A connection with no data read or waiting to be written for this long is closed. 0 for no timeout.
+     */
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public long getHalfCloseTimeoutMs() {
+        return halfCloseTimeoutMs;
+    }
+
+    /**
+     * A connection is closed this long after one side closed its output, if the other side
+     * hasn't closed its own by then. 0 for no timeout.
+     */
+    public void setHalfCloseTimeoutMs(long halfCloseTimeoutMs) {
+        this.halfCloseTimeoutMs = halfCloseTimeoutMs;
+    }
+
+    public long getMaxLifetimeMs() {
+        return maxLifetimeMs;
+    }
+
+    /**
+     * A connection is closed this long after it was accepted, whatever it is doing. 0 for no limit.
+     */
+    public void setMaxLifetimeMs(long maxLifetimeMs) {
+        this.maxLifetimeMs = maxLifetimeMs;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Connections accepted while the route has this many open are closed straight away. 0 for no limit.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Protocol of the route, so the delay is sampled once per message. Null to delay each read.
+     */
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    public MessageRules getMessageDelayUp() {
+        return messageDelayUp;
+    }
+
+    /**
+     * Delays of the messages sent to the remote host matching a rule, instead of the delay up.
+     */
+    public void setMessageDelayUp(MessageRules messageDelayUp) {
+        this.messageDelayUp = messageDelayUp;
+    }
+
+    public MessageRules getMessageDelayDown() {
+        return messageDelayDown;
+    }
+
+    /**
+     * Delays of the messages sent to the client matching a rule, instead of the delay down.
+     */
+    public void setMessageDelayDown(MessageRules messageDelayDown) {
+        this.messageDelayDown = messageDelayDown;
+    }
+
+    /**
+     * New decoders for a connection, up and down, or null without a protocol.
+     */
+    public MessageDecoder[] newDecoders() {
+        return protocol == null ? null : protocol.newDecoders(messageDelayUp, messageDelayDown);
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Reading from a source stops when more than this many bytes are queued for its target.
+     */
+    public void setHighWatermark(long highWatermark) {
+        this.highWatermark = highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Reading from a paused source resumes when at most this many bytes are queued for its target.
+     */
+    public void setLowWatermark(long lowWatermark) {
+        this.lowWatermark = lowWatermark;
+    }
+
+    public long getGlobalHighWatermark() {
+        return globalHighWatermark;
+    }
+
+    /**
+     * Reading from all sources stops when more than this many bytes are queued in total.
+     */
+    public void setGlobalHighWatermark(long globalHighWatermark) {
+        this.globalHighWatermark = globalHighWatermark;
+    }
+
+    public long getGlobalLowWatermark() {
+        return globalLowWatermark;
+    }
+
+    /**
+     * Reading resumes when at most this many bytes are queued in total.
+     */
+    public void setGlobalLowWatermark(long globalLowWatermark) {
+        this.globalLowWatermark = globalLowWatermark;
+    }
+}
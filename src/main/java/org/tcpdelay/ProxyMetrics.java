@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tcpdelay;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of all the event loops, or threads, of a proxy, added up when read.
+ */
+public class ProxyMetrics implements ProxyMetricsMBean {
+    private static Logger LOGGER = Logger.getLogger(ProxyMetrics.class.getName());
+
+    private static final int UP = 0;
+    private static final int DOWN = 1;
+
+    private Metrics[] metrics;
+    private FlowControl flowControl;
+    private BufferPool bufferPool;
+    private List<Route> routes;
+
+    public ProxyMetrics(EventLoopGroup loops, List<Route> routes) {
+        this(loops.getMetrics(), loops.getFlowControl(), loops.getBufferPool(), routes);
+    }
+
+    /**
+     * Metrics adding up the given counters, usually one per thread recording them.
+     */
+    public ProxyMetrics(Metrics[] metrics, FlowControl flowControl, BufferPool bufferPool, List<Route> routes) {
+        this.metrics = metrics;
+        this.flowControl = flowControl;
+        this.bufferPool = bufferPool;
+        this.routes = routes;
+    }
+
+    /**
+     * Publishes the metrics as org.tcpdelay:type=Proxy,port=<local port of the first route>.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, getObjectName());
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Unable to register metrics with JMX: {0}", e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Unable to unregister metrics from JMX: {0}", e.getMessage());
+        }
+    }
+
+    private ObjectName getObjectName() throws Exception {
+        return new ObjectName("org.tcpdelay:type=Proxy,port=" + routes.get(0).getConfig().getLocalPort());
+    }
+
+    /**
+     * Constant delay of the first route, -1 if it varies or differs between the directions.
+     */
+    public long getDelayMs() {
+        return routes.get(0).getConfig().getDelayMs();
+    }
+
+    /**
+     * Same as getDelayMs, in microseconds.
+     */
+    public long getDelayUs() {
+        return routes.get(0).getConfig().getDelayUs();
+    }
+
+    public String getDelayUp() {
+        if (routes.size() == 1) {
+            return routes.get(0).getConfig().getDelayUp().toString();
+        }
+        StringBuilder delays = new StringBuilder();
+        for (Route route : routes) {
+            delays.append(delays.length() > 0 ? " " : "").append(route.getConfig().getLocalPort())
+                    .append('=').append(route.getConfig().getDelayUp());
+        }
+        return delays.toString();
+    }
+
+    public String getDelayDown() {
+        if (routes.size() == 1) {
+            return routes.get(0).getConfig().getDelayDown().toString();
+        }
+        StringBuilder delays = new StringBuilder();
+        for (Route route : routes) {
+            delays.append(delays.length() > 0 ? " " : "").append(route.getConfig().getLocalPort())
+                    .append('=').append(route.getConfig().getDelayDown());
+        }
+        return delays.toString();
+    }
+
+    public int getRoutes() {
+        return routes.size();
+    }
+
+    public long getConnectionsOpen() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getConnectionsOpen();
+        }
+        return total;
+    }
+
+    public long getConnectionsAccepted() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getConnectionsAccepted();
+        }
+        return total;
+    }
+
+    public long getConnectFailures() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getConnectFailures();
+        }
+        return total;
+    }
+
+    public long getConnectionsTimedOut() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getConnectionsTimedOut();
+        }
+        return total;
+    }
+
+    public long getConnectionsRejected() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getConnectionsRejected();
+        }
+        return total;
+    }
+
+    public long getBytesUp() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getUp().getBytes();
+        }
+        return total;
+    }
+
+    public long getBytesDown() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getDown().getBytes();
+        }
+        return total;
+    }
+
+    public long getChunksUp() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getUp().getChunks();
+        }
+        return total;
+    }
+
+    public long getChunksDown() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getDown().getChunks();
+        }
+        return total;
+    }
+
+    /**
+     * Reads and writes on the sockets of the connections, to compare with the bytes proxied.
+     */
+    public long getSocketCalls() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getUp().getReadCalls() + threadMetrics.getUp().getWriteCalls()
+                    + threadMetrics.getDown().getReadCalls() + threadMetrics.getDown().getWriteCalls();
+        }
+        return total;
+    }
+
+    public long getQueuedChunks() {
+        long total = 0;
+        for (Metrics threadMetrics : metrics) {
+            total += threadMetrics.getUp().getQueuedChunks() + threadMetrics.getDown().getQueuedChunks();
+        }
+        return total;
+    }
+
+    public long getQueuedBytes() {
+        return flowControl.getQueuedBytes();
+    }
+
+    public long getLatenessUpP50Micros() {
+        return lateness(UP).getPercentile(0.5) / 1000;
+    }
+
+    public long getLatenessUpP99Micros() {
+        return lateness(UP).getPercentile(0.99) / 1000;
+    }
+
+    public long getLatenessUpP999Micros() {
+        return lateness(UP).getPercentile(0.999) / 1000;
+    }
+
+    public long getLatenessUpMaxMicros() {
+        return lateness(UP).getMax() / 1000;
+    }
+
+    public long getLatenessDownP50Micros() {
+        return lateness(DOWN).getPercentile(0.5) / 1000;
+    }
+
+    public long getLatenessDownP99Micros() {
+        return lateness(DOWN).getPercentile(0.99) / 1000;
+    }
+
+    public long getLatenessDownP999Micros() {
+        return lateness(DOWN).getPercentile(0.999) / 1000;
+    }
+
+    public long getLatenessDownMaxMicros() {
+        return lateness(DOWN).getMax() / 1000;
+    }
+
+    public long getAcceptLatencyP99Micros() {
+        return acceptLatency().getPercentile(0.99) / 1000;
+    }
+
+    public long getConnectLatencyP50Micros() {
+        return connectLatency().getPercentile(0.5) / 1000;
+    }
+
+    public long getConnectLatencyP99Micros() {
+        return connectLatency().getPercentile(0.99) / 1000;
+    }
+
+    public long getBufferPoolCapacity() {
+        return bufferPool.getCapacity();
+    }
+
+    public long getBufferPoolInUse() {
+        return bufferPool.getInUse();
+    }
+
+    public long getBufferPoolLeaks() {
+        return bufferPool.getLeaks();
+    }
+
+    public String getText() {
+        StringBuilder text = new StringBuilder();
+        appendMetric(text, "tcpdelay_routes", null, getRoutes());
+        appendMetric(text, "tcpdelay_delay_ms", null, getDelayMs());
+        appendMetric(text, "tcpdelay_delay_us", null, getDelayUs());
+        appendMetric(text, "tcpdelay_connections_open", null, getConnectionsOpen());
+        appendMetric(text, "tcpdelay_connections_accepted_total", null, getConnectionsAccepted());
+        appendMetric(text, "tcpdelay_connect_failures_total", null, getConnectFailures());
+        appendMetric(text, "tcpdelay_connections_timed_out_total", null, getConnectionsTimedOut());
+        appendMetric(text, "tcpdelay_connections_rejected_total", null, getConnectionsRejected());
+        appendMetric(text, "tcpdelay_bytes_total", "direction=\"up\"", getBytesUp());
+        appendMetric(text, "tcpdelay_bytes_total", "direction=\"down\"", getBytesDown());
+        appendMetric(text, "tcpdelay_chunks_total", "direction=\"up\"", getChunksUp());
+        appendMetric(text, "tcpdelay_chunks_total", "direction=\"down\"", getChunksDown());
+        for (int direction = UP; direction <= DOWN; direction++) {
+            long reads = 0;
+            long writes = 0;
+            long messages = 0;
+            for (Metrics threadMetrics : metrics) {
+                Metrics.Direction counters = direction == UP ? threadMetrics.getUp() : threadMetrics.getDown();
+                reads += counters.getReadCalls();
+                writes += counters.getWriteCalls();
+                messages += counters.getMessages();
+            }
+            String labels = direction == UP ? "direction=\"up\"" : "direction=\"down\"";
+            appendMetric(text, "tcpdelay_read_calls_total", labels, reads);
+            appendMetric(text, "tcpdelay_write_calls_total", labels, writes);
+            appendMetric(text, "tcpdelay_messages_total", labels, messages);
+        }
+        appendMetric(text, "tcpdelay_queued_chunks", null, getQueuedChunks());
+        appendMetric(text, "tcpdelay_queued_bytes", null, getQueuedBytes());
+        appendHistogram(text, "tcpdelay_lateness_us", "direction=\"up\",", lateness(UP));
+        appendHistogram(text, "tcpdelay_lateness_us", "direction=\"down\",", lateness(DOWN));
+        appendHistogram(text, "tcpdelay_accept_latency_us", "", acceptLatency());
+        appendHistogram(text, "tcpdelay_connect_latency_us", "", connectLatency());
+        appendMetric(text, "tcpdelay_buffer_pool_capacity", null, getBufferPoolCapacity());
+        appendMetric(text, "tcpdelay_buffer_pool_in_use", null, getBufferPoolInUse());
+        appendMetric(text, "tcpdelay_buffer_pool_leaks", null, getBufferPoolLeaks());
+        appendMetric(text, "tcpdelay_buffer_pool_double_releases", null, bufferPool.getDoubleReleases());
+        return text.toString();
+    }
+
+    private LatencyHistogram.Snapshot lateness(int direction) {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        for (Metrics threadMetrics : metrics) {
+            snapshot.add((direction == UP ? threadMetrics.getUp() : threadMetrics.getDown()).getLateness());
+        }
+        return snapshot;
+    }
+
+    private LatencyHistogram.Snapshot acceptLatency() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        for (Metrics threadMetrics : metrics) {
+            snapshot.add(threadMetrics.getAcceptLatency());
+        }
+        return snapshot;
+    }
+
+    private LatencyHistogram.Snapshot connectLatency() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        for (Metrics threadMetrics : metrics) {
+            snapshot.add(threadMetrics.getConnectLatency());
+        }
+        return snapshot;
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String labels, long value) {
+        text.append(name);
+        if (labels != null) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    private static void appendHistogram(StringBuilder text, String name, String labels,
+                                        LatencyHistogram.Snapshot snapshot) {
+        appendMetric(text, name, labels + "quantile=\"0.5\"", snapshot.getPercentile(0.5) / 1000);
+        appendMetric(text, name, labels + "quantile=\"0.99\"", snapshot.getPercentile(0.99) / 1000);
+        appendMetric(text, name, labels + "quantile=\"0.999\"", snapshot.getPercentile(0.999) / 1000);
+        appendMetric(text, name, labels + "quantile=\"1\"", snapshot.getMax() / 1000);
+        String countLabels = labels.length() > 0 ? labels.substring(0, labels.length() - 1) : null;
+        appendMetric(text, name + "_count", countLabels, snapshot.getCount());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tcpdelay;
+
+/**
+ * Metrics of the proxy published through JMX. Durations are in microseconds.
+ */
+public interface ProxyMetricsMBean {
+
+    long getDelayMs();
+
+    long getDelayUs();
+
+    String getDelayUp();
+
+    String getDelayDown();
+
+    int getRoutes();
+
+    long getConnectionsOpen();
+
+    long getConnectionsAccepted();
+
+    long getConnectFailures();
+
+    long getConnectionsTimedOut();
+
+    long getConnectionsRejected();
+
+    long getBytesUp();
+
+    long getBytesDown();
+
+    long getChunksUp();
+
+    long getChunksDown();
+
+    long getSocketCalls();
+
+    long getQueuedChunks();
+
+    long getQueuedBytes();
+
+    long getLatenessUpP50Micros();
+
+    long getLatenessUpP99Micros();
+
+    long getLatenessUpP999Micros();
+
+    long getLatenessUpMaxMicros();
+
+    long getLatenessDownP50Micros();
+
+    long getLatenessDownP99Micros();
+
+    long getLatenessDownP999Micros();
+
+    long getLatenessDownMaxMicros();
+
+    long getAcceptLatencyP99Micros();
+
+    long getConnectLatencyP50Micros();
+
+    long getConnectLatencyP99Micros();
+
+    long getBufferPoolCapacity();
+
+    long getBufferPoolInUse();
+
+    long getBufferPoolLeaks();
+
+    /**
+     * All the metrics, one per line, in the Prometheus text format.
+     */
+    String getText();
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stand-in for the remote hosts, answering from a capture directory written with -capture.
+ * Listens on a loopback ephemeral port per route and the routes connect to it instead of their
+ * remote host, so delays, bandwidths and every other setting still apply on top of the replay.
+ * <p>
+ * Each new connection plays the next captured connection of the route, in the order they were
+ * opened, starting over after the last one. The data the remote host sent is sent back with
+ * its original timing: a chunk captured some time after the client data before it is sent the
+ * same time (times the scale) after that many bytes arrived from the client. The client data
+ * itself is counted but not compared. Runs on its own thread, with a timer wheel like the
+ * event loops.
+ */
+public class ReplayServer implements Runnable {
+    private static Logger LOGGER = Logger.getLogger(ReplayServer.class.getName());
+
+    private static final long TICK_NANOS = 1000000;
+    private static final int WHEEL_SIZE = 1024;
+
+    private CaptureReader capture;
+    private double scale;
+    private Selector selector;
+    private TimerWheel wheel;
+    // client data is only counted
+    private ByteBuffer discard;
+    private Consumer<SelectionKey> keyHandler;
+
+    /**
+     * Reads the capture directory of the config.
+     */
+    public ReplayServer(ProxyConfig config) throws IOException {
+        capture = new CaptureReader(new File(config.getReplayDir()));
+        scale = config.getReplayScale();
+        selector = Selector.open();
+        wheel = new TimerWheel(TICK_NANOS, WHEEL_SIZE, System.nanoTime());
+        discard = ByteBuffer.allocateDirect(BufferPool.BUFFER_SIZE);
+        keyHandler = new Consumer<SelectionKey>() {
+            public void accept(SelectionKey key) {
+                if (key.isValid()) {
+                    ((KeyHandler) key.attachment()).handleKey(key, System.nanoTime());
+                }
+            }
+        };
+    }
+
+    /**
+     * Listens for each route on a loopback port, and points the route to it. Must be called
+     * before the routes are created.
+     */
+    public void listen(List<ProxyConfig> routeConfigs) throws IOException {
+        for (ProxyConfig routeConfig : routeConfigs) {
+            List<CaptureReader.Connection> connections = capture.getConnections(routeConfig.getLocalPort());
+            if (connections.isEmpty()) {
+                LOGGER.log(Level.WARNING, "No captured connection for local port {0}, its connections will be closed",
+                        String.valueOf(routeConfig.getLocalPort()));
+            }
+            ServerSocketChannel ssc = ServerSocketChannel.open();
+            ssc.configureBlocking(false);
+            ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            ssc.register(selector, SelectionKey.OP_ACCEPT, new Acceptor(ssc, connections));
+            routeConfig.setRemoteHost(InetAddress.getLoopbackAddress().getHostAddress());
+            routeConfig.setRemotePort(ssc.socket().getLocalPort());
+            LOGGER.log(Level.INFO, "Replaying {0} connections for local port {1} at {2} times their timing",
+                    new Object[] {String.valueOf(connections.size()), String.valueOf(routeConfig.getLocalPort()),
+                            String.valueOf(scale)});
+        }
+    }
+
+    /**
+     * Starts the replay thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "tcpdelay-replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                long timeoutNanos = wheel.nanosToNextExpiry(System.nanoTime());
+                if (timeoutNanos < 0) {
+                    selector.select(keyHandler);
+                } else if (timeoutNanos == 0) {
+                    selector.selectNow(keyHandler);
+                } else {
+                    selector.select(keyHandler, (timeoutNanos + TICK_NANOS - 1) / TICK_NANOS);
+                }
+                wheel.expire(System.nanoTime());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Exception during selection: {0}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Accepts the connections of a route, each playing the next captured connection.
+     */
+    private class Acceptor implements KeyHandler {
+        private ServerSocketChannel ssc;
+        private List<CaptureReader.Connection> connections;
+        private int next;
+
+        Acceptor(ServerSocketChannel ssc, List<CaptureReader.Connection> connections) {
+            this.ssc = ssc;
+            this.connections = connections;
+        }
+
+        public void handleKey(SelectionKey key, long selectTimeNanos) {
+            SocketChannel sc;
+            try {
+                sc = ssc.accept();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error accepting connection: {0}", e.getMessage());
+                return;
+            }
+            if (sc == null) {
+                return;
+            }
+            if (connections.isEmpty()) {
+                close(sc);
+                return;
+            }
+            CaptureReader.Connection captured = connections.get(next);
+            next = (next + 1) % connections.size();
+            try {
+                sc.configureBlocking(false);
+                new Replay(sc, captured, selectTimeNanos).advance(selectTimeNanos);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error replaying connection: {0}", e.getMessage());
+                close(sc);
+            }
+        }
+    }
+
+    /**
+     * One connection playing a captured one: waits for the client data of the capture, writes
+     * the data of the remote host once due, and closes like the remote host did.
+     */
+    private class Replay implements KeyHandler, TimerWheel.Task {
+        private SocketChannel sc;
+        private SelectionKey key;
+        private CaptureReader.Connection captured;
+        private TimerWheel.Timer timer;
+        // next record to play
+        private int next;
+        // the time a captured record happened maps to this time
+        private long anchorNanos;
+        private long capturedAnchorNanos;
+        // client bytes received, and expected up to the next record
+        private long received;
+        private long expected;
+        private ByteBuffer writing;
+        private boolean inputDone;
+        private boolean closed;
+
+        Replay(SocketChannel sc, CaptureReader.Connection captured, long nowNanos) throws IOException {
+            this.sc = sc;
+            this.captured = captured;
+            key = sc.register(selector, SelectionKey.OP_READ, this);
+            timer = new TimerWheel.Timer(this);
+            anchorNanos = nowNanos;
+            capturedAnchorNanos = captured.getStartNanos();
+            LOGGER.log(Level.FINE, "Replaying connection {0}", captured);
+        }
+
+        public void handleKey(SelectionKey key, long selectTimeNanos) {
+            if ((key.readyOps() & SelectionKey.OP_READ) == SelectionKey.OP_READ) {
+                read();
+            }
+            if (!closed && (key.readyOps() & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
+                write();
+            }
+            if (!closed) {
+                advance(selectTimeNanos);
+            }
+        }
+
+        public void expire(long nowNanos) {
+            advance(nowNanos);
+        }
+
+        private void read() {
+            int len;
+            try {
+                discard.clear();
+                len = sc.read(discard);
+            } catch (IOException e) {
+                len = -1;
+            }
+            if (len < 0) {
+                inputDone = true;
+            } else {
+                received += len;
+            }
+        }
+
+        private void write() {
+            try {
+                sc.write(writing);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Exception writing: {0}. Closing", e.getMessage());
+                close();
+                return;
+            }
+            if (!writing.hasRemaining()) {
+                writing = null;
+                next++;
+            }
+        }
+
+        /**
+         * Plays the records until one has to wait for the client, for its time or for the socket.
+         */
+        void advance(long nowNanos) {
+            while (!closed && writing == null && next < captured.size()) {
+                byte type = captured.getType(next);
+                if (type == CaptureLog.UP) {
+                    if (expected == 0) {
+                        expected = received + captured.getLen(next);
+                    }
+                    if (received < expected) {
+                        if (inputDone) {
+                            close();
+                        }
+                        break;
+                    }
+                    // extra bytes count for the next records
+                    expected = 0;
+                    anchorNanos = nowNanos;
+                    capturedAnchorNanos = captured.getNanos(next);
+                    next++;
+                } else if (type == CaptureLog.DOWN) {
+                    long dueNanos = anchorNanos
+                            + (long) ((captured.getNanos(next) - capturedAnchorNanos) * scale);
+                    if (dueNanos - nowNanos > TICK_NANOS / 2) {
+                        wheel.schedule(timer, dueNanos);
+                        break;
+                    }
+                    writing = captured.getData(next).duplicate();
+                    write();
+                } else if (type == CaptureLog.DOWN_END) {
+                    try {
+                        sc.shutdownOutput();
+                    } catch (IOException e) {
+                        // do nothing
+                    }
+                    next++;
+                } else {
+                    // the client closing isn't waited for
+                    next++;
+                }
+            }
+            if (closed) {
+                return;
+            }
+            if (writing == null && next == captured.size()) {
+                close();
+                return;
+            }
+            int ops = inputDone ? 0 : SelectionKey.OP_READ;
+            if (writing != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            wheel.cancel(timer);
+            ReplayServer.close(sc);
+        }
+    }
+
+    private static void close(SocketChannel sc) {
+        try {
+            sc.close();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local port proxied to a remote host, with its own delays and bandwidth. All the routes
+ * share the event loops, the buffer pool and the global watermarks of the proxy; a route
+ * only holds its settings, the address of its remote host, its shared links and its open
+ * connections. The settings, the shared bandwidths and the remote host can be changed while
+ * connections are open, all at once since they are published in the same ConnectionSettings.
+ */
+public class Route {
+    private static final AtomicLong NEXT_CONNECTION_ID = new AtomicLong(1);
+
+    private ProxyConfig config;
+    private AddressResolver addressResolver;
+    // used when the shared bandwidth of their direction is limited
+    private SharedLink upLink;
+    private SharedLink downLink;
+    private ConcurrentMap<Long, ProxiedConnection> connections;
+    // accepted connections not closed yet, counted from the accept so -maxConnections holds
+    // before the connections are registered
+    private AtomicInteger admitted;
+    // one per event loop, null without prewarmed connections
+    private UpstreamPool[] upstreamPools;
+
+    /**
+     * The loops are null if the route isn't served by event loops, it then has no prewarmed connections.
+     */
+    public Route(ProxyConfig config, EventLoopGroup loops) {
+        this.config = config;
+        connections = new ConcurrentHashMap<Long, ProxiedConnection>();
+        admitted = new AtomicInteger();
+        addressResolver = new AddressResolver(config.getRemoteHost(), config.getRemotePort(), config.getDnsTtlMs());
+        upLink = new SharedLink();
+        downLink = new SharedLink();
+        int prewarm = config.getPrewarm();
+        if (prewarm > 0 && loops != null) {
+            int size = loops.size();
+            upstreamPools = new UpstreamPool[size];
+            for (int i = 0; i < size; i++) {
+                upstreamPools[i] = new UpstreamPool(loops.get(i), addressResolver, config, (prewarm + size - 1) / size);
+            }
+        }
+    }
+
+    /**
+     * Resolves the remote host and opens the prewarmed connections.
+     */
+    public void start() {
+        addressResolver.resolveNow(config.getRemoteHost(), config.getRemotePort());
+        if (upstreamPools != null) {
+            for (final UpstreamPool pool : upstreamPools) {
+                pool.getLoop().execute(new Runnable() {
+                    public void run() {
+                        pool.fill();
+                    }
+                });
+            }
+        }
+    }
+
+    public ProxyConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Aborts the open connections and closes the prewarmed ones, once no more connections are
+     * accepted for the route. The connections are closed by their loops, afterwards.
+     */
+    public void close() {
+        if (upstreamPools != null) {
+            for (final UpstreamPool pool : upstreamPools) {
+                pool.getLoop().execute(new Runnable() {
+                    public void run() {
+                        pool.close();
+                    }
+                });
+            }
+        }
+        for (ProxiedConnection connection : connections.values()) {
+            connection.abort();
+        }
+    }
+
+    /**
+     * Publishes the new settings of the route, with a single write. A new remote host must
+     * already be resolved with AddressResolver.resolveTarget, and its address is given: the
+     * clients accepted afterwards connect to it, the open connections stay connected to the
+     * previous one and prewarmed connections are opened again.
+     */
+    public synchronized void update(ConnectionSettings settings, InetSocketAddress remote) {
+        if (remote != null) {
+            addressResolver.setTarget(settings.getRemoteHost(), remote);
+        }
+        config.setSettings(settings);
+        if (remote != null && upstreamPools != null) {
+            for (final UpstreamPool pool : upstreamPools) {
+                pool.getLoop().execute(new Runnable() {
+                    public void run() {
+                        pool.reset();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Address of the remote host of the current settings, without blocking, see AddressResolver.
+     */
+    public InetSocketAddress resolveRemote() {
+        ConnectionSettings settings = config.getSettings();
+        return addressResolver.resolve(settings.getRemoteHost(), settings.getRemotePort());
+    }
+
+    /**
+     * Identifier of a new connection, unique in the process.
+     */
+    static long newConnectionId() {
+        return NEXT_CONNECTION_ID.getAndIncrement();
+    }
+
+    /**
+     * Counts a connection just accepted. Returns false if the route already has -maxConnections
+     * open, the connection must then be closed without being proxied.
+     */
+    boolean admit() {
+        int max = config.getMaxConnections();
+        while (true) {
+            int open = admitted.get();
+            if (max > 0 && open >= max) {
+                return false;
+            }
+            if (admitted.compareAndSet(open, open + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * An admitted connection closed before it could be registered.
+     */
+    void release() {
+        admitted.decrementAndGet();
+    }
+
+    void register(ProxiedConnection connection) {
+        connections.put(connection.getId(), connection);
+    }
+
+    /**
+     * Removes a closing connection, and releases its place.
+     */
+    void unregister(ProxiedConnection connection) {
+        connections.remove(connection.getId());
+        release();
+    }
+
+    /**
+     * The open connections of the route.
+     */
+    public Collection<ProxiedConnection> getConnections() {
+        return Collections.unmodifiableCollection(connections.values());
+    }
+
+    public ProxiedConnection getConnection(long id) {
+        return connections.get(id);
+    }
+
+    public AddressResolver getAddressResolver() {
+        return addressResolver;
+    }
+
+    /**
+     * Link shared by the data sent to the remote host if up, to the clients otherwise, at the
+     * rate of the settings of the route.
+     */
+    public SharedLink getLink(boolean up) {
+        return up ? upLink : downLink;
+    }
+
+    /**
+     * Prewarmed connections of the given loop, null if there are none.
+     */
+    public UpstreamPool getUpstreamPool(EventLoop loop) {
+        return upstreamPools == null ? null : upstreamPools[loop.getId()];
+    }
+
+    public String toString() {
+        return config.getLocalPort() + " -> " + config.getRemoteHost() + ":" + config.getRemotePort();
+    }
+}
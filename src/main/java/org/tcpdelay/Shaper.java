@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+/**
+ * Computes when the chunks read for one direction of a connection are due: once they went
+ * through the shared link of the route, then the link of the connection, then the delay, and
+ * not before the chunks read before them. The settings are those of the connection when the
+ * chunk is read, so a change applies to the data read afterwards without reordering it.
+ * Only used by the thread reading the direction.
+ */
+public class Shaper {
+    private Route route;
+    private boolean up;
+    // null when the bandwidth of the connection isn't limited
+    private Link link;
+    private long lastDeadlineNanos = Long.MIN_VALUE;
+
+    /**
+     * Up is true for the data sent to the remote host.
+     */
+    public Shaper(Route route, boolean up) {
+        this.route = route;
+        this.up = up;
+    }
+
+    /**
+     * Time the given number of bytes, read at the given time, are due.
+     */
+    public long getDeadlineNanos(int bytes, long readNanos, ConnectionSettings settings) {
+        return getDeadlineNanos(bytes, readNanos, settings.getDelay(up).nextDelayNanos(), settings);
+    }
+
+    /**
+     * Time the given number of bytes, read at the given time, are due with the given delay
+     * instead of one sampled from the settings.
+     */
+    public long getDeadlineNanos(int bytes, long readNanos, long delayNanos, ConnectionSettings settings) {
+        long sentNanos = readNanos;
+        // the settings of the connection may be its own, the shared rate is the route's
+        long sharedBitsPerSecond = route.getConfig().getSettings().getGlobalBandwidth(up);
+        if (sharedBitsPerSecond > 0) {
+            sentNanos = route.getLink(up).transmit(bytes, sentNanos, sharedBitsPerSecond);
+        }
+        long bitsPerSecond = settings.getBandwidth(up);
+        if (bitsPerSecond <= 0) {
+            link = null;
+        } else if (link == null) {
+            link = new Link(bitsPerSecond);
+        } else if (link.getBitsPerSecond() != bitsPerSecond) {
+            link.setBitsPerSecond(bitsPerSecond);
+        }
+        if (link != null) {
+            sentNanos = link.transmit(bytes, sentNanos);
+        }
+        lastDeadlineNanos = Math.max(lastDeadlineNanos, sentNanos + delayNanos);
+        return lastDeadlineNanos;
+    }
+}
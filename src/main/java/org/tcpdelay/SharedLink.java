@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emulated link of limited bandwidth shared by all the connections of the proxy, for one
+ * direction. Same model as Link, but chunks from all the event loops go through it in the
+ * order they are read. Chunks go through the shared link before the link of their connection,
+ * so a connection slowed down by its own link doesn't hold up the others. The rate is given with
+ * each chunk, read from the settings of the route, so it changes with them.
+ */
+public class SharedLink {
+    private AtomicLong freeAtNanos;
+
+    public SharedLink() {
+        freeAtNanos = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    /**
+     * Sends the given number of bytes, which became available at the given time, at the given
+     * rate. Returns the time their last byte went through the link.
+     */
+    public long transmit(int bytes, long availableNanos, long bitsPerSecond) {
+        long serialization = Link.serializationNanos(bytes, bitsPerSecond);
+        while (true) {
+            long freeAt = freeAtNanos.get();
+            long end = Math.max(availableNanos, freeAt) + serialization;
+            if (freeAtNanos.compareAndSet(freeAt, end)) {
+                return end;
+            }
+        }
+    }
+}
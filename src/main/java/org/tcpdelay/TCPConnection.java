@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tcpdelay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A proxied connection: the accepted client channel, the channel to the remote
+ * host and one writer per direction. Attached to the selection keys of both channels.
+ * The client isn't read until the connection to the remote host is established.
+ * Its idle, half-close and lifetime timeouts share one timer on the timeout wheel of the loop.
+ */
+public class TCPConnection implements KeyHandler, ProxiedConnection, TimerWheel.Task {
+    private static Logger LOGGER = Logger.getLogger(TCPConnection.class.getName());
+
+    private long id;
+    private EventLoop loop;
+    private Route route;
+    private ProxyConfig config;
+    // null to follow the settings of the route
+    private volatile ConnectionSettings settings;
+    private String client;
+
+    private SocketChannel clientChannel;
+    private SocketChannel remoteChannel;
+    private SelectionKey clientKey;
+    private SelectionKey remoteKey;
+
+    // client to remote
+    private TCPDataWriter upstream;
+    // remote to client
+    private TCPDataWriter downstream;
+
+    private Metrics metrics;
+    // null when not capturing
+    private CaptureLog capture;
+    private Trace trace;
+    private long connectStartNanos;
+    // null without timeouts
+    private ConnectionTimeouts timeouts;
+    private TimerWheel.Timer timeoutTimer;
+
+    private boolean connecting;
+    private boolean closed;
+
+    /**
+     * Registers the client channel accepted at the given time, without interest until the remote
+     * side is connected. The timeouts run from the accept, as with the thread engine.
+     */
+    public TCPConnection(SocketChannel clientChannel, Route route, EventLoop loop, long acceptedNanos)
+            throws IOException {
+        this.clientChannel = clientChannel;
+        this.route = route;
+        this.loop = loop;
+        id = Route.newConnectionId();
+        config = route.getConfig();
+        client = String.valueOf(clientChannel.socket().getRemoteSocketAddress());
+        metrics = loop.getMetrics();
+        capture = loop.getCaptureLog();
+        trace = loop.getTrace();
+        connecting = true;
+        clientKey = clientChannel.register(loop.getSelector(), 0, this);
+        route.register(this);
+        ConnectionTimeouts timeouts = new ConnectionTimeouts(config, acceptedNanos);
+        if (timeouts.isEnabled()) {
+            this.timeouts = timeouts;
+            timeoutTimer = new TimerWheel.Timer(this);
+            scheduleTimeout();
+        }
+    }
+
+    /**
+     * Starts connecting to the remote host, without blocking.
+     */
+    public void connect(InetSocketAddress address) {
+        try {
+            LOGGER.log(Level.FINE, "Connecting to remote host {0}", address);
+            connectStartNanos = System.nanoTime();
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(address.getHostString());
+            }
+            remoteChannel = SocketChannel.open();
+            remoteChannel.configureBlocking(false);
+            Utils.setSocketOptions(remoteChannel, config);
+            boolean connected = remoteChannel.connect(address);
+            remoteKey = remoteChannel.register(loop.getSelector(), connected ? 0 : SelectionKey.OP_CONNECT, this);
+            if (connected) {
+                connected();
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error connecting to remote host: {0}", e.getMessage());
+            metrics.connectFailed();
+            close();
+        }
+    }
+
+    /**
+     * Uses a channel already connected to the remote host and registered with the loop.
+     */
+    public void connect(SelectionKey key) {
+        remoteKey = key;
+        remoteChannel = (SocketChannel) key.channel();
+        key.attach(this);
+        connectStartNanos = System.nanoTime();
+        connected();
+    }
+
+    private void finishConnect() {
+        try {
+            remoteChannel.finishConnect();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error connecting to remote host: {0}", e.getMessage());
+            metrics.connectFailed();
+            close();
+            return;
+        }
+        connected();
+    }
+
+    private void connected() {
+        LOGGER.log(Level.INFO, "Connected to remote host {0}", remoteChannel);
+        long connectedNanos = System.nanoTime();
+        metrics.connected(connectedNanos - connectStartNanos);
+        if (capture != null) {
+            capture.open(id, config.getLocalPort(), connectedNanos);
+        }
+        if (trace != null) {
+            trace.opened(this, connectedNanos);
+        }
+        MessageDecoder[] decoders = config.newDecoders();
+        upstream = new TCPDataWriter(this, remoteChannel, loop, true, decoders == null ? null : decoders[0]);
+        downstream = new TCPDataWriter(this, clientChannel, loop, false, decoders == null ? null : decoders[1]);
+        connecting = false;
+        update();
+    }
+
+    public void handleKey(SelectionKey key, long selectTimeNanos) {
+        int readyOps = key.readyOps();
+        if ((readyOps & SelectionKey.OP_CONNECT) == SelectionKey.OP_CONNECT) {
+            finishConnect();
+            return;
+        }
+        if ((readyOps & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
+            getWriterTo(key).onWritable(selectTimeNanos);
+        }
+        if (key.isValid() && (readyOps & SelectionKey.OP_READ) == SelectionKey.OP_READ) {
+            handleRead(key, selectTimeNanos);
+        }
+    }
+
+    /**
+     * Handles read requests from an open socket. Queues the data on the writer of the other
+     * side, to be written after the delay. The writer decides how many pooled buffers one
+     * scattering read fills, and without a protocol they all share the deadline of the read.
+     */
+    private void handleRead(SelectionKey key, long selectTimeNanos) {
+        SocketChannel sc = (SocketChannel) key.channel();
+        TCPDataWriter writer = getWriterFrom(key);
+        BufferPool.Cache buffers = loop.getBufferCache();
+        TCPData[] chunks = loop.getIoChunks();
+        ByteBuffer[] scatter = loop.getIoBuffers();
+        int count = writer.getReadBuffers();
+        for (int i = 0; i < count; i++) {
+            chunks[i] = buffers.acquire();
+            scatter[i] = chunks[i].getBuffer();
+        }
+        long len;
+        try {
+            len = count == 1 ? sc.read(scatter[0]) : sc.read(scatter, 0, count);
+            (key == clientKey ? metrics.getUp() : metrics.getDown()).readCall();
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Exception reading: {0}. Closing", e.getMessage());
+            len = -1;
+        }
+        writer.readDone(len);
+        if (timeouts != null && len != 0) {
+            timeouts.active(selectTimeNanos);
+            if (len < 0 && timeouts.halfClosed(selectTimeNanos)) {
+                scheduleTimeout();
+            }
+        }
+        if (len == 0) {
+            releaseChunks(chunks, scatter, 0, count);
+            return;
+        }
+        MessageFramer framer = len > 0 ? writer.getFramer() : null;
+        // the delay is sampled for every read, or every message with a protocol, the settings can
+        // change while connections are open
+        long delayedUntilNanos = framer != null ? 0
+                : writer.getDeadlineNanos((int) Math.max(len, 0), selectTimeNanos);
+        int filled = 0;
+        if (len < 0) {
+            writer.stopReading();
+            closeInput(sc);
+            if (capture != null) {
+                capture.read(id, config.getLocalPort(), key == clientKey, selectTimeNanos, null);
+            }
+            if (trace != null) {
+                trace.read(this, key == clientKey, selectTimeNanos, scatter[0], -1);
+            }
+            chunks[0].set(-1, delayedUntilNanos);
+            filled = 1;
+        } else {
+            while (filled < count && scatter[filled].position() > 0) {
+                ByteBuffer buffer = scatter[filled];
+                buffer.flip();
+                if (capture != null) {
+                    capture.read(id, config.getLocalPort(), key == clientKey, selectTimeNanos, buffer);
+                }
+                if (trace != null) {
+                    trace.read(this, key == clientKey, selectTimeNanos, buffer, buffer.remaining());
+                }
+                chunks[filled].set(buffer.remaining(), delayedUntilNanos);
+                filled++;
+            }
+        }
+        releaseChunks(chunks, scatter, filled, count);
+        for (int i = 0; i < filled; i++) {
+            // the gathering writes share the array
+            scatter[i] = null;
+        }
+        if (framer != null) {
+            int framed = framer.frame(chunks, filled, selectTimeNanos, getSettings());
+            for (int i = 0; i < filled; i++) {
+                chunks[i] = null;
+            }
+            chunks = framer.getChunks();
+            filled = framed;
+        }
+        writer.add(chunks, filled, selectTimeNanos);
+        for (int i = 0; i < filled; i++) {
+            chunks[i] = null;
+        }
+        update();
+    }
+
+    /**
+     * Timeout timer callback. The timer isn't moved on every read, so when it fires the
+     * connection may have been active since: the timer is then scheduled again.
+     */
+    public void expire(long nowNanos) {
+        if (closed) {
+            return;
+        }
+        if (upstream != null && (upstream.getQueuedChunks() > 0 || downstream.getQueuedChunks() > 0)) {
+            // data waiting for its delay isn't idle
+            timeouts.active(nowNanos);
+        }
+        String expired = timeouts.getExpired(nowNanos);
+        if (expired == null) {
+            scheduleTimeout();
+            return;
+        }
+        LOGGER.log(Level.INFO, "Closing {0} after the {1} timeout", new Object[] {clientChannel, expired});
+        metrics.timedOut();
+        close();
+    }
+
+    /**
+     * Schedules the timeout timer for the earliest timeout, unless it is already due before.
+     */
+    private void scheduleTimeout() {
+        long deadlineNanos = timeouts.getDeadlineNanos();
+        if (deadlineNanos != Long.MAX_VALUE
+                && (!timeoutTimer.isScheduled() || deadlineNanos < timeoutTimer.getDeadlineNanos())) {
+            loop.getTimeoutWheel().schedule(timeoutTimer, deadlineNanos);
+        }
+    }
+
+    /**
+     * Gives the buffers a read didn't fill back to the pool, and clears the scratch arrays.
+     */
+    private void releaseChunks(TCPData[] chunks, ByteBuffer[] scatter, int from, int to) {
+        BufferPool.Cache buffers = loop.getBufferCache();
+        for (int i = from; i < to; i++) {
+            buffers.release(chunks[i]);
+            chunks[i] = null;
+            scatter[i] = null;
+        }
+    }
+
+    /**
+     * Writer for the data read on the given key.
+     */
+    public TCPDataWriter getWriterFrom(SelectionKey key) {
+        return key == clientKey ? upstream : downstream;
+    }
+
+    /**
+     * Writer for the data written on the given key.
+     */
+    public TCPDataWriter getWriterTo(SelectionKey key) {
+        return key == clientKey ? downstream : upstream;
+    }
+
+    /**
+     * Updates the interest of both keys after a state change. Closes the
+     * connection once the end of stream went through in both directions.
+     */
+    public void update() {
+        if (closed || connecting) {
+            return;
+        }
+        if (upstream.isDone() && downstream.isDone()) {
+            close();
+            return;
+        }
+        setInterest(clientKey, upstream, downstream);
+        setInterest(remoteKey, downstream, upstream);
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        metrics.closed();
+        route.unregister(this);
+        if (timeoutTimer != null) {
+            loop.getTimeoutWheel().cancel(timeoutTimer);
+        }
+        if (trace != null) {
+            trace.closed(this, System.nanoTime());
+        }
+        if (upstream != null) {
+            upstream.clear();
+            downstream.clear();
+            Utils.logVarArgs(LOGGER, Level.INFO, "Closing {0} after {1} bytes up in {2} chunks, {3} bytes down in {4} chunks",
+                    clientChannel, upstream.getBytesWritten(), upstream.getChunksWritten(),
+                    downstream.getBytesWritten(), downstream.getChunksWritten());
+        } else {
+            LOGGER.log(Level.INFO, "Closing {0}", clientChannel);
+        }
+        close(clientChannel);
+        if (remoteChannel != null) {
+            close(remoteChannel);
+        }
+    }
+
+    public ProxyConfig getConfig() {
+        return config;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Route getRoute() {
+        return route;
+    }
+
+    public String getClient() {
+        return client;
+    }
+
+    public ConnectionSettings getSettings() {
+        ConnectionSettings own = settings;
+        return own != null ? own : config.getSettings();
+    }
+
+    public boolean hasOwnSettings() {
+        return settings != null;
+    }
+
+    public void setSettings(ConnectionSettings settings) {
+        this.settings = settings;
+    }
+
+    public long getQueuedBytesUp() {
+        TCPDataWriter writer = upstream;
+        return writer == null ? 0 : writer.getQueuedBytes();
+    }
+
+    public long getQueuedBytesDown() {
+        TCPDataWriter writer = downstream;
+        return writer == null ? 0 : writer.getQueuedBytes();
+    }
+
+    public long getBytesUp() {
+        TCPDataWriter writer = upstream;
+        return writer == null ? 0 : writer.getBytesWritten();
+    }
+
+    public long getBytesDown() {
+        TCPDataWriter writer = downstream;
+        return writer == null ? 0 : writer.getBytesWritten();
+    }
+
+    /**
+     * Closes the connection from its event loop.
+     */
+    public void abort() {
+        loop.execute(new Runnable() {
+            public void run() {
+                LOGGER.log(Level.INFO, "Aborting {0}", clientChannel);
+                close();
+            }
+        });
+    }
+
+    private static void setInterest(SelectionKey key, TCPDataWriter from, TCPDataWriter to) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (from.isReading()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (to.isWriteBlocked()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    private static void closeInput(SocketChannel sc) {
+        Socket socket = sc.socket();
+        if (socket.isClosed() || socket.isInputShutdown()) {
+            return;
+        }
+        try {
+            LOGGER.log(Level.FINE, "Closing input {0}", sc);
+            socket.shutdownInput();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+
+    private static void close(SocketChannel sc) {
+        try {
+            sc.close();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+}
@@ -1,216 +1,238 @@
-/*
- * Copyright (C) 2011  Francois Forster
- *
- *     This program is free software: you can redistribute it and/or modify
- *     it under the terms of the GNU General Public License as published by
- *     the Free Software Foundation, either version 3 of the License, or
- *     (at your option) any later version.
- *
- *     This program is distributed in the hope that it will be useful,
- *     but WITHOUT ANY WARRANTY; without even the implied warranty of
- *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- *     GNU General Public License for more details.
- *
- *     You should have received a copy of the GNU General Public License
- *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
- */
-
-package org.tcpdelay;
-
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.DelayQueue;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-/**
- * Class taking request (connection and data) and processing them.
- */
-public class TCPDataReader implements Runnable {
-    private static Logger LOGGER = Logger.getLogger(TCPDataReader.class.getName());
-
-    private BlockingQueue<TCPData> queue;
-
-    private Selector dataSelector;
-    private Map<SocketChannel, SocketChannel> channelPairs;
-
-    private int localPort;
-    private String remoteHost;
-    private int remotePort;
-    private long delayMs;
-
-    public TCPDataReader(int localPort, String remoteHost, int remotePort, long delayMs) {
-        this.localPort = localPort;
-        this.remoteHost = remoteHost;
-        this.remotePort = remotePort;
-        this.delayMs = delayMs;
-        channelPairs = new ConcurrentHashMap<SocketChannel, SocketChannel>();
-        queue = new DelayQueue<TCPData>();
-    }
-
-    /**
-     * Listen to the local port. Handle new connections and reads from open sockets.
-     */
-    public void run() {
-        // Writer is done in another thread so we can add a delay.
-        // Data is passed from reader to writer through a queue so order is
-        // guaranteed.
-        // Since there is one queue, the same delay is assumed for all packets.
-        TCPDataWriter writer = new TCPDataWriter(queue);
-        Thread thread = new Thread(writer);
-        thread.start();
-
-        try {
-            dataSelector = Selector.open();
-            ServerSocketChannel ssc = ServerSocketChannel.open();
-            ssc.configureBlocking(false);
-            ServerSocket serverSocket = ssc.socket();
-            serverSocket.bind(new InetSocketAddress(localPort));
-            ssc.register(dataSelector, SelectionKey.OP_ACCEPT);
-
-            LOGGER.log(Level.INFO, "Accepting requests on port {0}", localPort);
-            if (delayMs > 0) {
-                LOGGER.log(Level.INFO, "Applying a delay of {0} ms to all communication", delayMs);
-            }
-
-            Set<SelectionKey> keys = null;
-            while (true) {
-                try {
-                    if (dataSelector.select() == 0) {
-                        continue;
-                    }
-                    long selectTimeNanos = System.nanoTime();
-                    keys = dataSelector.selectedKeys();
-                    for (SelectionKey key : keys) {
-                        if (key.isValid()
-                                && (key.readyOps() & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT) {
-                            ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key
-                                    .channel();
-                            handleConnection(serverSocketChannel);
-                        }
-                        if (key.isValid()
-                                && (key.readyOps() & SelectionKey.OP_READ) == SelectionKey.OP_READ) {
-                            SocketChannel sc = (SocketChannel) key.channel();
-                            handleRead(key, sc, selectTimeNanos);
-                        }
-                    }
-                } catch (IOException e) {
-                    LOGGER.log(Level.WARNING, "Exception during selection: {0}", e.getMessage());
-                } finally {
-                    if (keys != null) {
-                        keys.clear();
-                    }
-                }
-            }
-        } catch (Exception e) {
-            LOGGER.severe(e.getMessage());
-            System.exit(1);
-        }
-    }
-
-    /**
-     * Handles read requests from an open socket. Puts it in the queue for the writer to pick up after the delay.
-     */
-    private void handleRead(SelectionKey key, SocketChannel sc, long selectTimeNanos) {
-        boolean close = false;
-        ByteBuffer buffer = ByteBuffer.allocate(16384);
-        int len = 0;
-        SocketChannel pairSc = channelPairs.get(sc);
-        try {
-            len = sc.read(buffer);
-            Utils.logVarArgs(LOGGER, Level.FINE, "Read {0} bytes from {1}", len, pairSc);
-            LOGGER.log(Level.FINE,  new String(buffer.array()));
-            if (len < 0 || pairSc == null) {
-                close = true;
-            }
-        } catch (Exception e) {
-            LOGGER.log(Level.FINE, "Exception reading: {0}. Closing", e.getMessage());
-            close = true;
-        } finally {
-            if (close) {
-                len = -1;
-                key.cancel();
-                closeInput(sc);
-                channelPairs.remove(sc);
-            }
-            long delayedUntilNanos = 0;
-            if (delayMs > 0) {
-                delayedUntilNanos = selectTimeNanos + delayMs * 1000000;
-            }
-            try {
-                queue.add(new TCPData(buffer, len, pairSc, delayedUntilNanos));
-            } catch (Exception e) {
-                LOGGER.warning(e.getMessage());
-            }
-        }
-    }
-
-    /**
-     * Handles a new connection. Connects to the remote host. If that connection isn't successful, the socket is closed.
-     */
-    private void handleConnection(ServerSocketChannel serverSocketChannel) {
-        LOGGER.log(Level.INFO, "Got a request {0}", serverSocketChannel.socket().getLocalSocketAddress());
-        Socket clientSocket = null;
-        try {
-            ServerSocket serverSocket = serverSocketChannel.socket();
-            clientSocket = serverSocket.accept();
-            SocketChannel sc = clientSocket.getChannel();
-            sc.configureBlocking(false);
-
-            InetSocketAddress address = new InetSocketAddress(remoteHost, remotePort);
-            LOGGER.log(Level.FINE, "Connecting to remote host {0}", address);
-            SocketChannel pairSc = SocketChannel.open(address);
-            LOGGER.log(Level.INFO, "Connected to remote host {0}", address);
-            pairSc.configureBlocking(false);
-
-            channelPairs.put(sc, pairSc);
-            channelPairs.put(pairSc, sc);
-            sc.register(dataSelector, SelectionKey.OP_READ);
-            pairSc.register(dataSelector, SelectionKey.OP_READ);
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error connecting to remote host: {0}", e.getMessage());
-            if (clientSocket != null) {
-                LOGGER.log(Level.WARNING, "Closing {0}", clientSocket.getChannel());
-                try {
-                    clientSocket.close();
-                } catch (Exception ee) {
-                    // do nothing
-                }
-            }
-        }
-    }
-
-    private static void closeInput(SocketChannel sc) {
-        Socket socket = sc.socket();
-        if (socket.isClosed()) {
-            return;
-        }
-        if (socket.isOutputShutdown()) {
-            try {
-                LOGGER.log(Level.INFO, "Closing {0}", sc);
-                socket.close();
-            } catch (Exception e) {
-                // do nothing
-            }
-        } else if (!socket.isInputShutdown()) {
-            try {
-                LOGGER.log(Level.INFO, "Closing input {0}", sc);
-                socket.shutdownInput();
-            } catch (Exception e) {
-                // do nothing
-            }
-        }
-    }
-
-}
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class taking request (connection and data) and processing them.
+ * Connections are accepted on the calling thread and handed to one of the
+ * event loops, which handles reads, delays and writes for the connection pair.
+ * With -reusePort, the event loops accept the connections themselves instead.
+ * Any number of routes, each listening on its own local port, share the same
+ * accepting thread and event loops.
+ */
+public class TCPDataReader implements Runnable {
+    private static Logger LOGGER = Logger.getLogger(TCPDataReader.class.getName());
+
+    private Selector acceptSelector;
+    // each loop accepts on its own sockets
+    private boolean reusePort;
+    private EventLoopGroup loops;
+    private ProxyMetrics metrics;
+    // set instead of the event loops with the virtual engine
+    private ThreadEngine threadEngine;
+
+    private ProxyConfig config;
+    private List<ProxyConfig> routeConfigs;
+    private List<Route> routes;
+
+    public TCPDataReader(int localPort, String remoteHost, int remotePort, long delayMs) {
+        this(new ProxyConfig(localPort, remoteHost, remotePort, delayMs));
+    }
+
+    public TCPDataReader(ProxyConfig config) {
+        this(config, Collections.singletonList(config));
+    }
+
+    /**
+     * Proxy serving all the given routes. The io threads, global watermarks and metrics port
+     * come from config, everything else from the config of each route.
+     */
+    public TCPDataReader(ProxyConfig config, List<ProxyConfig> routeConfigs) {
+        if (routeConfigs.isEmpty()) {
+            throw new IllegalArgumentException("No route to proxy");
+        }
+        this.config = config;
+        this.routeConfigs = new ArrayList<ProxyConfig>(routeConfigs);
+    }
+
+    /**
+     * Changes the delay of all the connections of all the routes, including the open ones.
+     */
+    public void setDelayMs(long delayMs) {
+        LOGGER.log(Level.INFO, "Applying a delay of {0} ms to all communication", delayMs);
+        for (ProxyConfig routeConfig : routeConfigs) {
+            routeConfig.setDelayMs(delayMs);
+        }
+    }
+
+    /**
+     * Constant delay of the first route, -1 if it varies or differs between the directions.
+     */
+    public long getDelayMs() {
+        return routeConfigs.get(0).getDelayMs();
+    }
+
+    public List<ProxyConfig> getRouteConfigs() {
+        return Collections.unmodifiableList(routeConfigs);
+    }
+
+    /**
+     * Pool of the buffers holding the delayed data, null until the reader runs.
+     */
+    public BufferPool getBufferPool() {
+        if (threadEngine != null) {
+            return threadEngine.getBufferPool();
+        }
+        return loops == null ? null : loops.getBufferPool();
+    }
+
+    /**
+     * Metrics of the connections, null until the reader runs.
+     */
+    public ProxyMetrics getMetrics() {
+        if (threadEngine != null) {
+            return threadEngine.getProxyMetrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * Listen to the local ports. Handle new connections and pass them to the event loops, or to
+     * a ThreadEngine with the virtual engine. With a replay directory, the routes connect to a
+     * ReplayServer instead of their remote hosts.
+     */
+    public void run() {
+        if (config.getReplayDir() != null) {
+            try {
+                ReplayServer replayServer = new ReplayServer(config);
+                replayServer.listen(routeConfigs);
+                replayServer.start();
+            } catch (IOException e) {
+                LOGGER.severe("Unable to replay " + config.getReplayDir() + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (ProxyConfig.ENGINE_VIRTUAL.equals(config.getEngine())) {
+            threadEngine = new ThreadEngine(config, routeConfigs);
+            threadEngine.run();
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            loops = new EventLoopGroup(config);
+            routes = new ArrayList<Route>(routeConfigs.size());
+            for (ProxyConfig routeConfig : routeConfigs) {
+                routes.add(new Route(routeConfig, loops));
+            }
+            loops.start();
+
+            acceptSelector = Selector.open();
+            LOGGER.log(Level.INFO, "Using {0} io threads", config.getIoThreads());
+            reusePort = config.isReusePort();
+            if (reusePort && !Acceptor.isReusePortSupported()) {
+                LOGGER.warning("SO_REUSEPORT isn't supported, accepting the connections on one thread");
+                reusePort = false;
+            }
+            for (Route route : routes) {
+                route.start();
+                listen(route);
+            }
+            if (routes.size() > 1) {
+                Utils.logVarArgs(LOGGER, Level.INFO, "Started {0} routes in {1} ms", routes.size(),
+                        (System.nanoTime() - start) / 1000000);
+            }
+            // starting JMX takes a while, the routes don't wait for it
+            metrics = new ProxyMetrics(loops, routes);
+            metrics.register();
+            if (config.getMetricsPort() > 0) {
+                new MetricsServer(metrics).start(config.getMetricsPort());
+            }
+            if (config.getAdminPort() > 0) {
+                new AdminServer(routes).start(config.getAdminPort());
+            }
+
+            // with -reusePort the loops accept the connections, nothing is registered here
+            Set<SelectionKey> keys = null;
+            while (true) {
+                try {
+                    if (acceptSelector.select() == 0) {
+                        continue;
+                    }
+                    keys = acceptSelector.selectedKeys();
+                    for (SelectionKey key : keys) {
+                        if (key.isValid()
+                                && (key.readyOps() & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT) {
+                            ((Acceptor) key.attachment()).handleKey(key, System.nanoTime());
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Exception during selection: {0}", e.getMessage());
+                } finally {
+                    if (keys != null) {
+                        keys.clear();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.severe(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void listen(Route route) throws IOException {
+        ProxyConfig routeConfig = route.getConfig();
+        if (reusePort) {
+            for (int i = 0; i < loops.size(); i++) {
+                EventLoop loop = loops.get(i);
+                loop.listen(new Acceptor(Acceptor.listen(routeConfig, true), route, loops, loop));
+            }
+        } else {
+            ServerSocketChannel ssc = Acceptor.listen(routeConfig, false);
+            ssc.register(acceptSelector, SelectionKey.OP_ACCEPT, new Acceptor(ssc, route, loops, null));
+        }
+
+        LOGGER.log(Level.INFO, "Accepting requests on port {0} for {1}:{2}", new Object[] {
+                String.valueOf(routeConfig.getLocalPort()), routeConfig.getRemoteHost(),
+                String.valueOf(routeConfig.getRemotePort())});
+        DelayProfile delayUp = routeConfig.getDelayUp();
+        DelayProfile delayDown = routeConfig.getDelayDown();
+        if (delayUp != delayDown) {
+            LOGGER.log(Level.INFO, "Applying a delay of {0} ms to the data sent to the remote host", delayUp);
+            LOGGER.log(Level.INFO, "Applying a delay of {0} ms to the data sent to the clients", delayDown);
+        } else if (routeConfig.getDelayUs() > 0 && routeConfig.getDelayUs() % 1000 != 0) {
+            LOGGER.log(Level.INFO, "Applying a delay of {0} us to all communication", routeConfig.getDelayUs());
+        } else if (routeConfig.getDelayMs() > 0) {
+            LOGGER.log(Level.INFO, "Applying a delay of {0} ms to all communication", routeConfig.getDelayMs());
+        }
+        logBandwidth("Limiting the bandwidth of each connection to {0} bits/s up and {1} bits/s down",
+                routeConfig.getBandwidthUp(), routeConfig.getBandwidthDown());
+        logBandwidth("Limiting the total bandwidth to {0} bits/s up and {1} bits/s down",
+                routeConfig.getGlobalBandwidthUp(), routeConfig.getGlobalBandwidthDown());
+        if (routeConfig.getPrewarm() > 0) {
+            LOGGER.log(Level.INFO, "Keeping {0} idle connections to the remote host", routeConfig.getPrewarm());
+        }
+    }
+
+    private static void logBandwidth(String message, long up, long down) {
+        if (up > 0 || down > 0) {
+            LOGGER.log(Level.INFO, message, new Object[] {up > 0 ? String.valueOf(up) : "unlimited",
+                    down > 0 ? String.valueOf(down) : "unlimited"});
+        }
+    }
+}
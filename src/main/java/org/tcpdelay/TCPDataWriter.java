@@ -1,99 +1,429 @@
-/*
- * Copyright (C) 2011  Francois Forster
- *
- *     This program is free software: you can redistribute it and/or modify
- *     it under the terms of the GNU General Public License as published by
- *     the Free Software Foundation, either version 3 of the License, or
- *     (at your option) any later version.
- *
- *     This program is distributed in the hope that it will be useful,
- *     but WITHOUT ANY WARRANTY; without even the implied warranty of
- *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- *     GNU General Public License for more details.
- *
- *     You should have received a copy of the GNU General Public License
- *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
- */
-
-package org.tcpdelay;
-
-import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.concurrent.BlockingQueue;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-/**
- * Class writing data read to the target.
- */
-public class TCPDataWriter implements Runnable {
-    private static Logger LOGGER = Logger.getLogger(TCPDataWriter.class.getName());
-
-    private BlockingQueue<TCPData> queue;
-
-    public TCPDataWriter(BlockingQueue<TCPData> queue) {
-        this.queue = queue;
-    }
-
-    /**
-     * Pick items off the queue (returns when their delay is over).
-     */
-    public void run() {
-        while (true) {
-            TCPData data;
-            try {
-                data = queue.take();
-            } catch (InterruptedException e) {
-                continue;
-            }
-
-            SocketChannel pairSc = data.getChannel();
-            ByteBuffer buffer = data.getBuffer();
-            int len = data.getLen();
-            boolean close = false;
-            try {
-                if (len < 0) {
-                    close = true;
-                } else {
-                    buffer.flip();
-                    int totalWritten = 0;
-                    int written;
-                    while (totalWritten < len) {
-                        written = pairSc.write(buffer);
-                        totalWritten += written;
-                        Utils.logVarArgs(LOGGER, Level.FINE, "Wrote {0} bytes to {1}", written, pairSc);
-                    }
-                }
-            } catch (Exception e) {
-                close = true;
-            } finally {
-                if (close && pairSc != null) {
-                    closeOutput(pairSc);
-                }
-            }
-        }
-    }
-
-    private static void closeOutput(SocketChannel sc) {
-        Socket socket = sc.socket();
-        if (socket.isClosed()) {
-            return;
-        }
-        if (socket.isInputShutdown()) {
-            try {
-                LOGGER.log(Level.FINE, "Closing {0}", sc);
-                socket.close();
-            } catch (Exception e) {
-                // do nothing
-            }
-        } else if (!socket.isOutputShutdown()) {
-            try {
-                LOGGER.log(Level.FINE, "Closing output {0}", sc);
-                socket.shutdownOutput();
-            } catch (Exception e) {
-                // do nothing
-            }
-        }
-    }
-}
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class writing data read from one side of a connection to the other side.
+ * Chunks are kept in a FIFO: the delay is the same for all chunks of a connection,
+ * so the FIFO is also ordered by deadline and only its head needs a timer.
+ * When the target can't take more data the writer waits for OP_WRITE instead of
+ * retrying, so a slow peer doesn't hold up the other connections of the loop.
+ * When too much data is queued, reading from the source pauses until the queue
+ * drains, which pushes back on the sender through TCP flow control.
+ * The Shaper of the writer computes the deadlines: a chunk is never due before the one ahead
+ * of it, so the FIFO stays ordered by deadline whatever the delay profile and bandwidth.
+ * With a protocol, its MessageFramer samples the delay once per message instead of once per read.
+ * The chunks due at the same time are written with one gathering write. The writer also sizes
+ * the reads from its source, which fill up to MAX_READ_BUFFERS pooled buffers at once.
+ * Only used from the event loop owning the connection.
+ */
+public class TCPDataWriter implements TimerWheel.Task {
+    private static Logger LOGGER = Logger.getLogger(TCPDataWriter.class.getName());
+
+    // most pooled buffers filled by one read from the source
+    private static final int MAX_READ_BUFFERS = 4;
+
+    private TCPConnection connection;
+    private SocketChannel target;
+    private TimerWheel wheel;
+    private TimerWheel.Timer timer;
+    private BufferPool.Cache buffers;
+    private EventLoop loop;
+    private FlowControl flowControl;
+    private Metrics.Direction metrics;
+    private Shaper shaper;
+    // null without a protocol
+    private MessageFramer framer;
+    // null when not tracing
+    private Trace trace;
+    private boolean up;
+    private long highWatermark;
+    private long lowWatermark;
+
+    private TCPData head;
+    private TCPData tail;
+    private int queuedChunks;
+    private long queuedBytes;
+    private long bytesWritten;
+    private long chunksWritten;
+
+    private boolean reading = true;
+    // pooled buffers filled by the next read from the source, and whether the last read was small
+    private int readBuffers = 1;
+    private boolean shrinking;
+    // too many bytes queued on this writer
+    private boolean paused;
+    // too many bytes queued in total
+    private boolean globallyPaused;
+    private boolean writeBlocked;
+    private boolean done;
+
+    /**
+     * Up is true for the writer to the remote host. The decoder finds the messages read from the
+     * source, null to delay each read.
+     */
+    public TCPDataWriter(TCPConnection connection, SocketChannel target, EventLoop loop, boolean up,
+            MessageDecoder decoder) {
+        this.connection = connection;
+        this.target = target;
+        this.loop = loop;
+        metrics = up ? loop.getMetrics().getUp() : loop.getMetrics().getDown();
+        shaper = new Shaper(connection.getRoute(), up);
+        trace = loop.getTrace();
+        this.up = up;
+        wheel = loop.getTimerWheel();
+        buffers = loop.getBufferCache();
+        flowControl = loop.getFlowControl();
+        highWatermark = connection.getConfig().getHighWatermark();
+        lowWatermark = connection.getConfig().getLowWatermark();
+        timer = new TimerWheel.Timer(this);
+        if (decoder != null) {
+            framer = new MessageFramer(decoder, shaper, up, metrics, null, buffers);
+        }
+    }
+
+    /**
+     * Time the given number of bytes, read at the given time, are due with the current
+     * settings of the connection.
+     */
+    public long getDeadlineNanos(int bytes, long readNanos) {
+        return shaper.getDeadlineNanos(bytes, readNanos, connection.getSettings());
+    }
+
+    /**
+     * Sets the deadlines of the messages read from the source, null without a protocol.
+     */
+    public MessageFramer getFramer() {
+        return framer;
+    }
+
+    /**
+     * Queues data read from the source. It is written as soon as its delay is over.
+     */
+    public void add(TCPData data, long nowNanos) {
+        if (done) {
+            buffers.release(data);
+            return;
+        }
+        boolean blocked = false;
+        if (head == null && !writeBlocked && !data.isEndOfStream() && data.getDelayedUntilNanos() <= nowNanos) {
+            // nothing to wait for: write straight away, the data only goes through the queue
+            // if the target can't take all of it
+            if (passThrough(data, nowNanos)) {
+                return;
+            }
+            blocked = true;
+        }
+        enqueue(data);
+        if (blocked) {
+            writeBlocked = true;
+        } else if (head == data && !writeBlocked) {
+            flush(nowNanos);
+        }
+    }
+
+    /**
+     * Queues the chunks filled by one read, all due at the same time. Written together by one
+     * gathering write when they are due.
+     */
+    public void add(TCPData[] chunks, int count, long nowNanos) {
+        if (count == 1) {
+            add(chunks[0], nowNanos);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (done) {
+                buffers.release(chunks[i]);
+            } else {
+                enqueue(chunks[i]);
+            }
+        }
+        if (!done && !writeBlocked) {
+            flush(nowNanos);
+        }
+    }
+
+    private void enqueue(TCPData data) {
+        data.owner = connection;
+        if (tail == null) {
+            head = data;
+        } else {
+            tail.next = data;
+        }
+        tail = data;
+        queuedChunks++;
+        metrics.queued();
+        if (!data.isEndOfStream()) {
+            queuedBytes += data.getLen();
+            flowControl.add(data.getLen());
+            if (queuedBytes > highWatermark) {
+                paused = true;
+            }
+            if (!globallyPaused && flowControl.isPaused()) {
+                globallyPaused = true;
+                loop.addPausedWriter(this);
+            }
+        }
+    }
+
+    /**
+     * Number of pooled buffers the next read from the source should fill.
+     */
+    public int getReadBuffers() {
+        return readBuffers;
+    }
+
+    /**
+     * Adapts the size of the reads from the source to what they return: doubles it when a read
+     * fills all its buffers, and halves it after two reads in a row filling at most half of them.
+     */
+    public void readDone(long len) {
+        long size = (long) readBuffers * BufferPool.BUFFER_SIZE;
+        if (len >= size) {
+            readBuffers = Math.min(readBuffers * 2, MAX_READ_BUFFERS);
+            shrinking = false;
+        } else if (readBuffers > 1 && len <= size / 2) {
+            if (shrinking) {
+                readBuffers /= 2;
+            }
+            shrinking = !shrinking;
+        } else {
+            shrinking = false;
+        }
+    }
+
+    /**
+     * The source has no more data. The end of stream still has to go through the queue.
+     */
+    public void stopReading() {
+        reading = false;
+    }
+
+    /**
+     * The total of queued bytes went down, reading can resume.
+     */
+    void resume() {
+        globallyPaused = false;
+        connection.update();
+    }
+
+    /**
+     * The target can take data again.
+     */
+    public void onWritable(long nowNanos) {
+        writeBlocked = false;
+        flush(nowNanos);
+    }
+
+    /**
+     * Timer callback: the head of the queue is due.
+     */
+    public void expire(long nowNanos) {
+        if (!writeBlocked) {
+            flush(nowNanos);
+        }
+    }
+
+    /**
+     * Writes data without queuing it. Returns false if the data still has to be queued
+     * because the target is full, and true if it was written or the connection closed.
+     */
+    private boolean passThrough(TCPData data, long nowNanos) {
+        ByteBuffer buffer = data.getBuffer();
+        try {
+            int written = target.write(buffer);
+            metrics.writeCall();
+            if (trace != null) {
+                trace.wrote(connection, up, nowNanos, buffer, written);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Exception writing: {0}. Closing", e.getMessage());
+            buffers.release(data);
+            connection.close();
+            return true;
+        }
+        if (buffer.hasRemaining()) {
+            return false;
+        }
+        written(data, nowNanos);
+        buffers.release(data);
+        return true;
+    }
+
+    /**
+     * Writes all the chunks whose delay is over, stopping if the target is full. Chunks due
+     * together go out in one gathering write.
+     */
+    private void flush(long nowNanos) {
+        while (head != null) {
+            TCPData data = head;
+            if (data.getDelayedUntilNanos() > nowNanos) {
+                wheel.schedule(timer, data.getDelayedUntilNanos());
+                break;
+            }
+            if (data.isEndOfStream()) {
+                removeHead();
+                done = true;
+                closeOutput(target);
+                if (trace != null) {
+                    trace.wrote(connection, up, nowNanos, null, -1);
+                }
+                break;
+            }
+            ByteBuffer[] gather = loop.getIoBuffers();
+            int[] positions = loop.getIoPositions();
+            int count = 0;
+            for (TCPData next = data; next != null && count < gather.length && !next.isEndOfStream()
+                    && next.getDelayedUntilNanos() <= nowNanos; next = next.next) {
+                gather[count] = next.getBuffer();
+                positions[count] = gather[count].position();
+                count++;
+            }
+            try {
+                if (count == 1) {
+                    target.write(gather[0]);
+                } else {
+                    target.write(gather, 0, count);
+                }
+                metrics.writeCall();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Exception writing: {0}. Closing", e.getMessage());
+                clearGather(count);
+                connection.close();
+                return;
+            }
+            clearGather(count);
+            for (int i = 0; i < count; i++) {
+                ByteBuffer buffer = head.getBuffer();
+                if (trace != null && buffer.position() > positions[i]) {
+                    trace.wrote(connection, up, nowNanos, buffer, buffer.position() - positions[i]);
+                }
+                if (buffer.hasRemaining()) {
+                    writeBlocked = true;
+                    connection.update();
+                    return;
+                }
+                written(head, nowNanos);
+                removeHead();
+            }
+        }
+        connection.update();
+    }
+
+    private void clearGather(int count) {
+        ByteBuffer[] gather = loop.getIoBuffers();
+        for (int i = 0; i < count; i++) {
+            gather[i] = null;
+        }
+    }
+
+    private void written(TCPData data, long nowNanos) {
+        bytesWritten += data.getLen();
+        chunksWritten++;
+        metrics.written(data.getLen(), nowNanos - data.getDelayedUntilNanos());
+    }
+
+    private void removeHead() {
+        TCPData data = head;
+        head = data.next;
+        data.next = null;
+        if (head == null) {
+            tail = null;
+        }
+        queuedChunks--;
+        metrics.dequeued();
+        if (!data.isEndOfStream()) {
+            queuedBytes -= data.getLen();
+            flowControl.remove(data.getLen());
+            if (paused && queuedBytes <= lowWatermark) {
+                paused = false;
+            }
+        }
+        buffers.release(data);
+    }
+
+    /**
+     * Drops all queued data and gives the buffers back to the pool, the connection is closing.
+     */
+    void clear() {
+        wheel.cancel(timer);
+        while (head != null) {
+            removeHead();
+        }
+        reading = false;
+        writeBlocked = false;
+        done = true;
+    }
+
+    /**
+     * True if the source is open and reading from it isn't paused.
+     */
+    public boolean isReading() {
+        return reading && !paused && !globallyPaused;
+    }
+
+    public boolean isWriteBlocked() {
+        return writeBlocked;
+    }
+
+    /**
+     * True once the end of stream has been passed on to the target.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Queued chunks and bytes: when read from another thread, they may be slightly out of date.
+     */
+    public int getQueuedChunks() {
+        return queuedChunks;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getChunksWritten() {
+        return chunksWritten;
+    }
+
+    private static void closeOutput(SocketChannel sc) {
+        Socket socket = sc.socket();
+        if (socket.isClosed() || socket.isOutputShutdown()) {
+            return;
+        }
+        try {
+            LOGGER.log(Level.FINE, "Closing output {0}", sc);
+            socket.shutdownOutput();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Alternative to the event loops, selected with -engine virtual: each direction of each
+ * connection has a thread reading and queuing the data, and a thread waiting for the head of
+ * the queue to be due and writing it, both with blocking calls. Uses virtual threads when the
+ * JVM has them (Java 21 and later), platform threads with small stacks otherwise.
+ * Delays, bandwidth, watermarks and metrics work as with the event loops; connections to the
+ * remote host aren't prewarmed. The timeouts of the connections are on a timer wheel shared
+ * by all the connections, under its lock, and fired by a thread of its own.
+ */
+public class ThreadEngine implements Runnable {
+    private static Logger LOGGER = Logger.getLogger(ThreadEngine.class.getName());
+
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+    private static final long TIMEOUT_TICK_NANOS = 100000000;
+    private static final int TIMEOUT_WHEEL_SIZE = 4096;
+
+    private ProxyConfig config;
+    private List<ProxyConfig> routeConfigs;
+    private ThreadFactory threadFactory;
+    private boolean virtual;
+
+    private BufferPool bufferPool;
+    private FlowControl flowControl;
+    // readers waiting for the total of queued bytes to go down
+    private ReentrantLock flowLock;
+    private Condition flowResumed;
+    private Metrics metrics;
+    // null when not capturing
+    private CaptureLog capture;
+    private Trace trace;
+    private volatile ProxyMetrics proxyMetrics;
+    // timeouts of all the connections, guarded by itself
+    private TimerWheel timeoutWheel;
+    private Thread timeoutThread;
+    private CountDownLatch stopped;
+
+    public ThreadEngine(ProxyConfig config, List<ProxyConfig> routeConfigs) {
+        this.config = config;
+        this.routeConfigs = routeConfigs;
+        threadFactory = newVirtualThreadFactory();
+        virtual = threadFactory != null;
+        if (!virtual) {
+            threadFactory = newPlatformThreadFactory();
+        }
+        bufferPool = new BufferPool();
+        flowLock = new ReentrantLock();
+        flowResumed = flowLock.newCondition();
+        flowControl = new FlowControl(config.getGlobalHighWatermark(), config.getGlobalLowWatermark(),
+                new Runnable() {
+                    public void run() {
+                        flowLock.lock();
+                        try {
+                            flowResumed.signalAll();
+                        } finally {
+                            flowLock.unlock();
+                        }
+                    }
+                });
+        metrics = new Metrics();
+        timeoutWheel = new TimerWheel(TIMEOUT_TICK_NANOS, TIMEOUT_WHEEL_SIZE, System.nanoTime());
+        stopped = new CountDownLatch(1);
+    }
+
+    /**
+     * Listens to the local ports of all the routes, one accepting thread per route, and blocks.
+     */
+    public void run() {
+        try {
+            if (virtual) {
+                LOGGER.info("Using virtual threads");
+            } else {
+                LOGGER.warning("Virtual threads need Java 21, using platform threads");
+            }
+            if (config.getTraceFile() != null) {
+                trace = new Trace(new File(config.getTraceFile()));
+            }
+            if (config.getCaptureDir() != null) {
+                capture = new CaptureLog(new File(config.getCaptureDir()), "virtual");
+            }
+            timeoutThread = new Thread(new Runnable() {
+                public void run() {
+                    expireTimeouts();
+                }
+            }, "tcpdelay-timeouts");
+            timeoutThread.setDaemon(true);
+            timeoutThread.start();
+            List<Route> routes = new ArrayList<Route>(routeConfigs.size());
+            for (ProxyConfig routeConfig : routeConfigs) {
+                if (routeConfig.getPrewarm() > 0) {
+                    LOGGER.log(Level.WARNING, "Idle connections aren't kept with threads, ignoring {0}",
+                            routeConfig.getPrewarm());
+                }
+                Route route = new Route(routeConfig, null);
+                route.start();
+                routes.add(route);
+                listen(route);
+            }
+            proxyMetrics = new ProxyMetrics(new Metrics[] {metrics}, flowControl, bufferPool, routes);
+            proxyMetrics.register();
+            if (config.getMetricsPort() > 0) {
+                new MetricsServer(proxyMetrics).start(config.getMetricsPort());
+            }
+            if (config.getAdminPort() > 0) {
+                new AdminServer(routes).start(config.getAdminPort());
+            }
+            stopped.await();
+        } catch (Exception e) {
+            LOGGER.severe(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void listen(final Route route) throws IOException {
+        ProxyConfig routeConfig = route.getConfig();
+        final ServerSocketChannel ssc = ServerSocketChannel.open();
+        Utils.setSocketOptions(ssc, routeConfig);
+        ssc.bind(new InetSocketAddress(routeConfig.getLocalPort()), routeConfig.getAcceptBacklog());
+        LOGGER.log(Level.INFO, "Accepting requests on port {0} for {1}:{2}", new Object[] {
+                String.valueOf(routeConfig.getLocalPort()), routeConfig.getRemoteHost(),
+                String.valueOf(routeConfig.getRemotePort())});
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept(ssc, route);
+            }
+        }, "tcpdelay-accept-" + routeConfig.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept(ServerSocketChannel ssc, Route route) {
+        while (true) {
+            SocketChannel sc;
+            try {
+                sc = ssc.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error accepting connection: {0}", e.getMessage());
+                // likely out of file descriptors, give the connections time to close
+                sleep(10);
+                continue;
+            }
+            long acceptedNanos = System.nanoTime();
+            LOGGER.log(Level.INFO, "Got a request {0}", ssc.socket().getLocalSocketAddress());
+            if (!route.admit()) {
+                LOGGER.log(Level.FINE, "Rejecting {0}, too many connections", sc);
+                metrics.rejected();
+                Utils.reject(sc);
+                continue;
+            }
+            final BlockingConnection connection = new BlockingConnection(sc, route, this, acceptedNanos);
+            try {
+                newThread(new Runnable() {
+                    public void run() {
+                        connection.run();
+                    }
+                });
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Unable to start a thread for the connection: {0}", t.getMessage());
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Starts a thread, virtual if possible.
+     */
+    void newThread(Runnable task) {
+        threadFactory.newThread(task).start();
+    }
+
+    /**
+     * Schedules a timeout timer, unless it is already due before.
+     */
+    void scheduleTimeout(TimerWheel.Timer timer, long deadlineNanos) {
+        synchronized (timeoutWheel) {
+            if (timer.isScheduled() && timer.getDeadlineNanos() <= deadlineNanos) {
+                return;
+            }
+            timeoutWheel.schedule(timer, deadlineNanos);
+        }
+        LockSupport.unpark(timeoutThread);
+    }
+
+    void cancelTimeout(TimerWheel.Timer timer) {
+        synchronized (timeoutWheel) {
+            timeoutWheel.cancel(timer);
+        }
+    }
+
+    /**
+     * Timeout thread: fires the timeout timers when they are due.
+     */
+    private void expireTimeouts() {
+        while (true) {
+            long waitNanos;
+            synchronized (timeoutWheel) {
+                timeoutWheel.expire(System.nanoTime());
+                waitNanos = timeoutWheel.nanosToNextExpiry(System.nanoTime());
+            }
+            if (waitNanos < 0) {
+                LockSupport.park();
+            } else if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+        }
+    }
+
+    /**
+     * Blocks while too many bytes are queued in total.
+     */
+    void awaitFlow() throws InterruptedException {
+        if (!flowControl.isPaused()) {
+            return;
+        }
+        flowLock.lock();
+        try {
+            while (flowControl.isPaused()) {
+                // timed, in case the resume happened between the check and the wait
+                flowResumed.await(100, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    /**
+     * Time before a deadline the writer threads stop waiting and spin, 0 to never spin, see -precisionUs.
+     */
+    public long getSpinNanos() {
+        return config.getPrecisionUs() * 1000;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Trace of the connections, null when not tracing.
+     */
+    public Trace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Log of the data read by all the connections, null when not capturing.
+     */
+    public CaptureLog getCaptureLog() {
+        return capture;
+    }
+
+    /**
+     * Metrics of the connections, null until the engine runs.
+     */
+    public ProxyMetrics getProxyMetrics() {
+        return proxyMetrics;
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Builds a factory of virtual threads through reflection, so this compiles and runs
+     * on JVMs without them. Returns null if there are none.
+     */
+    private static ThreadFactory newVirtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "tcpdelay-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory newPlatformThreadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(null, task, "tcpdelay-" + count.getAndIncrement(), PLATFORM_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
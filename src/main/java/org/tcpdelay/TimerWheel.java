@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+/**
+ * Hashed timing wheel. Scheduling and cancelling are O(1) and don't allocate:
+ * timers are created once by their owner and linked into the wheel slots.
+ * Timers never fire before their deadline, and at most one tick after it.
+ * A bitmap of the non empty slots lets expiring and finding the next timer skip the
+ * empty ones, so a fine wheel costs no more than a coarse one.
+ * Not thread safe, meant to be driven by a single event loop.
+ */
+public class TimerWheel {
+
+    /**
+     * Callback of a timer.
+     */
+    public interface Task {
+        void expire(long nowNanos);
+    }
+
+    /**
+     * Reusable timer. A timer is in at most one slot at a time.
+     */
+    public static final class Timer {
+        private Task task;
+        private Timer prev;
+        private Timer next;
+        private int slot = -1;
+        private long rounds;
+        private long deadlineNanos;
+
+        public Timer(Task task) {
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+    }
+
+    private Timer[] slots;
+    // one bit per slot, set while the slot holds timers
+    private long[] occupied;
+    private int expired;
+    private int mask;
+    private long tickNanos;
+    private long startNanos;
+    private long tick;
+    private int size;
+
+    /**
+     * @param tickNanos  resolution of the wheel
+     * @param wheelSize  number of slots, rounded up to a power of two
+     * @param startNanos origin of the wheel, usually System.nanoTime()
+     */
+    public TimerWheel(long tickNanos, int wheelSize, long startNanos) {
+        if (tickNanos <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Invalid timer wheel " + tickNanos + "ns x " + wheelSize);
+        }
+        int n = Integer.highestOneBit(wheelSize);
+        if (n < wheelSize) {
+            n <<= 1;
+        }
+        // the extra slot holds the timers being fired
+        slots = new Timer[n + 1];
+        occupied = new long[(n + 63) >>> 6];
+        expired = n;
+        mask = n - 1;
+        this.tickNanos = tickNanos;
+        this.startNanos = startNanos;
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Number of scheduled timers.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedules (or reschedules) a timer. A deadline already in the past fires on the next tick.
+     */
+    public void schedule(Timer timer, long deadlineNanos) {
+        if (timer.isScheduled()) {
+            cancel(timer);
+        }
+        long deadlineTick = ceilDiv(deadlineNanos - startNanos, tickNanos);
+        if (deadlineTick <= tick) {
+            deadlineTick = tick + 1;
+        }
+        timer.deadlineNanos = deadlineNanos;
+        timer.rounds = (deadlineTick - tick - 1) / expired;
+        link(timer, (int) (deadlineTick & mask));
+    }
+
+    public void cancel(Timer timer) {
+        if (!timer.isScheduled()) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+            if (timer.next == null && timer.slot != expired) {
+                occupied[timer.slot >>> 6] &= ~(1L << timer.slot);
+            }
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+        size--;
+    }
+
+    /**
+     * Fires all the timers whose tick has passed.
+     */
+    public void expire(long nowNanos) {
+        long targetTick = (nowNanos - startNanos) / tickNanos;
+        if (size == 0) {
+            if (targetTick > tick) {
+                tick = targetTick;
+            }
+            return;
+        }
+        while (tick < targetTick) {
+            long nextTick = nextOccupiedTick();
+            if (nextTick < 0 || nextTick > targetTick) {
+                tick = targetTick;
+                return;
+            }
+            tick = nextTick;
+            Timer timer = slots[(int) (tick & mask)];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.rounds > 0) {
+                    timer.rounds--;
+                } else {
+                    // moved to the expired list first, so tasks can cancel or
+                    // reschedule any timer while the list is being fired
+                    cancel(timer);
+                    link(timer, expired);
+                }
+                timer = next;
+            }
+            while ((timer = slots[expired]) != null) {
+                cancel(timer);
+                timer.task.expire(nowNanos);
+            }
+            if (size == 0) {
+                tick = targetTick;
+            }
+        }
+    }
+
+    /**
+     * Time until the next non empty slot, in nanoseconds. Returns -1 if no timer is scheduled.
+     */
+    public long nanosToNextExpiry(long nowNanos) {
+        if (size == 0) {
+            return -1;
+        }
+        long nextTick = nextOccupiedTick();
+        if (nextTick < 0) {
+            nextTick = tick + 1;
+        }
+        long wait = startNanos + nextTick * tickNanos - nowNanos;
+        return wait < 0 ? 0 : wait;
+    }
+
+    private void link(Timer timer, int slot) {
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[slot] = timer;
+        if (slot != expired) {
+            occupied[slot >>> 6] |= 1L << slot;
+        }
+        size++;
+    }
+
+    /**
+     * First tick after the current one whose slot holds timers, within one turn of the wheel.
+     * Returns -1 if all the slots are empty.
+     */
+    private long nextOccupiedTick() {
+        int start = (int) ((tick + 1) & mask);
+        int word = start >>> 6;
+        long bits = occupied[word] & (-1L << start);
+        // the first word is seen again last, for the slots before the start
+        for (int i = 0; i <= occupied.length; i++) {
+            if (bits != 0) {
+                int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return tick + 1 + ((slot - start) & mask);
+            }
+            word = word + 1 == occupied.length ? 0 : word + 1;
+            bits = occupied[word];
+        }
+        return -1;
+    }
+
+    private static long ceilDiv(long a, long b) {
+        long q = a / b;
+        if (q * b < a) {
+            q++;
+        }
+        return q;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Binary trace of the connections: opening, every read and write with the first SNAP_LEN bytes
+ * of its data, and closing. Replaces logging each read and write, which was too slow to debug
+ * timing issues. Records have a fixed size and go through a lock-free ring buffer, which a
+ * background thread drains to the trace file. A full ring drops records, counted, instead of
+ * holding up the io threads. Without -trace there is no Trace and the connections skip tracing.
+ * PcapExporter turns a trace into a pcap file for Wireshark.
+ * <p>
+ * The file starts with a header: the magic TCPDTRC1, the time since the epoch in milliseconds
+ * and System.nanoTime() when the trace started, and RECORD_SIZE (4 bytes) and SNAP_LEN (4).
+ * Then come the records: System.nanoTime() (8 bytes), connection id (8), local port (4),
+ * remote port (4), length of the data, -1 for the end of the stream (4), type (1), 1 for the
+ * data sent to the remote host, 0 otherwise (1), number of bytes of data kept (2), the data.
+ */
+public class Trace implements Runnable {
+    private static Logger LOGGER = Logger.getLogger(Trace.class.getName());
+
+    public static final byte[] MAGIC = {'T', 'C', 'P', 'D', 'T', 'R', 'C', '1'};
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 128;
+    public static final int RECORD_HEADER_SIZE = 32;
+    public static final int SNAP_LEN = RECORD_SIZE - RECORD_HEADER_SIZE;
+
+    // the proxy connected to the remote host
+    public static final byte OPEN = 1;
+    public static final byte READ = 2;
+    public static final byte WRITE = 3;
+    public static final byte CLOSE = 4;
+
+    private static final int RING_SIZE = 65536;
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = 1000000;
+
+    private FileChannel file;
+    private File path;
+    private ByteBuffer ring;
+    private int mask;
+    // sequence + 1 of the record held by each slot, once it is complete
+    private AtomicLongArray published;
+    // next sequence claimed by a writer, and next sequence drained
+    private AtomicLong head;
+    private AtomicLong tail;
+    private AtomicLong dropped;
+    private long written;
+    private volatile boolean closed;
+    private Thread drainer;
+    // closes the trace if the process exits first, removed once closed
+    private Thread closeHook;
+
+    /**
+     * Creates the trace file, and starts draining the records to it.
+     */
+    public Trace(File path) throws IOException {
+        this.path = path;
+        file = FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.putLong(System.currentTimeMillis());
+        header.putLong(System.nanoTime());
+        header.putInt(RECORD_SIZE);
+        header.putInt(SNAP_LEN);
+        header.flip();
+        while (header.hasRemaining()) {
+            file.write(header);
+        }
+        ring = ByteBuffer.allocateDirect(RING_SIZE * RECORD_SIZE);
+        mask = RING_SIZE - 1;
+        published = new AtomicLongArray(RING_SIZE);
+        head = new AtomicLong();
+        tail = new AtomicLong();
+        dropped = new AtomicLong();
+        drainer = new Thread(this, "tcpdelay-trace");
+        drainer.setDaemon(true);
+        drainer.start();
+        closeHook = new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, "tcpdelay-trace-close");
+        Runtime.getRuntime().addShutdownHook(closeHook);
+        LOGGER.log(Level.INFO, "Tracing to {0}", path);
+    }
+
+    /**
+     * The proxy connected the connection to the remote host.
+     */
+    public void opened(ProxiedConnection connection, long nanos) {
+        record(OPEN, connection, true, nanos, 0, null, 0);
+    }
+
+    /**
+     * Read len bytes, which start at the position of the buffer. A negative len is the end of the stream.
+     */
+    public void read(ProxiedConnection connection, boolean up, long nanos, ByteBuffer buffer, int len) {
+        record(READ, connection, up, nanos, len, buffer, len > 0 ? buffer.position() : 0);
+    }
+
+    /**
+     * Wrote len bytes, which end at the position of the buffer. A negative len is the end of the stream.
+     */
+    public void wrote(ProxiedConnection connection, boolean up, long nanos, ByteBuffer buffer, int len) {
+        record(WRITE, connection, up, nanos, len, buffer, len > 0 ? buffer.position() - len : 0);
+    }
+
+    public void closed(ProxiedConnection connection, long nanos) {
+        record(CLOSE, connection, true, nanos, 0, null, 0);
+    }
+
+    private void record(byte type, ProxiedConnection connection, boolean up, long nanos, int len, ByteBuffer data,
+            int offset) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail.get() >= RING_SIZE) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        int index = (int) (sequence & mask) * RECORD_SIZE;
+        ProxyConfig config = connection.getRoute().getConfig();
+        int snap = data == null || len <= 0 ? 0 : Math.min(len, SNAP_LEN);
+        ring.putLong(index, nanos);
+        ring.putLong(index + 8, connection.getId());
+        ring.putInt(index + 16, config.getLocalPort());
+        ring.putInt(index + 20, config.getRemotePort());
+        ring.putInt(index + 24, len);
+        ring.put(index + 28, type);
+        ring.put(index + 29, (byte) (up ? 1 : 0));
+        ring.putShort(index + 30, (short) snap);
+        if (snap > 0) {
+            ring.put(index + RECORD_HEADER_SIZE, data, offset, snap);
+        }
+        published.lazySet((int) (sequence & mask), sequence + 1);
+    }
+
+    /**
+     * Drains the ring to the file, in batches.
+     */
+    public void run() {
+        ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE * RECORD_SIZE);
+        while (true) {
+            long sequence = tail.get();
+            int count = 0;
+            while (count < BATCH_SIZE && published.get((int) (sequence & mask)) == sequence + 1) {
+                batch.put(count * RECORD_SIZE, ring, (int) (sequence & mask) * RECORD_SIZE, RECORD_SIZE);
+                sequence++;
+                count++;
+            }
+            if (count == 0) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            tail.lazySet(sequence);
+            batch.position(0).limit(count * RECORD_SIZE);
+            try {
+                while (batch.hasRemaining()) {
+                    file.write(batch);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Unable to write the trace, stopping it: {0}", e.getMessage());
+                closed = true;
+                Utils.removeShutdownHook(closeHook);
+                return;
+            }
+            written += count;
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stops tracing once the records already in the ring are written.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Utils.removeShutdownHook(closeHook);
+        try {
+            drainer.join(1000);
+            file.close();
+        } catch (Exception e) {
+            // do nothing
+        }
+        Utils.logVarArgs(LOGGER, Level.INFO, "Traced {0} records to {1}, dropped {2}", written, path, dropped.get());
+    }
+
+    /**
+     * Records dropped because the ring was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tcpdelay;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Idle connections to the remote host, opened in advance so that a new client
+ * doesn't wait for the handshake with the remote host. Each event loop has its own pool.
+ * Idle connections are watched for reads: one closed by the remote host is replaced.
+ * Only useful for protocols where the client talks first.
+ */
+public class UpstreamPool implements KeyHandler, TimerWheel.Task {
+    private static Logger LOGGER = Logger.getLogger(UpstreamPool.class.getName());
+
+    private static final long RETRY_NANOS = 1000000000L;
+
+    private EventLoop loop;
+    private AddressResolver resolver;
+    private ProxyConfig config;
+    private int size;
+
+    private SelectionKey[] idle;
+    private int idleCount;
+    private int connecting;
+    private TimerWheel.Timer retryTimer;
+
+    public UpstreamPool(EventLoop loop, AddressResolver resolver, ProxyConfig config, int size) {
+        this.loop = loop;
+        this.resolver = resolver;
+        this.config = config;
+        this.size = size;
+        idle = new SelectionKey[size];
+        retryTimer = new TimerWheel.Timer(this);
+    }
+
+    public EventLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Opens connections until the pool is full. Only called from the loop.
+     */
+    public void fill() {
+        while (idleCount + connecting < size && !retryTimer.isScheduled()) {
+            SocketChannel sc = null;
+            try {
+                ConnectionSettings settings = config.getSettings();
+                InetSocketAddress address = resolver.resolve(settings.getRemoteHost(), settings.getRemotePort());
+                if (address.isUnresolved()) {
+                    throw new UnknownHostException(address.getHostString());
+                }
+                sc = SocketChannel.open();
+                sc.configureBlocking(false);
+                Utils.setSocketOptions(sc, config);
+                if (sc.connect(address)) {
+                    idle[idleCount++] = sc.register(loop.getSelector(), SelectionKey.OP_READ, this);
+                } else {
+                    sc.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+                    connecting++;
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error opening idle connection to remote host: {0}", e.getMessage());
+                close(sc);
+                retryLater();
+            }
+        }
+    }
+
+    /**
+     * Takes an idle connection, registered with the loop. Returns null if there is none.
+     */
+    public SelectionKey take() {
+        SelectionKey key = null;
+        while (key == null && idleCount > 0) {
+            key = idle[--idleCount];
+            idle[idleCount] = null;
+            if (!key.isValid() || !key.channel().isOpen()) {
+                key = null;
+            }
+        }
+        fill();
+        return key;
+    }
+
+    /**
+     * Closes the idle connections and the ones being opened, and opens new ones: the remote host
+     * changed. Only called from the loop.
+     */
+    public void reset() {
+        closeAll();
+        fill();
+    }
+
+    /**
+     * Closes the idle connections and the ones being opened for good: the route is closed.
+     * Only called from the loop.
+     */
+    public void close() {
+        size = 0;
+        loop.getTimerWheel().cancel(retryTimer);
+        closeAll();
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : loop.getSelector().keys()) {
+            if (key.attachment() == this) {
+                close((SocketChannel) key.channel());
+            }
+        }
+        while (idleCount > 0) {
+            idle[--idleCount] = null;
+        }
+        connecting = 0;
+    }
+
+    public void handleKey(SelectionKey key, long selectTimeNanos) {
+        SocketChannel sc = (SocketChannel) key.channel();
+        if ((key.readyOps() & SelectionKey.OP_CONNECT) == SelectionKey.OP_CONNECT) {
+            connecting--;
+            try {
+                sc.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                idle[idleCount++] = key;
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error opening idle connection to remote host: {0}", e.getMessage());
+                close(sc);
+                retryLater();
+            }
+        } else if ((key.readyOps() & SelectionKey.OP_READ) == SelectionKey.OP_READ) {
+            // closed by the remote host, or the remote host talks first
+            LOGGER.log(Level.FINE, "Idle connection to remote host readable, closing {0}", sc);
+            remove(key);
+            close(sc);
+            retryLater();
+        }
+    }
+
+    /**
+     * Retry timer.
+     */
+    public void expire(long nowNanos) {
+        fill();
+    }
+
+    private void retryLater() {
+        if (!retryTimer.isScheduled()) {
+            loop.getTimerWheel().schedule(retryTimer, System.nanoTime() + RETRY_NANOS);
+        }
+    }
+
+    private void remove(SelectionKey key) {
+        for (int i = 0; i < idleCount; i++) {
+            if (idle[i] == key) {
+                idle[i] = idle[--idleCount];
+                idle[idleCount] = null;
+                return;
+            }
+        }
+    }
+
+    private static void close(SocketChannel sc) {
+        if (sc == null) {
+            return;
+        }
+        try {
+            sc.close();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+}
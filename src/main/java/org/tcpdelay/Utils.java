@@ -17,6 +17,10 @@
 
 package org.tcpdelay;
 
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,4 +29,77 @@ public class Utils {
     public static void logVarArgs(Logger logger, Level level, String msg, Object... params) {
         logger.log(level, msg, params);
     }
-}
\ No newline at end of file
+
+    /**
+     * Parses a number of bits per second, with an optional k, m or g suffix (powers of 1000).
+     */
+    public static long parseRate(String data) {
+        long rate = -1;
+        if (data != null && data.length() > 0) {
+            long multiplier = 1;
+            char unit = Character.toLowerCase(data.charAt(data.length() - 1));
+            if (unit == 'k') {
+                multiplier = 1000;
+            } else if (unit == 'm') {
+                multiplier = 1000 * 1000;
+            } else if (unit == 'g') {
+                multiplier = 1000 * 1000 * 1000;
+            }
+            String number = multiplier == 1 ? data : data.substring(0, data.length() - 1);
+            try {
+                rate = Long.parseLong(number) * multiplier;
+            } catch (NumberFormatException e) {
+                rate = -1;
+            }
+        }
+        if (rate < 0) {
+            throw new IllegalArgumentException("Invalid bandwidth: " + data);
+        }
+        return rate;
+    }
+
+    /**
+     * Closes a connection refused over -maxConnections with a reset, so that it doesn't
+     * keep a socket in TIME_WAIT.
+     */
+    public static void reject(SocketChannel sc) {
+        try {
+            sc.setOption(StandardSocketOptions.SO_LINGER, 0);
+            sc.close();
+        } catch (Exception e) {
+            // do nothing
+        }
+    }
+
+    /**
+     * Removes a hook closing a file on exit once the file is closed, so that closed logs aren't
+     * kept until the process exits. Does nothing when called from the hook or during the exit.
+     */
+    public static void removeShutdownHook(Thread hook) {
+        if (hook == null || Thread.currentThread() == hook) {
+            return;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // the hooks are already running
+        }
+    }
+
+    /**
+     * Sets the socket options of the route that the channel supports, leaving the others to
+     * the OS defaults. Receive buffers larger than 64KB have to be set before connecting or
+     * binding to be used for the TCP window.
+     */
+    public static void setSocketOptions(NetworkChannel channel, ProxyConfig config) throws IOException {
+        if (config.getTcpNoDelay() != null && channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, config.getTcpNoDelay());
+        }
+        if (config.getReceiveBuffer() > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBuffer());
+        }
+        if (config.getSendBuffer() > 0 && channel.supportedOptions().contains(StandardSocketOptions.SO_SNDBUF)) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBuffer());
+        }
+    }
+}
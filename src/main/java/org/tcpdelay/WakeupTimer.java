@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011  Francois Forster
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.tcpdelay;
+
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Daemon thread waking a selector up at a given time. The timeout of select has a millisecond
+ * resolution, parking has one of tens of microseconds, so with -precisionUs an event loop
+ * blocks in select and this thread wakes it up when it should start spinning.
+ */
+public class WakeupTimer implements Runnable {
+    private Selector selector;
+    // 0 when no wakeup is due
+    private AtomicLong wakeAtNanos;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public WakeupTimer(Selector selector) {
+        this.selector = selector;
+        wakeAtNanos = new AtomicLong();
+    }
+
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wakes the selector up at the given time, instead of at the time given before if it is
+     * earlier. A wakeup already due may still happen, like any spurious wakeup of select.
+     */
+    public void wakeupAt(long nanos) {
+        long previous = wakeAtNanos.getAndSet(nanos);
+        if (previous == 0 || nanos - previous < 0) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    public void run() {
+        while (running) {
+            long wakeAt = wakeAtNanos.get();
+            if (wakeAt == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+            long waitNanos = wakeAt - System.nanoTime();
+            if (waitNanos > 0) {
+                // woken up early when an earlier time is given
+                LockSupport.parkNanos(this, waitNanos);
+                continue;
+            }
+            if (wakeAtNanos.compareAndSet(wakeAt, 0)) {
+                selector.wakeup();
+            }
+        }
+    }
+}